@@ -7,9 +7,11 @@
 #include "nlohmann/json.hpp"
 #include "server.hpp"
 
+#include <cstring>
 #include <functional>
 #include <iostream>
 #include <stdexcept>
+#include <thread>
 
 // We store some references to Java classes and their fields/methods here to speed up things for later and to fail
 // early on if anything can't be found. This happens when the JVM loads the shared library (see `JNI_OnLoad`).
@@ -36,12 +38,27 @@ jclass c_llama_error = nullptr;
 jclass c_log_level = nullptr;
 jclass c_log_format = nullptr;
 jclass c_error_oom = nullptr;
+jclass c_completable_future = nullptr;
+jclass c_float_array = nullptr;
+jclass c_token_stream = nullptr;
+jclass c_output_sink = nullptr;
+jclass c_int_array = nullptr;
+jclass c_byte_array = nullptr;
+jclass c_slot_result = nullptr;
+jclass c_llama_overloaded = nullptr;
+jclass c_llama_timeout = nullptr;
+jclass c_llama_session = nullptr;
 
 // constructors
 jmethodID cc_output = nullptr;
 jmethodID cc_hash_map = nullptr;
 jmethodID cc_integer = nullptr;
 jmethodID cc_float = nullptr;
+jmethodID cc_llama_error = nullptr;
+jmethodID cc_slot_result = nullptr;
+jmethodID cc_llama_overloaded = nullptr;
+jmethodID cc_llama_timeout = nullptr;
+jmethodID cc_llama_session = nullptr;
 
 // methods
 jmethodID m_get_bytes = nullptr;
@@ -55,6 +72,10 @@ jmethodID m_map_put = nullptr;
 jmethodID m_int_value = nullptr;
 jmethodID m_float_value = nullptr;
 jmethodID m_biconsumer_accept = nullptr;
+jmethodID m_future_complete = nullptr;
+jmethodID m_future_complete_exceptionally = nullptr;
+jmethodID m_sink_on_output = nullptr;
+jmethodID m_sink_on_error = nullptr;
 
 // fields
 jfieldID f_model_pointer = nullptr;
@@ -67,6 +88,13 @@ jfieldID f_log_level_warn = nullptr;
 jfieldID f_log_level_error = nullptr;
 jfieldID f_log_format_json = nullptr;
 jfieldID f_log_format_text = nullptr;
+jfieldID f_stream_token = nullptr;
+jfieldID f_stream_probability = nullptr;
+jfieldID f_stream_piece = nullptr;
+jfieldID f_stream_piece_length = nullptr;
+jfieldID f_stream_top_tokens = nullptr;
+jfieldID f_stream_top_probabilities = nullptr;
+jfieldID f_stream_top_count = nullptr;
 
 // objects
 jobject o_utf_8 = nullptr;
@@ -161,6 +189,392 @@ JNIEnv *get_jni_env() {
     return env;
 }
 
+/**
+ * Convert a completion result of the server to a Java `LlamaOutput`. The text and probabilities are read from the
+ * result directly, so no JSON has to be created for each token.
+ */
+jobject result_to_joutput(JNIEnv *env, server_task_result *result) {
+    std::string content;
+    jobject o_probabilities = env->NewObject(c_hash_map, cc_hash_map);
+
+    auto put_probabilities = [&](const completion_token_output &output) {
+        for (const auto &p : output.probs) {
+            jstring jtok_str = env->NewStringUTF(p.txt.c_str());
+            jobject jprob = env->NewObject(c_float, cc_float, p.prob);
+            env->CallObjectMethod(o_probabilities, m_map_put, jtok_str, jprob);
+            env->DeleteLocalRef(jtok_str);
+            env->DeleteLocalRef(jprob);
+        }
+    };
+
+    if (auto *res_partial = dynamic_cast<server_task_result_cmpl_partial *>(result)) {
+        content = res_partial->content;
+        put_probabilities(res_partial->prob_output);
+    } else if (auto *res_final = dynamic_cast<server_task_result_cmpl_final *>(result)) {
+        // in stream mode, the content was already sent with the last partial result
+        if (!res_final->stream) {
+            content = res_final->content;
+            for (const auto &output : res_final->probs_output) {
+                put_probabilities(output);
+            }
+        }
+    }
+
+    jbyteArray jbytes = parse_jbytes(env, content);
+    jobject o_output = env->NewObject(c_output, cc_output, jbytes, o_probabilities, result->is_stop(),
+                                      std::max(result->get_index(), 0));
+    env->DeleteLocalRef(jbytes);
+    env->DeleteLocalRef(o_probabilities);
+    return o_output;
+}
+
+/**
+ * Convert an error result of the server to a Java exception, which is a `LlamaOverloadedException` if the task was
+ * rejected because too many tasks were waiting for a slot, a `LlamaTimeoutException` if its deadline expired, or a
+ * `LlamaSessionException` if the cached conversation of its session is not available anymore.
+ */
+jthrowable result_to_jerror(JNIEnv *env, server_task_result *result) {
+    const std::string message = result->to_json()["message"].get<std::string>();
+    jstring jmessage = env->NewStringUTF(message.c_str());
+    jobject error;
+    auto *res_error = dynamic_cast<server_task_result_error *>(result);
+    if (res_error != nullptr && res_error->retry_after_ms >= 0) {
+        error = env->NewObject(c_llama_overloaded, cc_llama_overloaded, jmessage, (jlong)res_error->retry_after_ms);
+    } else if (res_error != nullptr && res_error->err_type == ERROR_TYPE_TIMEOUT) {
+        error = env->NewObject(c_llama_timeout, cc_llama_timeout, jmessage);
+    } else if (res_error != nullptr && res_error->err_type == ERROR_TYPE_SESSION) {
+        error = env->NewObject(c_llama_session, cc_llama_session, jmessage);
+    } else {
+        error = env->NewObject(c_llama_error, cc_llama_error, jmessage);
+    }
+    env->DeleteLocalRef(jmessage);
+    return static_cast<jthrowable>(error);
+}
+
+/**
+ * Reject a request before its prompt is tokenized if it would have to wait for a slot with too many others, see
+ * server_queue::try_defer. If it is rejected, a `LlamaOverloadedException` is thrown and true is returned.
+ */
+bool reject_if_overloaded(JNIEnv *env, server_context *ctx_server) {
+    if (!ctx_server->queue_tasks.is_deferral_full(0)) {
+        return false;
+    }
+    ctx_server->n_tasks_rejected++;
+    jstring jmessage = env->NewStringUTF("Too many requests are waiting for a slot");
+    jobject error = env->NewObject(c_llama_overloaded, cc_llama_overloaded, jmessage,
+                                   (jlong)ctx_server->t_retry_after_ms.load());
+    env->DeleteLocalRef(jmessage);
+    env->Throw(static_cast<jthrowable>(error));
+    return true;
+}
+
+/**
+ * Parse the JSON inference parameters and create one completion task for each prompt. If the parameters are invalid,
+ * a Java exception is thrown and false is returned.
+ */
+bool create_completion_tasks(JNIEnv *env, server_context *ctx_server, jstring jparams,
+                             std::vector<server_task> &tasks) {
+    if (reject_if_overloaded(env, ctx_server)) {
+        return false;
+    }
+
+    std::string c_params = parse_jstring(env, jparams);
+    json data = json::parse(c_params);
+
+    server_task_type type = SERVER_TASK_TYPE_COMPLETION;
+
+    if (data.contains("input_prefix") || data.contains("input_suffix")) {
+        type = SERVER_TASK_TYPE_INFILL;
+    }
+
+    auto completion_id = gen_chatcmplid();
+
+    try {
+        const auto &prompt = data.at("prompt");
+
+        // a prompt that is appended to a cached conversation continues its text, so it neither starts with special
+        // tokens like BOS nor with the space some vocabularies prefix a text with
+        const bool prompt_append = json_value(data, "prompt_append", false);
+        if (prompt_append && (json_value(data, "id_slot", -1) < 0 || !prompt.is_string())) {
+            throw std::runtime_error("a prompt can only be appended as text to the conversation of a selected slot");
+        }
+
+        std::vector<llama_tokens> tokenized_prompts;
+        if (prompt_append) {
+            tokenized_prompts.push_back(tokenize_continuation(ctx_server->vocab, prompt.get<std::string>(), true));
+        } else {
+            tokenized_prompts = tokenize_input_prompts(ctx_server->vocab, prompt, true, true);
+        }
+
+        tasks.reserve(tokenized_prompts.size());
+        for (size_t i = 0; i < tokenized_prompts.size(); i++) {
+            server_task task = server_task(type);
+
+            task.id = ctx_server->queue_tasks.get_new_id();
+            task.index = i;
+
+            task.prompt_tokens = std::move(tokenized_prompts[i]);
+            task.params = server_task::params_from_json_cmpl(ctx_server->ctx, ctx_server->params_base, data);
+            task.id_selected_slot = json_value(data, "id_slot", -1);
+
+            // OAI-compat
+            task.params.oaicompat = OAICOMPAT_TYPE_NONE;
+            task.params.oaicompat_cmpl_id = completion_id;
+            // oaicompat_model is already populated by params_from_json_cmpl
+
+            tasks.push_back(task);
+        }
+    } catch (const std::exception &e) {
+        const auto &err = format_error_response(e.what(), ERROR_TYPE_INVALID_REQUEST);
+        env->ThrowNew(c_llama_error, err.dump().c_str());
+        return false;
+    }
+
+    return true;
+}
+
+/**
+ * Tokenize the given Java strings and create one embedding task for each of them.
+ */
+std::vector<server_task> create_embedding_tasks(JNIEnv *env, server_context *ctx_server, jobjectArray jprompts) {
+    const jsize amount_prompts = env->GetArrayLength(jprompts);
+
+    std::vector<server_task> tasks;
+    tasks.reserve(amount_prompts);
+    for (jsize i = 0; i < amount_prompts; i++) {
+        auto *jprompt = static_cast<jstring>(env->GetObjectArrayElement(jprompts, i));
+        const std::string prompt = parse_jstring(env, jprompt);
+        env->DeleteLocalRef(jprompt);
+
+        server_task task = server_task(SERVER_TASK_TYPE_EMBEDDING);
+        task.id = ctx_server->queue_tasks.get_new_id();
+        task.index = i;
+        task.prompt_tokens = tokenize_mixed(ctx_server->vocab, prompt, true, true);
+
+        // OAI-compat
+        task.params.oaicompat = OAICOMPAT_TYPE_NONE;
+
+        tasks.push_back(std::move(task));
+    }
+
+    return tasks;
+}
+
+// the least amount of text in bytes that is worth starting another thread of parallel_for for, since starting one
+// costs about as much as tokenizing a few kilobytes
+constexpr size_t PARALLEL_MIN_BYTES_PER_THREAD = 64 * 1024;
+
+/**
+ * Call the function for every index in [0, n), distributed over the available hardware threads if the amount of text
+ * in bytes they process, n_bytes, is large enough to make up for starting them. Otherwise, the function is called on
+ * the current thread only. The function must not use the JNIEnv, since it may be called on threads that are not
+ * attached to the JVM.
+ */
+void parallel_for(size_t n, size_t n_bytes, const std::function<void(size_t)> &function) {
+    const size_t n_threads = std::min({n, (size_t)std::max(1u, std::thread::hardware_concurrency()),
+                                       std::max<size_t>(1, n_bytes / PARALLEL_MIN_BYTES_PER_THREAD)});
+    std::atomic<size_t> next(0);
+    auto work = [&]() {
+        for (size_t i = next++; i < n; i = next++) {
+            function(i);
+        }
+    };
+
+    std::vector<std::thread> workers;
+    for (size_t i = 1; i < n_threads; i++) {
+        workers.emplace_back(work);
+    }
+    work();
+    for (auto &worker : workers) {
+        worker.join();
+    }
+}
+
+/**
+ * Count the tokens of a text like tokenize_mixed(vocab, text, false, true) without materializing them.
+ */
+int32_t count_tokens(const llama_vocab *vocab, const std::string &text) {
+    // with a too small buffer, llama_tokenize returns the negative amount of tokens
+    const int32_t n_tokens = llama_tokenize(vocab, text.data(), text.size(), nullptr, 0, false, true);
+    return n_tokens < 0 ? -n_tokens : n_tokens;
+}
+
+/**
+ * Convert the Java strings to std::strings and tokenize them in parallel.
+ */
+std::vector<llama_tokens> tokenize_jstrings(JNIEnv *env, const llama_vocab *vocab, jobjectArray jprompts) {
+    const jsize amount_prompts = env->GetArrayLength(jprompts);
+
+    std::vector<std::string> prompts;
+    prompts.reserve(amount_prompts);
+    size_t n_bytes = 0;
+    for (jsize i = 0; i < amount_prompts; i++) {
+        auto *jprompt = static_cast<jstring>(env->GetObjectArrayElement(jprompts, i));
+        prompts.push_back(parse_jstring(env, jprompt));
+        n_bytes += prompts.back().size();
+        env->DeleteLocalRef(jprompt);
+    }
+
+    std::vector<llama_tokens> tokens(amount_prompts);
+    parallel_for(prompts.size(), n_bytes,
+                 [&](size_t i) { tokens[i] = tokenize_mixed(vocab, prompts[i], false, true); });
+    return tokens;
+}
+
+/**
+ * Post a slot save, restore, erase, export or import task, wait for its result and convert it to a Java `SlotResult`.
+ * If the task fails, a Java exception is thrown and nullptr is returned.
+ */
+jobject run_slot_task(JNIEnv *env, server_context *ctx_server, server_task &task) {
+    task.id = ctx_server->queue_tasks.get_new_id();
+    const int id_task = task.id;
+    ctx_server->queue_results.add_waiting_task_id(id_task);
+    ctx_server->queue_tasks.post(task);
+
+    server_task_result_ptr result = ctx_server->queue_results.recv(id_task);
+    ctx_server->queue_results.remove_waiting_task_id(id_task);
+
+    if (result->is_error()) {
+        env->Throw(result_to_jerror(env, result.get()));
+        return nullptr;
+    }
+
+    if (auto *res_save_load = dynamic_cast<server_task_result_slot_save_load *>(result.get())) {
+        // exported and imported states have no file
+        jstring jfilename =
+            res_save_load->filename.empty() ? nullptr : env->NewStringUTF(res_save_load->filename.c_str());
+        jobject o_result = env->NewObject(c_slot_result, cc_slot_result, (jint)res_save_load->id_slot, jfilename,
+                                          (jlong)res_save_load->n_tokens, (jlong)res_save_load->n_bytes,
+                                          (jdouble)res_save_load->t_ms);
+        env->DeleteLocalRef(jfilename);
+        return o_result;
+    }
+
+    auto *res_erase = static_cast<server_task_result_slot_erase *>(result.get());
+    return env->NewObject(c_slot_result, cc_slot_result, (jint)res_erase->id_slot, nullptr,
+                          (jlong)res_erase->n_erased, (jlong)0, (jdouble)0);
+}
+
+/**
+ * Create a slot save or restore task for a file in the slot save path. If the file can't be used, a Java exception is
+ * thrown and false is returned.
+ */
+bool create_slot_file_task(JNIEnv *env, server_context *ctx_server, jint id_slot, jstring jfilename,
+                           server_task &task) {
+    if (ctx_server->params_base.slot_save_path.empty()) {
+        env->ThrowNew(c_llama_error, "no slot save path is set, see ModelParameters#setSlotSavePath");
+        return false;
+    }
+
+    std::string filename = parse_jstring(env, jfilename);
+    if (!fs_validate_filename(filename)) {
+        env->ThrowNew(c_llama_error, ("invalid slot filename: " + filename).c_str());
+        return false;
+    }
+
+    task.slot_action.slot_id = id_slot;
+    task.slot_action.filename = filename;
+    task.slot_action.filepath = ctx_server->params_base.slot_save_path + filename;
+    return true;
+}
+
+/**
+ * Options of the server in this library that llama.cpp doesn't know, see extract_server_args.
+ */
+struct server_args {
+    std::string slot_spill_path;
+    int64_t slot_spill_max_size = 0;
+    int64_t slot_spill_max_age = 0; // in seconds
+    int64_t slot_max_idle = 0;      // in seconds
+    bool slot_spill_warm = false;
+    int64_t max_deferred_tasks = 0;
+    int64_t max_deferred_tokens = 0;
+    int64_t prefill_budget = 0;
+};
+
+/**
+ * Remove the options of the server in this library from the command line arguments, since common_params_parse rejects
+ * unknown options. If a value is missing or invalid, a Java exception is thrown and false is returned.
+ */
+bool extract_server_args(JNIEnv *env, std::vector<char *> &args, server_args &out) {
+    const auto non_negative = [](const std::string &value) {
+        const int64_t parsed = std::stoll(value);
+        if (parsed < 0) {
+            throw std::invalid_argument(value);
+        }
+        return parsed;
+    };
+    const std::unordered_map<std::string, std::function<void(const std::string &)>> options = {
+        {"--slot-spill-path", [&](const std::string &value) { out.slot_spill_path = value; }},
+        {"--slot-spill-max-size", [&](const std::string &value) { out.slot_spill_max_size = non_negative(value); }},
+        {"--slot-spill-max-age", [&](const std::string &value) { out.slot_spill_max_age = non_negative(value); }},
+        {"--slot-max-idle", [&](const std::string &value) { out.slot_max_idle = non_negative(value); }},
+        {"--max-deferred-tasks", [&](const std::string &value) { out.max_deferred_tasks = non_negative(value); }},
+        {"--max-deferred-tokens", [&](const std::string &value) { out.max_deferred_tokens = non_negative(value); }},
+        {"--prefill-budget", [&](const std::string &value) { out.prefill_budget = non_negative(value); }},
+    };
+
+    std::vector<char *> rest;
+    for (size_t i = 0; i < args.size(); i++) {
+        const std::string arg = args[i];
+        if (arg == "--slot-spill-warm") {
+            out.slot_spill_warm = true;
+            continue;
+        }
+        auto it = options.find(arg);
+        if (it == options.end()) {
+            rest.push_back(args[i]);
+            continue;
+        }
+        if (i + 1 >= args.size()) {
+            env->ThrowNew(c_llama_error, ("missing value for argument: " + arg).c_str());
+            return false;
+        }
+        const std::string value = args[++i];
+        try {
+            it->second(value);
+        } catch (const std::exception &) {
+            env->ThrowNew(c_llama_error, ("invalid value for argument " + arg + ": " + value).c_str());
+            return false;
+        }
+    }
+    args = std::move(rest);
+    return true;
+}
+
+/**
+ * Configure the disk tier of the prompt cache, see server_slot_spill. If the directory can't be created, a Java
+ * exception is thrown and false is returned.
+ */
+bool init_slot_spill(JNIEnv *env, server_context *ctx_server, const server_args &args) {
+    server_slot_spill &spill = ctx_server->slot_spill;
+    spill.max_bytes = args.slot_spill_max_size;
+    spill.max_age_us = args.slot_spill_max_age * 1000000;
+    spill.max_idle_us = args.slot_max_idle * 1000000;
+    if (args.slot_spill_path.empty()) {
+        return true;
+    }
+
+    std::error_code ec;
+    std::filesystem::create_directories(args.slot_spill_path, ec);
+    if (ec) {
+        env->ThrowNew(c_llama_error, ("unable to create slot spill path: " + args.slot_spill_path).c_str());
+        return false;
+    }
+
+    spill.path = args.slot_spill_path;
+    if (spill.path.back() != DIRECTORY_SEPARATOR) {
+        spill.path += DIRECTORY_SEPARATOR;
+    }
+
+    // states spilled before a restart are only kept if requested, otherwise they would count against no limit
+    spill.load();
+    if (!args.slot_spill_warm) {
+        spill.clear();
+    }
+    return true;
+}
+
 bool log_json;
 std::function<void(ggml_log_level, const char *, void *)> log_callback;
 
@@ -208,10 +622,22 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     c_log_level = env->FindClass("de/kherud/llama/LogLevel");
     c_log_format = env->FindClass("de/kherud/llama/args/LogFormat");
     c_error_oom = env->FindClass("java/lang/OutOfMemoryError");
+    c_completable_future = env->FindClass("java/util/concurrent/CompletableFuture");
+    c_float_array = env->FindClass("[F");
+    c_token_stream = env->FindClass("de/kherud/llama/LlamaTokenStream");
+    c_output_sink = env->FindClass("de/kherud/llama/LlamaOutputSink");
+    c_int_array = env->FindClass("[I");
+    c_byte_array = env->FindClass("[B");
+    c_slot_result = env->FindClass("de/kherud/llama/SlotResult");
+    c_llama_overloaded = env->FindClass("de/kherud/llama/LlamaOverloadedException");
+    c_llama_timeout = env->FindClass("de/kherud/llama/LlamaTimeoutException");
+    c_llama_session = env->FindClass("de/kherud/llama/LlamaSessionException");
 
     if (!(c_llama_model && c_llama_iterator && c_standard_charsets && c_output && c_string && c_hash_map && c_map &&
           c_set && c_entry && c_iterator && c_integer && c_float && c_biconsumer && c_llama_error && c_log_level &&
-          c_log_format && c_error_oom)) {
+          c_log_format && c_error_oom && c_completable_future && c_float_array && c_token_stream &&
+          c_output_sink && c_int_array && c_byte_array && c_slot_result && c_llama_overloaded && c_llama_timeout &&
+          c_llama_session)) {
         goto error;
     }
 
@@ -232,14 +658,30 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     c_log_level = (jclass)env->NewGlobalRef(c_log_level);
     c_log_format = (jclass)env->NewGlobalRef(c_log_format);
     c_error_oom = (jclass)env->NewGlobalRef(c_error_oom);
+    c_completable_future = (jclass)env->NewGlobalRef(c_completable_future);
+    c_float_array = (jclass)env->NewGlobalRef(c_float_array);
+    c_token_stream = (jclass)env->NewGlobalRef(c_token_stream);
+    c_output_sink = (jclass)env->NewGlobalRef(c_output_sink);
+    c_int_array = (jclass)env->NewGlobalRef(c_int_array);
+    c_byte_array = (jclass)env->NewGlobalRef(c_byte_array);
+    c_slot_result = (jclass)env->NewGlobalRef(c_slot_result);
+    c_llama_overloaded = (jclass)env->NewGlobalRef(c_llama_overloaded);
+    c_llama_timeout = (jclass)env->NewGlobalRef(c_llama_timeout);
+    c_llama_session = (jclass)env->NewGlobalRef(c_llama_session);
 
     // find constructors
-    cc_output = env->GetMethodID(c_output, "<init>", "([BLjava/util/Map;Z)V");
+    cc_output = env->GetMethodID(c_output, "<init>", "([BLjava/util/Map;ZI)V");
     cc_hash_map = env->GetMethodID(c_hash_map, "<init>", "()V");
     cc_integer = env->GetMethodID(c_integer, "<init>", "(I)V");
     cc_float = env->GetMethodID(c_float, "<init>", "(F)V");
-
-    if (!(cc_output && cc_hash_map && cc_integer && cc_float)) {
+    cc_llama_error = env->GetMethodID(c_llama_error, "<init>", "(Ljava/lang/String;)V");
+    cc_slot_result = env->GetMethodID(c_slot_result, "<init>", "(ILjava/lang/String;JJD)V");
+    cc_llama_overloaded = env->GetMethodID(c_llama_overloaded, "<init>", "(Ljava/lang/String;J)V");
+    cc_llama_timeout = env->GetMethodID(c_llama_timeout, "<init>", "(Ljava/lang/String;)V");
+    cc_llama_session = env->GetMethodID(c_llama_session, "<init>", "(Ljava/lang/String;)V");
+
+    if (!(cc_output && cc_hash_map && cc_integer && cc_float && cc_llama_error && cc_slot_result &&
+          cc_llama_overloaded && cc_llama_timeout && cc_llama_session)) {
         goto error;
     }
 
@@ -255,9 +697,15 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     m_int_value = env->GetMethodID(c_integer, "intValue", "()I");
     m_float_value = env->GetMethodID(c_float, "floatValue", "()F");
     m_biconsumer_accept = env->GetMethodID(c_biconsumer, "accept", "(Ljava/lang/Object;Ljava/lang/Object;)V");
+    m_future_complete = env->GetMethodID(c_completable_future, "complete", "(Ljava/lang/Object;)Z");
+    m_future_complete_exceptionally =
+        env->GetMethodID(c_completable_future, "completeExceptionally", "(Ljava/lang/Throwable;)Z");
+    m_sink_on_output = env->GetMethodID(c_output_sink, "onOutput", "(Lde/kherud/llama/LlamaOutput;)Z");
+    m_sink_on_error = env->GetMethodID(c_output_sink, "onError", "(Ljava/lang/Throwable;)V");
 
     if (!(m_get_bytes && m_entry_set && m_set_iterator && m_iterator_has_next && m_iterator_next && m_entry_key &&
-          m_entry_value && m_map_put && m_int_value && m_float_value && m_biconsumer_accept)) {
+          m_entry_value && m_map_put && m_int_value && m_float_value && m_biconsumer_accept && m_future_complete &&
+          m_future_complete_exceptionally && m_sink_on_output && m_sink_on_error)) {
         goto error;
     }
 
@@ -273,8 +721,18 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     f_log_format_json = env->GetStaticFieldID(c_log_format, "JSON", "Lde/kherud/llama/args/LogFormat;");
     f_log_format_text = env->GetStaticFieldID(c_log_format, "TEXT", "Lde/kherud/llama/args/LogFormat;");
 
+    f_stream_token = env->GetFieldID(c_token_stream, "token", "I");
+    f_stream_probability = env->GetFieldID(c_token_stream, "probability", "F");
+    f_stream_piece = env->GetFieldID(c_token_stream, "piece", "[B");
+    f_stream_piece_length = env->GetFieldID(c_token_stream, "pieceLength", "I");
+    f_stream_top_tokens = env->GetFieldID(c_token_stream, "topTokens", "[I");
+    f_stream_top_probabilities = env->GetFieldID(c_token_stream, "topProbabilities", "[F");
+    f_stream_top_count = env->GetFieldID(c_token_stream, "topCount", "I");
+
     if (!(f_model_pointer && f_task_id && f_utf_8 && f_iter_has_next && f_log_level_debug && f_log_level_info &&
-          f_log_level_warn && f_log_level_error && f_log_format_json && f_log_format_text)) {
+          f_log_level_warn && f_log_level_error && f_log_format_json && f_log_format_text && f_stream_token &&
+          f_stream_probability && f_stream_piece && f_stream_piece_length && f_stream_top_tokens &&
+          f_stream_top_probabilities && f_stream_top_count)) {
         goto error;
     }
 
@@ -346,6 +804,16 @@ JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
     env->DeleteGlobalRef(c_log_level);
     env->DeleteGlobalRef(c_log_level);
     env->DeleteGlobalRef(c_error_oom);
+    env->DeleteGlobalRef(c_completable_future);
+    env->DeleteGlobalRef(c_float_array);
+    env->DeleteGlobalRef(c_token_stream);
+    env->DeleteGlobalRef(c_output_sink);
+    env->DeleteGlobalRef(c_int_array);
+    env->DeleteGlobalRef(c_byte_array);
+    env->DeleteGlobalRef(c_slot_result);
+    env->DeleteGlobalRef(c_llama_overloaded);
+    env->DeleteGlobalRef(c_llama_timeout);
+    env->DeleteGlobalRef(c_llama_session);
 
     env->DeleteGlobalRef(o_utf_8);
     env->DeleteGlobalRef(o_log_level_debug);
@@ -371,7 +839,15 @@ JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_loadModel(JNIEnv *env, jo
         return;
     }
 
-    const auto parsed_params = common_params_parse(argc, argv, params, LLAMA_EXAMPLE_SERVER);
+    std::vector<char *> args(argv, argv + argc);
+    server_args extra_args;
+    if (!extract_server_args(env, args, extra_args)) {
+        free_string_array(argv, argc);
+        return;
+    }
+
+    const auto parsed_params =
+        common_params_parse(static_cast<int>(args.size()), args.data(), params, LLAMA_EXAMPLE_SERVER);
     free_string_array(argv, argc);
     if (!parsed_params) {
         return;
@@ -407,6 +883,13 @@ JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_loadModel(JNIEnv *env, jo
     }
 
     ctx_server->init();
+    ctx_server->queue_tasks.n_deferred_max = extra_args.max_deferred_tasks;
+    ctx_server->queue_tasks.n_deferred_tokens_max = extra_args.max_deferred_tokens;
+    ctx_server->n_prefill_budget = static_cast<int32_t>(std::min<int64_t>(extra_args.prefill_budget, INT32_MAX));
+    if (!init_slot_spill(env, ctx_server, extra_args)) {
+        delete ctx_server;
+        return;
+    }
     state.store(SERVER_STATE_READY);
 
     LOG_INF("%s: model loaded\n", __func__);
@@ -487,149 +970,408 @@ JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestCompletion(JNIEnv
     jlong server_handle = env->GetLongField(obj, f_model_pointer);
     auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
 
-    std::string c_params = parse_jstring(env, jparams);
-    json data = json::parse(c_params);
-
-    server_task_type type = SERVER_TASK_TYPE_COMPLETION;
-
-    if (data.contains("input_prefix") || data.contains("input_suffix")) {
-        type = SERVER_TASK_TYPE_INFILL;
-    }
-
-    auto completion_id = gen_chatcmplid();
     std::vector<server_task> tasks;
-
-    try {
-        const auto &prompt = data.at("prompt");
-
-        std::vector<llama_tokens> tokenized_prompts = tokenize_input_prompts(ctx_server->vocab, prompt, true, true);
-
-        tasks.reserve(tokenized_prompts.size());
-        for (size_t i = 0; i < tokenized_prompts.size(); i++) {
-            server_task task = server_task(type);
-
-            task.id = ctx_server->queue_tasks.get_new_id();
-            task.index = i;
-
-            task.prompt_tokens = std::move(tokenized_prompts[i]);
-            task.params = server_task::params_from_json_cmpl(ctx_server->ctx, ctx_server->params_base, data);
-            task.id_selected_slot = json_value(data, "id_slot", -1);
-
-            // OAI-compat
-            task.params.oaicompat = OAICOMPAT_TYPE_NONE;
-            task.params.oaicompat_cmpl_id = completion_id;
-            // oaicompat_model is already populated by params_from_json_cmpl
-
-            tasks.push_back(task);
-        }
-    } catch (const std::exception &e) {
-        const auto &err = format_error_response(e.what(), ERROR_TYPE_INVALID_REQUEST);
-        env->ThrowNew(c_llama_error, err.dump().c_str());
+    if (!create_completion_tasks(env, ctx_server, jparams, tasks)) {
         return 0;
     }
 
-    ctx_server->queue_results.add_waiting_tasks(tasks);
-    ctx_server->queue_tasks.post(tasks);
-
-    const auto task_ids = server_task::get_list_id(tasks);
-
-    if (task_ids.size() != 1) {
-        env->ThrowNew(c_llama_error, "multitasking currently not supported");
+    if (tasks.size() != 1) {
+        env->ThrowNew(c_llama_error, "multiple prompts have to be completed via completeAll or generateAll");
         return 0;
     }
 
-    return *task_ids.begin();
-}
+    ctx_server->queue_results.add_waiting_tasks(tasks);
+    ctx_server->queue_tasks.post(tasks);
 
-JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_releaseTask(JNIEnv *env, jobject obj, jint id_task) {
-    jlong server_handle = env->GetLongField(obj, f_model_pointer);
-    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
-    ctx_server->queue_results.remove_waiting_task_id(id_task);
+    return tasks[0].id;
 }
 
-JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_receiveCompletion(JNIEnv *env, jobject obj, jint id_task) {
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_requestCompletions(JNIEnv *env, jobject obj,
+                                                                               jstring jparams) {
     jlong server_handle = env->GetLongField(obj, f_model_pointer);
     auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
 
-    server_task_result_ptr result = ctx_server->queue_results.recv(id_task);
-
-    if (result->is_error()) {
-        std::string response = result->to_json()["message"].get<std::string>();
-        ctx_server->queue_results.remove_waiting_task_id(id_task);
-        env->ThrowNew(c_llama_error, response.c_str());
+    std::vector<server_task> tasks;
+    if (!create_completion_tasks(env, ctx_server, jparams, tasks)) {
         return nullptr;
     }
-    const auto out_res = result->to_json();
 
-    std::string response = out_res["content"].get<std::string>();
-    if (result->is_stop()) {
-        ctx_server->queue_results.remove_waiting_task_id(id_task);
+    // the tasks are created in the order of the prompts
+    std::vector<jint> task_ids;
+    task_ids.reserve(tasks.size());
+    for (const auto &task : tasks) {
+        task_ids.push_back(task.id);
     }
 
-    jobject o_probabilities = env->NewObject(c_hash_map, cc_hash_map);
-    if (out_res.contains("completion_probabilities")) {
-        auto completion_probabilities = out_res["completion_probabilities"];
-        for (const auto &entry : completion_probabilities) {
-            auto probs = entry["probs"];
-            for (const auto &tp : probs) {
-                std::string tok_str = tp["tok_str"];
-                jstring jtok_str = env->NewStringUTF(tok_str.c_str());
-                float prob = tp["prob"];
-                jobject jprob = env->NewObject(c_float, cc_float, prob);
-                env->CallObjectMethod(o_probabilities, m_map_put, jtok_str, jprob);
-                env->DeleteLocalRef(jtok_str);
-                env->DeleteLocalRef(jprob);
-            }
-        }
+    jintArray java_task_ids = env->NewIntArray(task_ids.size());
+    if (java_task_ids == nullptr) {
+        env->ThrowNew(c_error_oom, "could not allocate task id array");
+        return nullptr;
     }
-    jbyteArray jbytes = parse_jbytes(env, response);
-    return env->NewObject(c_output, cc_output, jbytes, o_probabilities, result->is_stop());
+    env->SetIntArrayRegion(java_task_ids, 0, task_ids.size(), task_ids.data());
+
+    // all results are collected in the same mailbox, so that they can be received in the order they are generated
+    ctx_server->queue_results.add_waiting_tasks(tasks);
+    ctx_server->queue_tasks.post(tasks);
+
+    return java_task_ids;
 }
 
-JNIEXPORT jfloatArray JNICALL Java_de_kherud_llama_LlamaModel_embed(JNIEnv *env, jobject obj, jstring jprompt) {
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestBinaryCompletion(JNIEnv *env, jobject obj,
+                                                                              jobject jbuffer) {
     jlong server_handle = env->GetLongField(obj, f_model_pointer);
     auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
 
-    if (!ctx_server->params_base.embedding) {
-        env->ThrowNew(c_llama_error,
-                      "model was not loaded with embedding support (see ModelParameters#setEmbedding(boolean))");
-        return nullptr;
+    // layout (native byte order): int32 number of fields, int32 prompt length, int64 mask of the fields that are set,
+    // one float64 per field of `binary_param` and the UTF-8 prompt bytes (see InferenceParameters#toBinary)
+    if (reject_if_overloaded(env, ctx_server)) {
+        return 0;
     }
 
-    const std::string prompt = parse_jstring(env, jprompt);
+    const auto *data = static_cast<const uint8_t *>(env->GetDirectBufferAddress(jbuffer));
+    const jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+    const size_t header_size = 2 * sizeof(int32_t) + sizeof(uint64_t);
+    if (data == nullptr || capacity < (jlong)header_size) {
+        env->ThrowNew(c_llama_error, "invalid binary inference parameters");
+        return 0;
+    }
 
-    SRV_INF("Calling embedding '%s'\n", prompt.c_str());
+    int32_t n_fields;
+    int32_t n_prompt;
+    uint64_t mask;
+    std::memcpy(&n_fields, data, sizeof(int32_t));
+    std::memcpy(&n_prompt, data + sizeof(int32_t), sizeof(int32_t));
+    std::memcpy(&mask, data + 2 * sizeof(int32_t), sizeof(uint64_t));
+
+    const size_t values_size = (size_t)BINARY_PARAM_COUNT * sizeof(double);
+    if (n_fields != BINARY_PARAM_COUNT || n_prompt < 0 ||
+        (jlong)(header_size + values_size + n_prompt) > capacity) {
+        env->ThrowNew(c_llama_error, "invalid binary inference parameters");
+        return 0;
+    }
 
-    const auto tokens = tokenize_mixed(ctx_server->vocab, prompt, true, true);
-    std::vector<server_task> tasks;
+    double values[BINARY_PARAM_COUNT];
+    std::memcpy(values, data + header_size, values_size);
+    const std::string prompt(reinterpret_cast<const char *>(data + header_size + values_size), n_prompt);
 
-    server_task task = server_task(SERVER_TASK_TYPE_EMBEDDING);
+    server_task task = server_task(SERVER_TASK_TYPE_COMPLETION);
+    try {
+        task.params = server_task::params_from_binary(ctx_server->ctx, ctx_server->params_base, values, mask);
+    } catch (const std::exception &e) {
+        const auto &err = format_error_response(e.what(), ERROR_TYPE_INVALID_REQUEST);
+        env->ThrowNew(c_llama_error, err.dump().c_str());
+        return 0;
+    }
 
     task.id = ctx_server->queue_tasks.get_new_id();
     task.index = 0;
-    task.prompt_tokens = std::move(tokens);
-
-    // OAI-compat
+    task.prompt_tokens = common_tokenize(ctx_server->vocab, prompt, true, true);
+    task.id_selected_slot = ((mask >> BINARY_PARAM_ID_SLOT) & 1) != 0 ? (int)values[BINARY_PARAM_ID_SLOT] : -1;
     task.params.oaicompat = OAICOMPAT_TYPE_NONE;
 
-    tasks.push_back(task);
+    const int id_task = task.id;
+    ctx_server->queue_results.add_waiting_task_id(id_task);
+    ctx_server->queue_tasks.post(std::move(task));
 
-    ctx_server->queue_results.add_waiting_tasks(tasks);
-    ctx_server->queue_tasks.post(tasks);
+    return id_task;
+}
 
-    std::unordered_set<int> task_ids = server_task::get_list_id(tasks);
-    const auto id_task = *task_ids.begin();
-    json responses = json::array();
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestAsyncCompletion(JNIEnv *env, jobject obj,
+                                                                             jstring jparams, jobject jfuture) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
 
-    json error = nullptr;
+    std::vector<server_task> tasks;
+    if (!create_completion_tasks(env, ctx_server, jparams, tasks)) {
+        return 0;
+    }
+
+    if (tasks.size() != 1) {
+        env->ThrowNew(c_llama_error, "multitasking currently not supported");
+        return 0;
+    }
+
+    const int id_task = tasks[0].id;
+
+    // the callback (and with it the reference to the future) is released once the task finished or was cancelled
+    std::shared_ptr<_jobject> future(env->NewGlobalRef(jfuture),
+                                     [](jobject ref) { get_jni_env()->DeleteGlobalRef(ref); });
+
+    // results are sent on the task loop thread, which stays attached to the JVM, so local references have to be
+    // released explicitly
+    ctx_server->queue_results.add_waiting_task_callback(id_task, [future](server_task_result_ptr &&result) {
+        JNIEnv *env = get_jni_env();
+        if (env->PushLocalFrame(16) != JNI_OK) {
+            env->ExceptionClear();
+            return;
+        }
+
+        if (result->is_error()) {
+            jthrowable error = result_to_jerror(env, result.get());
+            env->CallBooleanMethod(future.get(), m_future_complete_exceptionally, error);
+        } else {
+            jobject output = result_to_joutput(env, result.get());
+            env->CallBooleanMethod(future.get(), m_future_complete, output);
+        }
+
+        // exceptions of dependent stages must not leak into the task loop
+        if (env->ExceptionCheck()) {
+            env->ExceptionDescribe();
+            env->ExceptionClear();
+        }
+
+        env->PopLocalFrame(nullptr);
+    });
+    ctx_server->queue_tasks.post(tasks);
+
+    return id_task;
+}
+
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestStreamingCompletion(JNIEnv *env, jobject obj,
+                                                                                 jstring jparams, jobject jsink) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    std::vector<server_task> tasks;
+    if (!create_completion_tasks(env, ctx_server, jparams, tasks)) {
+        return 0;
+    }
+
+    if (tasks.size() != 1) {
+        env->ThrowNew(c_llama_error, "multitasking currently not supported");
+        return 0;
+    }
+
+    const int id_task = tasks[0].id;
+
+    // the callback (and with it the reference to the sink) is released once the task finished or was cancelled
+    std::shared_ptr<_jobject> sink(env->NewGlobalRef(jsink),
+                                   [](jobject ref) { get_jni_env()->DeleteGlobalRef(ref); });
+
+    // like for asynchronous completions, results are pushed on the task loop thread, which has to release local
+    // references explicitly
+    ctx_server->queue_results.add_waiting_task_callback(id_task, [ctx_server, sink,
+                                                                  id_task](server_task_result_ptr &&result) {
+        JNIEnv *env = get_jni_env();
+        if (env->PushLocalFrame(16) != JNI_OK) {
+            env->ExceptionClear();
+            return;
+        }
+
+        if (result->is_error()) {
+            env->CallVoidMethod(sink.get(), m_sink_on_error, result_to_jerror(env, result.get()));
+        } else {
+            jobject output = result_to_joutput(env, result.get());
+            // the sink returns true if it can't take any more results for now
+            jboolean full = env->CallBooleanMethod(sink.get(), m_sink_on_output, output);
+            if (!env->ExceptionCheck() && full) {
+                ctx_server->pause_task(id_task);
+            }
+        }
+
+        if (env->ExceptionCheck()) {
+            env->ExceptionDescribe();
+            env->ExceptionClear();
+        }
+
+        env->PopLocalFrame(nullptr);
+    });
+    ctx_server->queue_tasks.post(tasks);
+
+    return id_task;
+}
+
+JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_resumeCompletion(JNIEnv *env, jobject obj, jint id_task) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+    ctx_server->resume_task(id_task);
+}
+
+JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_releaseTask(JNIEnv *env, jobject obj, jint id_task) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+    ctx_server->queue_results.remove_waiting_task_id(id_task);
+}
+
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_receiveCompletion(JNIEnv *env, jobject obj, jint id_task) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task_result_ptr result = ctx_server->queue_results.recv(id_task);
+
+    if (result->is_error()) {
+        ctx_server->queue_results.remove_waiting_task_id(id_task);
+        env->Throw(result_to_jerror(env, result.get()));
+        return nullptr;
+    }
+    if (result->is_stop()) {
+        ctx_server->queue_results.remove_waiting_task_id(id_task);
+    }
+
+    return result_to_joutput(env, result.get());
+}
+
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_receiveCompletionTimed(JNIEnv *env, jobject obj, jint id_task,
+                                                                                 jlong timeout_ms) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task_result_ptr result =
+        ctx_server->queue_results.recv_with_timeout({id_task}, std::chrono::milliseconds(timeout_ms));
+
+    if (result == nullptr) {
+        // the task keeps running, the caller decides whether to wait longer or to cancel it
+        return nullptr;
+    }
+    if (result->is_error()) {
+        ctx_server->queue_results.remove_waiting_task_id(id_task);
+        env->Throw(result_to_jerror(env, result.get()));
+        return nullptr;
+    }
+    if (result->is_stop()) {
+        ctx_server->queue_results.remove_waiting_task_id(id_task);
+    }
+
+    return result_to_joutput(env, result.get());
+}
+
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_receiveAnyCompletion(JNIEnv *env, jobject obj,
+                                                                               jintArray jtask_ids) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    const jsize amount_tasks = env->GetArrayLength(jtask_ids);
+    std::vector<jint> task_ids(amount_tasks);
+    env->GetIntArrayRegion(jtask_ids, 0, amount_tasks, task_ids.data());
+    const std::unordered_set<int> id_tasks(task_ids.begin(), task_ids.end());
+
+    server_task_result_ptr result = ctx_server->queue_results.recv(id_tasks);
+
+    if (result->is_error()) {
+        // the other prompts are abandoned as well
+        ctx_server->cancel_tasks(id_tasks);
+        env->Throw(result_to_jerror(env, result.get()));
+        return nullptr;
+    }
+    if (result->is_stop()) {
+        ctx_server->queue_results.remove_waiting_task_id(result->id);
+    }
+
+    return result_to_joutput(env, result.get());
+}
+
+JNIEXPORT jboolean JNICALL Java_de_kherud_llama_LlamaModel_receiveTokens(JNIEnv *env, jobject obj, jint id_task,
+                                                                         jobject jstream) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task_result_ptr result = ctx_server->queue_results.recv(id_task);
+
+    if (result->is_error()) {
+        ctx_server->queue_results.remove_waiting_task_id(id_task);
+        env->Throw(result_to_jerror(env, result.get()));
+        return false;
+    }
+
+    auto *res_partial = dynamic_cast<server_task_result_cmpl_partial *>(result.get());
+    if (res_partial == nullptr || res_partial->tokens.empty()) {
+        // the final result carries no token, it only signals the end of the stream
+        ctx_server->queue_results.remove_waiting_task_id(id_task);
+        return false;
+    }
+
+    const llama_token token = res_partial->tokens[0];
+    const completion_token_output &output = res_partial->prob_output;
+    const std::string piece = common_token_to_piece(ctx_server->ctx, token);
+
+    env->SetIntField(jstream, f_stream_token, token);
+    env->SetFloatField(jstream, f_stream_probability,
+                       output.probs.empty() ? std::numeric_limits<float>::quiet_NaN() : output.prob);
+
+    // the arrays of the stream are re-used and only replaced if they are too small
+    const auto piece_length = (jsize)piece.size();
+    auto *jpiece = static_cast<jbyteArray>(env->GetObjectField(jstream, f_stream_piece));
+    if (env->GetArrayLength(jpiece) < piece_length) {
+        env->DeleteLocalRef(jpiece);
+        jpiece = env->NewByteArray(std::max<jsize>(piece_length, 16));
+        env->SetObjectField(jstream, f_stream_piece, jpiece);
+    }
+    env->SetByteArrayRegion(jpiece, 0, piece_length, reinterpret_cast<const jbyte *>(piece.data()));
+    env->SetIntField(jstream, f_stream_piece_length, piece_length);
+    env->DeleteLocalRef(jpiece);
+
+    const auto top_count = (jsize)output.probs.size();
+    auto *jtop_tokens = static_cast<jintArray>(env->GetObjectField(jstream, f_stream_top_tokens));
+    auto *jtop_probs = static_cast<jfloatArray>(env->GetObjectField(jstream, f_stream_top_probabilities));
+    if (env->GetArrayLength(jtop_tokens) < top_count) {
+        env->DeleteLocalRef(jtop_tokens);
+        env->DeleteLocalRef(jtop_probs);
+        jtop_tokens = env->NewIntArray(top_count);
+        jtop_probs = env->NewFloatArray(top_count);
+        env->SetObjectField(jstream, f_stream_top_tokens, jtop_tokens);
+        env->SetObjectField(jstream, f_stream_top_probabilities, jtop_probs);
+    }
+    if (top_count > 0) {
+        std::vector<jint> top_tokens(top_count);
+        std::vector<jfloat> top_probs(top_count);
+        for (jsize i = 0; i < top_count; i++) {
+            top_tokens[i] = output.probs[i].tok;
+            top_probs[i] = output.probs[i].prob;
+        }
+        env->SetIntArrayRegion(jtop_tokens, 0, top_count, top_tokens.data());
+        env->SetFloatArrayRegion(jtop_probs, 0, top_count, top_probs.data());
+    }
+    env->SetIntField(jstream, f_stream_top_count, top_count);
+    env->DeleteLocalRef(jtop_tokens);
+    env->DeleteLocalRef(jtop_probs);
+
+    return true;
+}
+
+JNIEXPORT jfloatArray JNICALL Java_de_kherud_llama_LlamaModel_computeEmbedding(JNIEnv *env, jobject obj,
+                                                                              jstring jprompt) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    if (!ctx_server->params_base.embedding) {
+        env->ThrowNew(c_llama_error,
+                      "model was not loaded with embedding support (see ModelParameters#setEmbedding(boolean))");
+        return nullptr;
+    }
+
+    const std::string prompt = parse_jstring(env, jprompt);
+
+    SRV_INF("Calling embedding '%s'\n", prompt.c_str());
+
+    const auto tokens = tokenize_mixed(ctx_server->vocab, prompt, true, true);
+    std::vector<server_task> tasks;
+
+    server_task task = server_task(SERVER_TASK_TYPE_EMBEDDING);
+
+    task.id = ctx_server->queue_tasks.get_new_id();
+    task.index = 0;
+    task.prompt_tokens = std::move(tokens);
+
+    // OAI-compat
+    task.params.oaicompat = OAICOMPAT_TYPE_NONE;
+
+    tasks.push_back(task);
+
+    ctx_server->queue_results.add_waiting_tasks(tasks);
+    ctx_server->queue_tasks.post(tasks);
+
+    std::unordered_set<int> task_ids = server_task::get_list_id(tasks);
+    const auto id_task = *task_ids.begin();
+    json responses = json::array();
+
+    json error = nullptr;
 
     server_task_result_ptr result = ctx_server->queue_results.recv(id_task);
 
     json response_str = result->to_json();
     if (result->is_error()) {
-        std::string response = result->to_json()["message"].get<std::string>();
         ctx_server->queue_results.remove_waiting_task_id(id_task);
-        env->ThrowNew(c_llama_error, response.c_str());
+        env->Throw(result_to_jerror(env, result.get()));
         return nullptr;
     }
 
@@ -672,6 +1414,201 @@ JNIEXPORT jfloatArray JNICALL Java_de_kherud_llama_LlamaModel_embed(JNIEnv *env,
     return j_embedding;
 }
 
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_saveSlot(JNIEnv *env, jobject obj, jint id_slot,
+                                                                   jstring jfilename) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task task(SERVER_TASK_TYPE_SLOT_SAVE);
+    if (!create_slot_file_task(env, ctx_server, id_slot, jfilename, task)) {
+        return nullptr;
+    }
+    return run_slot_task(env, ctx_server, task);
+}
+
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_restoreSlot(JNIEnv *env, jobject obj, jint id_slot,
+                                                                      jstring jfilename) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task task(SERVER_TASK_TYPE_SLOT_RESTORE);
+    if (!create_slot_file_task(env, ctx_server, id_slot, jfilename, task)) {
+        return nullptr;
+    }
+    return run_slot_task(env, ctx_server, task);
+}
+
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_eraseSlot(JNIEnv *env, jobject obj, jint id_slot) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task task(SERVER_TASK_TYPE_SLOT_ERASE);
+    task.slot_action.slot_id = id_slot;
+    return run_slot_task(env, ctx_server, task);
+}
+
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_exportSlotState(JNIEnv *env, jobject obj, jint id_slot,
+                                                                          jobject jbuffer, jint offset, jint limit) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task task(SERVER_TASK_TYPE_SLOT_EXPORT);
+    task.slot_action.slot_id = id_slot;
+    if (jbuffer != nullptr) {
+        auto *buffer = static_cast<uint8_t *>(env->GetDirectBufferAddress(jbuffer));
+        if (buffer == nullptr) {
+            env->ThrowNew(c_llama_error, "slot states can only be exported to direct buffers");
+            return nullptr;
+        }
+        task.slot_action.data = buffer + offset;
+        task.slot_action.size = limit - offset;
+    }
+    // the buffer stays reachable while this thread waits for the result
+    return run_slot_task(env, ctx_server, task);
+}
+
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_importSlotState(JNIEnv *env, jobject obj, jint id_slot,
+                                                                          jobject jbuffer, jint offset, jint limit) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    auto *buffer = static_cast<uint8_t *>(env->GetDirectBufferAddress(jbuffer));
+    if (buffer == nullptr) {
+        env->ThrowNew(c_llama_error, "slot states can only be imported from direct buffers");
+        return nullptr;
+    }
+
+    server_task task(SERVER_TASK_TYPE_SLOT_IMPORT);
+    task.slot_action.slot_id = id_slot;
+    task.slot_action.data = buffer + offset;
+    task.slot_action.size = limit - offset;
+    return run_slot_task(env, ctx_server, task);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_de_kherud_llama_LlamaModel_embedAll(JNIEnv *env, jobject obj,
+                                                                        jobjectArray jprompts) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    if (!ctx_server->params_base.embedding) {
+        env->ThrowNew(c_llama_error,
+                      "model was not loaded with embedding support (see ModelParameters#setEmbedding(boolean))");
+        return nullptr;
+    }
+
+    const jsize amount_prompts = env->GetArrayLength(jprompts);
+
+    // tokenize all prompts first and post the tasks at once, so they can be batched across slots
+    std::vector<server_task> tasks = create_embedding_tasks(env, ctx_server, jprompts);
+
+    jobjectArray j_embeddings = env->NewObjectArray(amount_prompts, c_float_array, nullptr);
+    if (j_embeddings == nullptr) {
+        env->ThrowNew(c_error_oom, "could not allocate embeddings");
+        return nullptr;
+    }
+    if (amount_prompts == 0) {
+        return j_embeddings;
+    }
+
+    ctx_server->queue_results.add_waiting_tasks(tasks);
+    ctx_server->queue_tasks.post(tasks);
+
+    const std::unordered_set<int> task_ids = server_task::get_list_id(tasks);
+    const int n_embd = llama_model_n_embd(ctx_server->model);
+
+    for (size_t i = 0; i < task_ids.size(); i++) {
+        server_task_result_ptr result = ctx_server->queue_results.recv(task_ids);
+
+        if (result->is_error()) {
+            ctx_server->cancel_tasks(task_ids);
+            env->Throw(result_to_jerror(env, result.get()));
+            return nullptr;
+        }
+
+        auto *res_embd = dynamic_cast<server_task_result_embd *>(result.get());
+        if (res_embd == nullptr || res_embd->embedding.empty() || (int)res_embd->embedding[0].size() != n_embd) {
+            ctx_server->cancel_tasks(task_ids);
+            env->ThrowNew(c_llama_error, "unexpected embedding result");
+            return nullptr;
+        }
+
+        // like embed(String), only the first row is returned if there is no pooling
+        jfloatArray j_embedding = env->NewFloatArray(n_embd);
+        if (j_embedding == nullptr) {
+            ctx_server->cancel_tasks(task_ids);
+            env->ThrowNew(c_error_oom, "could not allocate embedding");
+            return nullptr;
+        }
+        env->SetFloatArrayRegion(j_embedding, 0, n_embd, res_embd->embedding[0].data());
+        env->SetObjectArrayElement(j_embeddings, res_embd->index, j_embedding);
+        env->DeleteLocalRef(j_embedding);
+    }
+
+    ctx_server->queue_results.remove_waiting_task_ids(task_ids);
+
+    return j_embeddings;
+}
+
+JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_embedIntoBuffer(JNIEnv *env, jobject obj,
+                                                                       jobjectArray jprompts, jobject jbuffer,
+                                                                       jint offset) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    if (!ctx_server->params_base.embedding) {
+        env->ThrowNew(c_llama_error,
+                      "model was not loaded with embedding support (see ModelParameters#setEmbedding(boolean))");
+        return;
+    }
+
+    auto *buffer = static_cast<float *>(env->GetDirectBufferAddress(jbuffer));
+    const jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+    if (buffer == nullptr || capacity < 0) {
+        env->ThrowNew(c_llama_error, "embeddings can only be written to direct buffers");
+        return;
+    }
+
+    const jsize amount_prompts = env->GetArrayLength(jprompts);
+    const int n_embd = llama_model_n_embd(ctx_server->model);
+    if (offset < 0 || offset + (jlong)amount_prompts * n_embd > capacity) {
+        env->ThrowNew(c_llama_error, "buffer is too small for the embeddings");
+        return;
+    }
+    if (amount_prompts == 0) {
+        return;
+    }
+
+    std::vector<server_task> tasks = create_embedding_tasks(env, ctx_server, jprompts);
+    for (auto &task : tasks) {
+        task.embd_out = buffer + offset + (size_t)task.index * n_embd;
+    }
+
+    ctx_server->queue_results.add_waiting_tasks(tasks);
+    ctx_server->queue_tasks.post(tasks);
+
+    // the slots write into the buffer until their task is done, so wait for all of them even if one failed
+    const std::unordered_set<int> task_ids = server_task::get_list_id(tasks);
+    server_task_result_ptr error;
+    for (size_t i = 0; i < task_ids.size(); i++) {
+        server_task_result_ptr result = ctx_server->queue_results.recv(task_ids);
+        if (result->is_error() && error == nullptr) {
+            error = std::move(result);
+        }
+    }
+
+    ctx_server->queue_results.remove_waiting_task_ids(task_ids);
+
+    if (error != nullptr) {
+        env->Throw(result_to_jerror(env, error.get()));
+    }
+}
+
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_getEmbeddingSize(JNIEnv *env, jobject obj) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+    return llama_model_n_embd(ctx_server->model);
+}
+
 JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_rerank(JNIEnv *env, jobject obj, jstring jprompt,
                                                                  jobjectArray documents) {
     jlong server_handle = env->GetLongField(obj, f_model_pointer);
@@ -722,11 +1659,10 @@ JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_rerank(JNIEnv *env, jo
     for (int i = 0; i < (int)task_ids.size(); i++) {
         server_task_result_ptr result = ctx_server->queue_results.recv(task_ids);
         if (result->is_error()) {
-            auto response = result->to_json()["message"].get<std::string>();
             for (const int id_task : task_ids) {
                 ctx_server->queue_results.remove_waiting_task_id(id_task);
             }
-            env->ThrowNew(c_llama_error, response.c_str());
+            env->Throw(result_to_jerror(env, result.get()));
             return nullptr;
         }
 
@@ -749,7 +1685,7 @@ JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_rerank(JNIEnv *env, jo
         env->DeleteLocalRef(jprob);
     }
     jbyteArray jbytes = parse_jbytes(env, prompt);
-    return env->NewObject(c_output, cc_output, jbytes, o_probabilities, true);
+    return env->NewObject(c_output, cc_output, jbytes, o_probabilities, true, 0);
 }
 
 JNIEXPORT jstring JNICALL Java_de_kherud_llama_LlamaModel_applyTemplate(JNIEnv *env, jobject obj, jstring jparams) {
@@ -768,7 +1704,7 @@ JNIEXPORT jstring JNICALL Java_de_kherud_llama_LlamaModel_applyTemplate(JNIEnv *
     return jtok_str;
 }
 
-JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_encode(JNIEnv *env, jobject obj, jstring jprompt) {
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_tokenize(JNIEnv *env, jobject obj, jstring jprompt) {
     jlong server_handle = env->GetLongField(obj, f_model_pointer);
     auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
 
@@ -788,21 +1724,281 @@ JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_encode(JNIEnv *env,
     return java_tokens;
 }
 
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_tokenizeContinuation(JNIEnv *env, jobject obj,
+                                                                                 jstring jtext) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    const llama_tokens tokens = tokenize_continuation(ctx_server->vocab, parse_jstring(env, jtext), true);
+    jsize token_size = tokens.size(); // NOLINT(*-narrowing-conversions)
+
+    jintArray java_tokens = env->NewIntArray(token_size);
+    if (java_tokens == nullptr) {
+        env->ThrowNew(c_error_oom, "could not allocate token memory");
+        return nullptr;
+    }
+
+    env->SetIntArrayRegion(java_tokens, 0, token_size, reinterpret_cast<const jint *>(tokens.data()));
+
+    return java_tokens;
+}
+
+JNIEXPORT jstring JNICALL Java_de_kherud_llama_LlamaModel_getModelMeta(JNIEnv *env, jobject obj) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    char desc[256];
+    llama_model_desc(ctx_server->model, desc, sizeof(desc));
+
+    json meta = ctx_server->model_meta();
+    meta["model"] = ctx_server->params_base.model;
+    meta["desc"] = desc;
+    meta["pooling_type"] = llama_pooling_type(ctx_server->ctx);
+
+    return env->NewStringUTF(meta.dump().c_str());
+}
+
+JNIEXPORT jstring JNICALL Java_de_kherud_llama_LlamaModel_getMetrics(JNIEnv *env, jobject obj) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    server_task task(SERVER_TASK_TYPE_METRICS);
+    task.id = ctx_server->queue_tasks.get_new_id();
+    ctx_server->queue_results.add_waiting_task_id(task.id);
+    // metrics are collected before any other pending task is processed
+    ctx_server->queue_tasks.post(task, true);
+
+    server_task_result_ptr result = ctx_server->queue_results.recv(task.id);
+    ctx_server->queue_results.remove_waiting_task_id(task.id);
+
+    if (result->is_error()) {
+        env->Throw(result_to_jerror(env, result.get()));
+        return nullptr;
+    }
+
+    return env->NewStringUTF(result->to_json().dump().c_str());
+}
+
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_setSharedPrefix(JNIEnv *env, jobject obj, jstring jprefix) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    // the shared sequence is copied cell by cell, which the state of recurrent models doesn't allow
+    if (llama_model_is_recurrent(ctx_server->model)) {
+        env->ThrowNew(c_llama_error, "shared prefixes are not supported by recurrent models");
+        return 0;
+    }
+
+    const std::string prefix = parse_jstring(env, jprefix);
+
+    server_task task(SERVER_TASK_TYPE_SHARED_PREFIX);
+    task.id = ctx_server->queue_tasks.get_new_id();
+    if (!prefix.empty()) {
+        task.prompt_tokens = tokenize_mixed(ctx_server->vocab, prefix, true, true);
+    }
+    ctx_server->queue_results.add_waiting_task_id(task.id);
+    ctx_server->queue_tasks.post(task);
+
+    server_task_result_ptr result = ctx_server->queue_results.recv(task.id);
+    ctx_server->queue_results.remove_waiting_task_id(task.id);
+
+    if (result->is_error()) {
+        env->Throw(result_to_jerror(env, result.get()));
+        return 0;
+    }
+
+    return static_cast<server_task_result_shared_prefix *>(result.get())->n_tokens;
+}
+
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_getBosToken(JNIEnv *env, jobject obj) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    if (!llama_vocab_get_add_bos(ctx_server->vocab)) {
+        return -1;
+    }
+    return llama_vocab_bos(ctx_server->vocab);
+}
+
 JNIEXPORT jbyteArray JNICALL Java_de_kherud_llama_LlamaModel_decodeBytes(JNIEnv *env, jobject obj,
                                                                          jintArray java_tokens) {
     jlong server_handle = env->GetLongField(obj, f_model_pointer);
     auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
 
     jsize length = env->GetArrayLength(java_tokens);
-    jint *elements = env->GetIntArrayElements(java_tokens, nullptr);
-    std::vector<llama_token> tokens(elements, elements + length);
+    std::vector<llama_token> tokens(length);
+    env->GetIntArrayRegion(java_tokens, 0, length, reinterpret_cast<jint *>(tokens.data()));
     std::string text = tokens_to_str(ctx_server->ctx, tokens.cbegin(), tokens.cend());
 
-    env->ReleaseIntArrayElements(java_tokens, elements, 0);
-
     return parse_jbytes(env, text);
 }
 
+JNIEXPORT jobjectArray JNICALL Java_de_kherud_llama_LlamaModel_encodeAll(JNIEnv *env, jobject obj,
+                                                                         jobjectArray jprompts) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    std::vector<llama_tokens> tokens = tokenize_jstrings(env, ctx_server->vocab, jprompts);
+
+    jobjectArray java_tokens = env->NewObjectArray(tokens.size(), c_int_array, nullptr);
+    if (java_tokens == nullptr) {
+        env->ThrowNew(c_error_oom, "could not allocate token memory");
+        return nullptr;
+    }
+
+    for (size_t i = 0; i < tokens.size(); i++) {
+        jsize token_size = tokens[i].size(); // NOLINT(*-narrowing-conversions)
+        jintArray java_prompt_tokens = env->NewIntArray(token_size);
+        if (java_prompt_tokens == nullptr) {
+            env->ThrowNew(c_error_oom, "could not allocate token memory");
+            return nullptr;
+        }
+        env->SetIntArrayRegion(java_prompt_tokens, 0, token_size, reinterpret_cast<const jint *>(tokens[i].data()));
+        env->SetObjectArrayElement(java_tokens, i, java_prompt_tokens);
+        env->DeleteLocalRef(java_prompt_tokens);
+    }
+
+    return java_tokens;
+}
+
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_encodeIntoBuffer(JNIEnv *env, jobject obj,
+                                                                        jobjectArray jprompts, jobject jtokens,
+                                                                        jint tokens_offset, jint tokens_limit,
+                                                                        jobject jlengths, jint lengths_offset) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    auto *tokens_buffer = static_cast<jint *>(env->GetDirectBufferAddress(jtokens));
+    auto *lengths_buffer = static_cast<jint *>(env->GetDirectBufferAddress(jlengths));
+    if (tokens_buffer == nullptr || lengths_buffer == nullptr) {
+        env->ThrowNew(c_llama_error, "tokens can only be written to direct buffers");
+        return 0;
+    }
+
+    std::vector<llama_tokens> tokens = tokenize_jstrings(env, ctx_server->vocab, jprompts);
+
+    size_t n_tokens = 0;
+    for (const auto &prompt_tokens : tokens) {
+        n_tokens += prompt_tokens.size();
+    }
+    // nothing is written if the tokens don't fit, the caller has to check the returned amount
+    if (n_tokens > (size_t)(tokens_limit - tokens_offset)) {
+        return n_tokens; // NOLINT(*-narrowing-conversions)
+    }
+
+    jint *out = tokens_buffer + tokens_offset;
+    for (size_t i = 0; i < tokens.size(); i++) {
+        std::memcpy(out, tokens[i].data(), tokens[i].size() * sizeof(jint));
+        out += tokens[i].size();
+        lengths_buffer[lengths_offset + i] = tokens[i].size(); // NOLINT(*-narrowing-conversions)
+    }
+
+    return n_tokens; // NOLINT(*-narrowing-conversions)
+}
+
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_countTokens(JNIEnv *env, jobject obj, jstring jtext) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    return count_tokens(ctx_server->vocab, parse_jstring(env, jtext));
+}
+
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_countAll(JNIEnv *env, jobject obj, jobjectArray jtexts,
+                                                                     jboolean continuation) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    const jsize amount_texts = env->GetArrayLength(jtexts);
+    std::vector<std::string> texts;
+    texts.reserve(amount_texts);
+    size_t n_bytes = 0;
+    for (jsize i = 0; i < amount_texts; i++) {
+        auto *jtext = static_cast<jstring>(env->GetObjectArrayElement(jtexts, i));
+        texts.push_back(parse_jstring(env, jtext));
+        n_bytes += texts.back().size();
+        env->DeleteLocalRef(jtext);
+    }
+
+    // Texts that continue a previous one start with whitespace. Tokenizers that prepend a space to the beginning of a
+    // text would count it twice, so such texts are counted after an anchor instead, whose tokens are subtracted.
+    const std::string anchor = continuation ? "." : "";
+    const int32_t n_anchor = continuation ? count_tokens(ctx_server->vocab, anchor) : 0;
+
+    std::vector<jint> counts(amount_texts);
+    parallel_for(texts.size(), n_bytes,
+                 [&](size_t i) { counts[i] = count_tokens(ctx_server->vocab, anchor + texts[i]) - n_anchor; });
+
+    jintArray java_counts = env->NewIntArray(amount_texts);
+    if (java_counts == nullptr) {
+        env->ThrowNew(c_error_oom, "could not allocate token count memory");
+        return nullptr;
+    }
+    env->SetIntArrayRegion(java_counts, 0, amount_texts, counts.data());
+
+    return java_counts;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_de_kherud_llama_LlamaModel_decodeAll(JNIEnv *env, jobject obj,
+                                                                         jobjectArray java_tokens) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    const jsize amount_sequences = env->GetArrayLength(java_tokens);
+    std::vector<llama_tokens> tokens(amount_sequences);
+    size_t n_tokens = 0;
+    for (jsize i = 0; i < amount_sequences; i++) {
+        auto *java_sequence = static_cast<jintArray>(env->GetObjectArrayElement(java_tokens, i));
+        jsize length = env->GetArrayLength(java_sequence);
+        n_tokens += length;
+        tokens[i].resize(length);
+        env->GetIntArrayRegion(java_sequence, 0, length, reinterpret_cast<jint *>(tokens[i].data()));
+        env->DeleteLocalRef(java_sequence);
+    }
+
+    // a token is about four bytes of text
+    std::vector<std::string> texts(amount_sequences);
+    parallel_for(tokens.size(), 4 * n_tokens,
+                 [&](size_t i) { texts[i] = tokens_to_str(ctx_server->ctx, tokens[i].cbegin(), tokens[i].cend()); });
+
+    jobjectArray java_texts = env->NewObjectArray(amount_sequences, c_byte_array, nullptr);
+    if (java_texts == nullptr) {
+        env->ThrowNew(c_error_oom, "could not allocate text memory");
+        return nullptr;
+    }
+
+    for (jsize i = 0; i < amount_sequences; i++) {
+        jbyteArray jbytes = parse_jbytes(env, texts[i]);
+        env->SetObjectArrayElement(java_texts, i, jbytes);
+        env->DeleteLocalRef(jbytes);
+    }
+
+    return java_texts;
+}
+
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_decodeIntoBuffer(JNIEnv *env, jobject obj, jobject jtokens,
+                                                                        jint tokens_offset, jint tokens_limit,
+                                                                        jobject jtext, jint text_offset,
+                                                                        jint text_limit) {
+    jlong server_handle = env->GetLongField(obj, f_model_pointer);
+    auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
+
+    const auto *tokens_buffer = static_cast<const llama_token *>(env->GetDirectBufferAddress(jtokens));
+    auto *text_buffer = static_cast<char *>(env->GetDirectBufferAddress(jtext));
+    if (tokens_buffer == nullptr || text_buffer == nullptr) {
+        env->ThrowNew(c_llama_error, "tokens can only be read from direct buffers");
+        return 0;
+    }
+
+    std::string text = tokens_to_str(ctx_server->ctx, tokens_buffer + tokens_offset, tokens_buffer + tokens_limit);
+
+    // nothing is written if the text doesn't fit, the caller has to check the returned amount
+    if (text.size() <= (size_t)(text_limit - text_offset)) {
+        std::memcpy(text_buffer + text_offset, text.data(), text.size());
+    }
+
+    return text.size(); // NOLINT(*-narrowing-conversions)
+}
+
 JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_delete(JNIEnv *env, jobject obj) {
     jlong server_handle = env->GetLongField(obj, f_model_pointer);
     auto *ctx_server = reinterpret_cast<server_context *>(server_handle); // NOLINT(*-no-int-to-ptr)
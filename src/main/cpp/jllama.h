@@ -9,17 +9,108 @@ extern "C" {
 #endif
 /*
  * Class:     de_kherud_llama_LlamaModel
- * Method:    embed
+ * Method:    computeEmbedding
  * Signature: (Ljava/lang/String;)[F
  */
-JNIEXPORT jfloatArray JNICALL Java_de_kherud_llama_LlamaModel_embed(JNIEnv *, jobject, jstring);
+JNIEXPORT jfloatArray JNICALL Java_de_kherud_llama_LlamaModel_computeEmbedding(JNIEnv *, jobject, jstring);
 
 /*
  * Class:     de_kherud_llama_LlamaModel
- * Method:    encode
+ * Method:    getModelMeta
+ * Signature: ()Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_de_kherud_llama_LlamaModel_getModelMeta(JNIEnv *, jobject);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    getMetrics
+ * Signature: ()Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_de_kherud_llama_LlamaModel_getMetrics(JNIEnv *, jobject);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    setSharedPrefix
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_setSharedPrefix(JNIEnv *, jobject, jstring);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    saveSlot
+ * Signature: (ILjava/lang/String;)Lde/kherud/llama/SlotResult;
+ */
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_saveSlot(JNIEnv *, jobject, jint, jstring);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    restoreSlot
+ * Signature: (ILjava/lang/String;)Lde/kherud/llama/SlotResult;
+ */
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_restoreSlot(JNIEnv *, jobject, jint, jstring);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    eraseSlot
+ * Signature: (I)Lde/kherud/llama/SlotResult;
+ */
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_eraseSlot(JNIEnv *, jobject, jint);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    exportSlotState
+ * Signature: (ILjava/nio/ByteBuffer;II)Lde/kherud/llama/SlotResult;
+ */
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_exportSlotState(JNIEnv *, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    importSlotState
+ * Signature: (ILjava/nio/ByteBuffer;II)Lde/kherud/llama/SlotResult;
+ */
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_importSlotState(JNIEnv *, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    embedAll
+ * Signature: ([Ljava/lang/String;)[[F
+ */
+JNIEXPORT jobjectArray JNICALL Java_de_kherud_llama_LlamaModel_embedAll(JNIEnv *, jobject, jobjectArray);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    embedIntoBuffer
+ * Signature: ([Ljava/lang/String;Ljava/nio/FloatBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_embedIntoBuffer(JNIEnv *, jobject, jobjectArray, jobject, jint);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    getEmbeddingSize
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_getEmbeddingSize(JNIEnv *, jobject);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    tokenize
+ * Signature: (Ljava/lang/String;)[I
+ */
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_tokenize(JNIEnv *, jobject, jstring);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    tokenizeContinuation
  * Signature: (Ljava/lang/String;)[I
  */
-JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_encode(JNIEnv *, jobject, jstring);
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_tokenizeContinuation(JNIEnv *, jobject, jstring);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    getBosToken
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_getBosToken(JNIEnv *, jobject);
 
 /*
  * Class:     de_kherud_llama_LlamaModel
@@ -35,6 +126,42 @@ JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_setLogger(JNIEnv *, jclas
  */
 JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestCompletion(JNIEnv *, jobject, jstring);
 
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    requestCompletions
+ * Signature: (Ljava/lang/String;)[I
+ */
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_requestCompletions(JNIEnv *, jobject, jstring);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    requestBinaryCompletion
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestBinaryCompletion(JNIEnv *, jobject, jobject);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    requestAsyncCompletion
+ * Signature: (Ljava/lang/String;Ljava/util/concurrent/CompletableFuture;)I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestAsyncCompletion(JNIEnv *, jobject, jstring, jobject);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    requestStreamingCompletion
+ * Signature: (Ljava/lang/String;Lde/kherud/llama/LlamaOutputSink;)I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestStreamingCompletion(JNIEnv *, jobject, jstring,
+                                                                                 jobject);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    resumeCompletion
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_resumeCompletion(JNIEnv *, jobject, jint);
+
 /*
  * Class:     de_kherud_llama_LlamaModel
  * Method:    receiveCompletion
@@ -42,6 +169,27 @@ JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_requestCompletion(JNIEnv
  */
 JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_receiveCompletion(JNIEnv *, jobject, jint);
 
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    receiveCompletionTimed
+ * Signature: (IJ)Lde/kherud/llama/LlamaOutput;
+ */
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_receiveCompletionTimed(JNIEnv *, jobject, jint, jlong);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    receiveAnyCompletion
+ * Signature: ([I)Lde/kherud/llama/LlamaOutput;
+ */
+JNIEXPORT jobject JNICALL Java_de_kherud_llama_LlamaModel_receiveAnyCompletion(JNIEnv *, jobject, jintArray);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    receiveTokens
+ * Signature: (ILde/kherud/llama/LlamaTokenStream;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_de_kherud_llama_LlamaModel_receiveTokens(JNIEnv *, jobject, jint, jobject);
+
 /*
  * Class:     de_kherud_llama_LlamaModel
  * Method:    cancelCompletion
@@ -56,6 +204,50 @@ JNIEXPORT void JNICALL Java_de_kherud_llama_LlamaModel_cancelCompletion(JNIEnv *
  */
 JNIEXPORT jbyteArray JNICALL Java_de_kherud_llama_LlamaModel_decodeBytes(JNIEnv *, jobject, jintArray);
 
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    encodeAll
+ * Signature: ([Ljava/lang/String;)[[I
+ */
+JNIEXPORT jobjectArray JNICALL Java_de_kherud_llama_LlamaModel_encodeAll(JNIEnv *, jobject, jobjectArray);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    encodeIntoBuffer
+ * Signature: ([Ljava/lang/String;Ljava/nio/IntBuffer;IILjava/nio/IntBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_encodeIntoBuffer(JNIEnv *, jobject, jobjectArray, jobject, jint,
+                                                                        jint, jobject, jint);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    countTokens
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_countTokens(JNIEnv *, jobject, jstring);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    countAll
+ * Signature: ([Ljava/lang/String;Z)[I
+ */
+JNIEXPORT jintArray JNICALL Java_de_kherud_llama_LlamaModel_countAll(JNIEnv *, jobject, jobjectArray, jboolean);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    decodeAll
+ * Signature: ([[I)[[B
+ */
+JNIEXPORT jobjectArray JNICALL Java_de_kherud_llama_LlamaModel_decodeAll(JNIEnv *, jobject, jobjectArray);
+
+/*
+ * Class:     de_kherud_llama_LlamaModel
+ * Method:    decodeIntoBuffer
+ * Signature: (Ljava/nio/IntBuffer;IILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_de_kherud_llama_LlamaModel_decodeIntoBuffer(JNIEnv *, jobject, jobject, jint, jint, jobject,
+                                                                        jint, jint);
+
 /*
  * Class:     de_kherud_llama_LlamaModel
  * Method:    loadModel
@@ -4,12 +4,18 @@
 #include "sampling.h"
 #include "speculative.h"
 
+#include <algorithm>
 #include <atomic>
 #include <chrono>
 #include <cinttypes>
 #include <condition_variable>
 #include <cstddef>
+#include <cstring>
 #include <deque>
+#include <filesystem>
+#include <fstream>
+#include <functional>
+#include <map>
 #include <memory>
 #include <mutex>
 #include <signal.h>
@@ -49,14 +55,51 @@ enum server_task_type {
     SERVER_TASK_TYPE_RERANK,
     SERVER_TASK_TYPE_INFILL,
     SERVER_TASK_TYPE_CANCEL,
+    SERVER_TASK_TYPE_RESUME,
     SERVER_TASK_TYPE_NEXT_RESPONSE,
     SERVER_TASK_TYPE_METRICS,
     SERVER_TASK_TYPE_SLOT_SAVE,
     SERVER_TASK_TYPE_SLOT_RESTORE,
     SERVER_TASK_TYPE_SLOT_ERASE,
+    SERVER_TASK_TYPE_SLOT_EXPORT,
+    SERVER_TASK_TYPE_SLOT_IMPORT,
+    SERVER_TASK_TYPE_SHARED_PREFIX,
     SERVER_TASK_TYPE_SET_LORA,
 };
 
+// scalar inference parameters that can be sent in binary form (see server_task::params_from_binary)
+// note: the order has to match InferenceParameters#BINARY_PARAMS on the Java side
+enum binary_param {
+    BINARY_PARAM_STREAM,
+    BINARY_PARAM_CACHE_PROMPT,
+    BINARY_PARAM_N_PREDICT,
+    BINARY_PARAM_TOP_K,
+    BINARY_PARAM_TOP_P,
+    BINARY_PARAM_MIN_P,
+    BINARY_PARAM_TYPICAL_P,
+    BINARY_PARAM_TEMPERATURE,
+    BINARY_PARAM_DYNATEMP_RANGE,
+    BINARY_PARAM_DYNATEMP_EXPONENT,
+    BINARY_PARAM_REPEAT_LAST_N,
+    BINARY_PARAM_REPEAT_PENALTY,
+    BINARY_PARAM_FREQUENCY_PENALTY,
+    BINARY_PARAM_PRESENCE_PENALTY,
+    BINARY_PARAM_MIROSTAT,
+    BINARY_PARAM_MIROSTAT_TAU,
+    BINARY_PARAM_MIROSTAT_ETA,
+    BINARY_PARAM_N_KEEP,
+    BINARY_PARAM_SEED,
+    BINARY_PARAM_N_PROBS,
+    BINARY_PARAM_MIN_KEEP,
+    BINARY_PARAM_IGNORE_EOS,
+    BINARY_PARAM_ID_SLOT,
+    BINARY_PARAM_STREAM_TOKENS,
+    BINARY_PARAM_PRIORITY,
+    BINARY_PARAM_DEADLINE,
+
+    BINARY_PARAM_COUNT,
+};
+
 enum oaicompat_type {
     OAICOMPAT_TYPE_NONE,
     OAICOMPAT_TYPE_CHAT,
@@ -73,12 +116,24 @@ enum error_type {
     ERROR_TYPE_PERMISSION,
     ERROR_TYPE_UNAVAILABLE,   // custom error
     ERROR_TYPE_NOT_SUPPORTED, // custom error
+    ERROR_TYPE_TIMEOUT,       // custom error
+    ERROR_TYPE_SESSION,       // custom error, the cached conversation of a session is not available anymore
 };
 
+// the current time in ms since the epoch, which is the clock of the deadlines of tasks
+static int64_t time_ms_since_epoch() {
+    return std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::system_clock::now().time_since_epoch())
+        .count();
+}
+
 struct slot_params {
     bool stream = true;
+    bool stream_tokens = false; // in stream mode, also send tokens that end with an incomplete UTF-8 character
     bool cache_prompt = true; // remember the prompt to avoid reprocessing all prompt
     bool return_tokens = false;
+    bool prompt_append = false; // the prompt follows the cached tokens of the session in the selected slot
+
+    int64_t id_session = -1; // the session whose conversation is cached by the slot, see ChatSession
 
     int32_t n_keep = 0; // number of tokens to keep from initial prompt
     int32_t n_discard =
@@ -86,9 +141,12 @@ struct slot_params {
     int32_t n_predict = -1; // new tokens to predict
     int32_t n_indent = 0;   // mininum line indentation for the generated text in number of whitespace characters
 
-    int64_t t_max_prompt_ms = -1;  // TODO: implement
+    int64_t t_max_prompt_ms = -1;  // if positive, limit the prompt processing phase to this time limit
     int64_t t_max_predict_ms = -1; // if positive, limit the generation phase to this time limit
 
+    int32_t priority = 0;    // deferred tasks with a higher priority are processed first
+    int64_t t_deadline = -1; // if positive, the time the task should be done by in ms since the epoch
+
     std::vector<common_adapter_lora_info> lora;
 
     std::vector<std::string> antiprompt;
@@ -107,6 +165,9 @@ struct slot_params {
     std::string oaicompat_cmpl_id;
     common_chat_format oaicompat_chat_format = COMMON_CHAT_FORMAT_CONTENT_ONLY;
 
+    // whether the deadline has passed at the given time in ms since the epoch
+    bool is_expired(int64_t t_now_ms) const { return t_deadline > 0 && t_now_ms >= t_deadline; }
+
     json to_json() const {
         std::vector<std::string> samplers;
         samplers.reserve(sampling.samplers.size());
@@ -152,6 +213,8 @@ struct slot_params {
             {"max_tokens", n_predict}, // User configured n_predict
             {"n_keep", n_keep},
             {"n_discard", n_discard},
+            {"priority", priority},
+            {"deadline", t_deadline},
             {"ignore_eos", sampling.ignore_eos},
             {"stream", stream},
             {"logit_bias", format_logit_bias(sampling.logit_bias)},
@@ -179,25 +242,37 @@ struct server_task {
 
     server_task_type type;
 
-    // used by SERVER_TASK_TYPE_CANCEL
+    // used by SERVER_TASK_TYPE_CANCEL, SERVER_TASK_TYPE_RESUME
     int id_target = -1;
 
-    // used by SERVER_TASK_TYPE_INFERENCE
+    // used by SERVER_TASK_TYPE_INFERENCE, SERVER_TASK_TYPE_SHARED_PREFIX
     slot_params params;
     llama_tokens prompt_tokens;
     int id_selected_slot = -1;
 
-    // used by SERVER_TASK_TYPE_SLOT_SAVE, SERVER_TASK_TYPE_SLOT_RESTORE, SERVER_TASK_TYPE_SLOT_ERASE
+    // used by SERVER_TASK_TYPE_EMBEDDING, if set the embedding is written here instead of the result
+    float *embd_out = nullptr;
+
+    // used by SERVER_TASK_TYPE_SLOT_SAVE, SERVER_TASK_TYPE_SLOT_RESTORE, SERVER_TASK_TYPE_SLOT_ERASE,
+    // SERVER_TASK_TYPE_SLOT_EXPORT, SERVER_TASK_TYPE_SLOT_IMPORT
     struct slot_action {
         int slot_id;
         std::string filename;
         std::string filepath;
+        // the memory the state is exported to or imported from, which is owned by the caller
+        uint8_t *data = nullptr;
+        size_t size = 0;
     };
     slot_action slot_action;
 
     // used by SERVER_TASK_TYPE_METRICS
     bool metrics_reset_bucket = false;
 
+    // the time the task was first posted, to measure how long it waited for a slot
+    int64_t t_queued = -1;
+    // whether the task was deferred before, so that it isn't rejected once it was admitted (see try_defer)
+    bool admitted = false;
+
     // used by SERVER_TASK_TYPE_SET_LORA
     std::vector<common_adapter_lora_info> set_lora;
 
@@ -221,15 +296,19 @@ struct server_task {
         params.timings_per_token = json_value(data, "timings_per_token", false);
 
         params.stream = json_value(data, "stream", false);
+        params.stream_tokens = json_value(data, "stream_tokens", false);
         params.cache_prompt = json_value(data, "cache_prompt", true);
         params.return_tokens = json_value(data, "return_tokens", false);
+        params.prompt_append = json_value(data, "prompt_append", false);
+        params.id_session = json_value(data, "id_session", defaults.id_session);
         params.n_predict = json_value(data, "n_predict", json_value(data, "max_tokens", defaults.n_predict));
         params.n_indent = json_value(data, "n_indent", defaults.n_indent);
         params.n_keep = json_value(data, "n_keep", defaults.n_keep);
         params.n_discard = json_value(data, "n_discard", defaults.n_discard);
-        // params.t_max_prompt_ms  = json_value(data, "t_max_prompt_ms",    defaults.t_max_prompt_ms); // TODO:
-        // implement
+        params.t_max_prompt_ms = json_value(data, "t_max_prompt_ms", defaults.t_max_prompt_ms);
         params.t_max_predict_ms = json_value(data, "t_max_predict_ms", defaults.t_max_predict_ms);
+        params.priority = json_value(data, "priority", defaults.priority);
+        params.t_deadline = json_value(data, "deadline", defaults.t_deadline);
         params.response_fields = json_value(data, "response_fields", std::vector<std::string>());
 
         params.sampling.top_k = json_value(data, "top_k", defaults.sampling.top_k);
@@ -464,6 +543,107 @@ struct server_task {
         return params;
     }
 
+    // same as params_from_json_cmpl(), but for requests that only set the scalar parameters of `binary_param`
+    // values holds one number per parameter, mask has the bits of the parameters set by the request
+    static slot_params params_from_binary(const llama_context *ctx, const common_params &params_base,
+                                          const double *values, uint64_t mask) {
+        slot_params params;
+
+        slot_params defaults;
+        defaults.sampling = params_base.sampling;
+        defaults.speculative = params_base.speculative;
+
+        auto has = [&](binary_param param) { return ((mask >> param) & 1) != 0; };
+        auto value = [&](binary_param param, auto fallback) -> decltype(fallback) {
+            return has(param) ? static_cast<decltype(fallback)>(values[param]) : fallback;
+        };
+
+        params.verbose = params_base.verbosity > 9;
+        params.timings_per_token = false;
+
+        params.stream = value(BINARY_PARAM_STREAM, false);
+        params.stream_tokens = value(BINARY_PARAM_STREAM_TOKENS, false);
+        params.cache_prompt = value(BINARY_PARAM_CACHE_PROMPT, true);
+        params.return_tokens = false;
+        params.n_predict = value(BINARY_PARAM_N_PREDICT, defaults.n_predict);
+        params.n_indent = defaults.n_indent;
+        params.n_keep = value(BINARY_PARAM_N_KEEP, defaults.n_keep);
+        params.n_discard = defaults.n_discard;
+        params.t_max_predict_ms = defaults.t_max_predict_ms;
+        params.priority = value(BINARY_PARAM_PRIORITY, defaults.priority);
+        params.t_deadline = value(BINARY_PARAM_DEADLINE, defaults.t_deadline);
+
+        params.sampling.top_k = value(BINARY_PARAM_TOP_K, defaults.sampling.top_k);
+        params.sampling.top_p = value(BINARY_PARAM_TOP_P, defaults.sampling.top_p);
+        params.sampling.min_p = value(BINARY_PARAM_MIN_P, defaults.sampling.min_p);
+        params.sampling.xtc_probability = defaults.sampling.xtc_probability;
+        params.sampling.xtc_threshold = defaults.sampling.xtc_threshold;
+        params.sampling.typ_p = value(BINARY_PARAM_TYPICAL_P, defaults.sampling.typ_p);
+        params.sampling.temp = value(BINARY_PARAM_TEMPERATURE, defaults.sampling.temp);
+        params.sampling.dynatemp_range = value(BINARY_PARAM_DYNATEMP_RANGE, defaults.sampling.dynatemp_range);
+        params.sampling.dynatemp_exponent =
+            value(BINARY_PARAM_DYNATEMP_EXPONENT, defaults.sampling.dynatemp_exponent);
+        params.sampling.penalty_last_n = value(BINARY_PARAM_REPEAT_LAST_N, defaults.sampling.penalty_last_n);
+        params.sampling.penalty_repeat = value(BINARY_PARAM_REPEAT_PENALTY, defaults.sampling.penalty_repeat);
+        params.sampling.penalty_freq = value(BINARY_PARAM_FREQUENCY_PENALTY, defaults.sampling.penalty_freq);
+        params.sampling.penalty_present = value(BINARY_PARAM_PRESENCE_PENALTY, defaults.sampling.penalty_present);
+        params.sampling.dry_multiplier = defaults.sampling.dry_multiplier;
+        params.sampling.dry_base = defaults.sampling.dry_base;
+        params.sampling.dry_allowed_length = defaults.sampling.dry_allowed_length;
+        params.sampling.dry_penalty_last_n = defaults.sampling.dry_penalty_last_n;
+        params.sampling.mirostat = value(BINARY_PARAM_MIROSTAT, defaults.sampling.mirostat);
+        params.sampling.mirostat_tau = value(BINARY_PARAM_MIROSTAT_TAU, defaults.sampling.mirostat_tau);
+        params.sampling.mirostat_eta = value(BINARY_PARAM_MIROSTAT_ETA, defaults.sampling.mirostat_eta);
+        // negative seeds wrap around like in the JSON path (-1 = LLAMA_DEFAULT_SEED)
+        params.sampling.seed = has(BINARY_PARAM_SEED)
+                                   ? static_cast<uint32_t>(static_cast<int64_t>(values[BINARY_PARAM_SEED]))
+                                   : defaults.sampling.seed;
+        params.sampling.n_probs = value(BINARY_PARAM_N_PROBS, defaults.sampling.n_probs);
+        params.sampling.min_keep = value(BINARY_PARAM_MIN_KEEP, defaults.sampling.min_keep);
+        params.post_sampling_probs = defaults.post_sampling_probs;
+
+        params.speculative.n_min = std::min(defaults.speculative.n_max, defaults.speculative.n_min);
+        params.speculative.n_min = std::max(params.speculative.n_min, 0);
+        params.speculative.n_max = std::max(defaults.speculative.n_max, 0);
+        params.speculative.p_min = defaults.speculative.p_min;
+
+        params.lora = params_base.lora_adapters;
+
+        if (params.sampling.penalty_last_n < -1) {
+            throw std::runtime_error("Error: repeat_last_n must be >= -1");
+        }
+
+        if (params.sampling.dry_penalty_last_n < -1) {
+            throw std::runtime_error("Error: dry_penalty_last_n must be >= -1");
+        }
+
+        if (params.sampling.penalty_last_n == -1) {
+            // note: should be the slot's context and not the full context, but it's ok
+            params.sampling.penalty_last_n = llama_n_ctx(ctx);
+        }
+
+        if (params.sampling.dry_penalty_last_n == -1) {
+            params.sampling.dry_penalty_last_n = llama_n_ctx(ctx);
+        }
+
+        if (params.sampling.dry_base < 1.0f) {
+            params.sampling.dry_base = defaults.sampling.dry_base;
+        }
+
+        params.sampling.grammar = defaults.sampling.grammar;
+        params.sampling.grammar_lazy = defaults.sampling.grammar_lazy;
+        params.oaicompat_chat_format = defaults.oaicompat_chat_format;
+
+        params.sampling.logit_bias.clear();
+        params.ignore_eos = value(BINARY_PARAM_IGNORE_EOS, false);
+        params.antiprompt.clear();
+        params.sampling.samplers = defaults.sampling.samplers;
+
+        params.oaicompat_model = params_base.model_alias.empty() ? DEFAULT_OAICOMPAT_MODEL : params_base.model_alias;
+
+        return params;
+    }
+
     // utility function
     static std::unordered_set<int> get_list_id(const std::vector<server_task> &tasks) {
         std::unordered_set<int> ids(tasks.size());
@@ -1044,6 +1224,14 @@ static json format_error_response(const std::string &message, const enum error_t
         type_str = "unavailable_error";
         code = 503;
         break;
+    case ERROR_TYPE_TIMEOUT:
+        type_str = "timeout_error";
+        code = 408;
+        break;
+    case ERROR_TYPE_SESSION:
+        type_str = "session_error";
+        code = 409;
+        break;
     }
     return json{
         {"code", code},
@@ -1056,6 +1244,9 @@ struct server_task_result_error : server_task_result {
     int index = 0;
     error_type err_type = ERROR_TYPE_SERVER;
     std::string err_msg;
+    // if not negative, the task was rejected because too many tasks are waiting for a slot, and it may be admitted
+    // after this time
+    int64_t retry_after_ms = -1;
 
     virtual bool is_error() override { return true; }
 
@@ -1086,6 +1277,31 @@ struct server_task_result_metrics : server_task_result {
     uint64_t n_decode_total = 0;
     uint64_t n_busy_slots_total = 0;
 
+    uint64_t n_prefix_tokens_reused_total = 0;
+    uint64_t n_shared_prefix_tokens_saved_total = 0;
+    int32_t n_shared_prefix_tokens = 0;
+
+    uint64_t n_slot_spills_total = 0;
+    uint64_t n_slot_spill_restores_total = 0;
+    uint64_t n_slot_spill_tokens_restored_total = 0;
+    uint64_t n_slot_idle_evictions_total = 0;
+    size_t n_slot_spill_entries = 0;
+    size_t n_slot_spill_bytes = 0;
+
+    uint64_t n_tasks_rejected_total = 0;
+
+    uint64_t n_prefill_budget_splits_total = 0;
+    uint64_t n_tasks_expired_total = 0;
+
+    uint64_t n_preemptions_total = 0;
+    uint64_t n_preemption_resumes_total = 0;
+    uint64_t t_suspended_total = 0;
+    uint64_t t_suspended_max = 0;
+    size_t n_suspended_slots = 0;
+
+    // the queue depth and wait times of each priority
+    json queues = json::array();
+
     // while we can also use std::vector<server_slot> this requires copying the slot object which can be quite messy
     // therefore, we use json to temporarily store the slot.to_json() result
     json slots_data = json::array();
@@ -1110,6 +1326,30 @@ struct server_task_result_metrics : server_task_result {
             {"n_decode_total", n_decode_total},
             {"n_busy_slots_total", n_busy_slots_total},
 
+            {"n_prefix_tokens_reused_total", n_prefix_tokens_reused_total},
+            {"n_shared_prefix_tokens_saved_total", n_shared_prefix_tokens_saved_total},
+            {"n_shared_prefix_tokens", n_shared_prefix_tokens},
+
+            {"n_slot_spills_total", n_slot_spills_total},
+            {"n_slot_spill_restores_total", n_slot_spill_restores_total},
+            {"n_slot_spill_tokens_restored_total", n_slot_spill_tokens_restored_total},
+            {"n_slot_idle_evictions_total", n_slot_idle_evictions_total},
+            {"n_slot_spill_entries", n_slot_spill_entries},
+            {"n_slot_spill_bytes", n_slot_spill_bytes},
+
+            {"n_tasks_rejected_total", n_tasks_rejected_total},
+
+            {"n_prefill_budget_splits_total", n_prefill_budget_splits_total},
+            {"n_tasks_expired_total", n_tasks_expired_total},
+
+            {"n_preemptions_total", n_preemptions_total},
+            {"n_preemption_resumes_total", n_preemption_resumes_total},
+            {"t_suspended_total_ms", t_suspended_total / 1e3},
+            {"t_suspended_max_ms", t_suspended_max / 1e3},
+            {"n_suspended_slots", n_suspended_slots},
+
+            {"queues", queues},
+
             {"kv_cache_tokens_count", kv_cache_tokens_count},
             {"kv_cache_used_cells", kv_cache_used_cells},
 
@@ -1155,6 +1395,12 @@ struct server_task_result_slot_erase : server_task_result {
     }
 };
 
+struct server_task_result_shared_prefix : server_task_result {
+    int32_t n_tokens;
+
+    virtual json to_json() override { return json{{"n_tokens", n_tokens}}; }
+};
+
 struct server_task_result_apply_lora : server_task_result {
     virtual json to_json() override { return json{{"success", true}}; }
 };
@@ -1185,6 +1431,13 @@ struct server_slot {
     // used to determine the slot that has been used the longest
     int64_t t_last_used = -1;
 
+    // the session whose conversation is cached, see slot_params::id_session
+    int64_t id_session = -1;
+    // the conversation of the session as it was returned, i.e., the last prompt followed by the tokens of the returned
+    // text. The cache differs from it: it lacks the last sampled token, which is never decoded, and it contains the
+    // tokens of a stopping word, which aren't returned.
+    llama_tokens session_tokens;
+
     // generation props
     int32_t n_ctx = 0; // context size per slot
     int32_t n_past = 0;
@@ -1193,6 +1446,20 @@ struct server_slot {
     int32_t i_batch = -1;
     int32_t n_predict = -1; // TODO: disambiguate from params.n_predict
 
+    // if set, no further tokens are generated until the task is resumed (see server_context::pause_task)
+    bool paused = false;
+
+    // if set, the task selected this slot explicitly (see server_task::id_selected_slot), so its generation must stay
+    // in it and is never preempted
+    bool pinned = false;
+
+    // the amount of cached prompt tokens that were reused for the current task
+    int32_t n_prefix_reused = 0;
+
+    // the leading cells of the sequence of the slot that are shared with other sequences since they were copied from
+    // the shared prefix, their positions must never be shifted
+    int32_t n_shared_cells = 0;
+
     // n_prompt_tokens may not be equal to prompt_tokens.size(), because prompt maybe truncated
     int32_t n_prompt_tokens = 0;
     int32_t n_prompt_tokens_processed = 0;
@@ -1200,6 +1467,9 @@ struct server_slot {
     // input prompt tokens
     llama_tokens prompt_tokens;
 
+    // output buffer of embedding tasks (see server_task::embd_out)
+    float *embd_out = nullptr;
+
     size_t last_nl_pos = 0;
 
     std::string generated_text;
@@ -1248,6 +1518,8 @@ struct server_slot {
         stopping_word = "";
         n_past = 0;
         n_sent_text = 0;
+        paused = false;
+        n_prefix_reused = 0;
         task_type = SERVER_TASK_TYPE_COMPLETION;
 
         generated_tokens.clear();
@@ -1370,6 +1642,8 @@ struct server_slot {
             {"speculative", can_speculate()},
             {"is_processing", is_processing()},
             {"non_causal", is_non_causal()},
+            {"n_cache_tokens", cache_tokens.size()},
+            {"n_prefix_reused", n_prefix_reused},
             {"params", params.to_json()},
             {"prompt", common_detokenize(ctx, prompt_tokens)},
             {"next_token",
@@ -1401,6 +1675,30 @@ struct server_metrics {
     uint64_t n_decode_total = 0;
     uint64_t n_busy_slots_total = 0;
 
+    uint64_t n_prefix_tokens_reused_total = 0;
+    uint64_t n_shared_prefix_tokens_saved_total = 0;
+
+    uint64_t n_slot_spills_total = 0;
+    uint64_t n_slot_spill_restores_total = 0;
+    uint64_t n_slot_spill_tokens_restored_total = 0;
+    uint64_t n_slot_idle_evictions_total = 0;
+
+    uint64_t n_prefill_budget_splits_total = 0;
+    uint64_t n_tasks_expired_total = 0;
+
+    uint64_t n_preemptions_total = 0;
+    uint64_t n_preemption_resumes_total = 0;
+    uint64_t t_suspended_total = 0; // us
+    uint64_t t_suspended_max = 0;   // us
+
+    // how long the started tasks of each priority waited for a slot
+    struct queue_stats {
+        uint64_t n_tasks = 0;
+        uint64_t t_wait_total = 0; // us
+        uint64_t t_wait_max = 0;   // us
+    };
+    std::map<int32_t, queue_stats> queues;
+
     void init() { t_start = ggml_time_us(); }
 
     void on_prompt_eval(const server_slot &slot) {
@@ -1417,6 +1715,8 @@ struct server_metrics {
         t_tokens_generation_total += slot.t_token_generation;
     }
 
+    void on_prefix_reused(const server_slot &slot) { n_prefix_tokens_reused_total += slot.n_prefix_reused; }
+
     void on_decoded(const std::vector<server_slot> &slots) {
         n_decode_total++;
         for (const auto &slot : slots) {
@@ -1426,6 +1726,25 @@ struct server_metrics {
         }
     }
 
+    void on_task_started(const server_task &task) {
+        if (task.t_queued < 0) {
+            return;
+        }
+        const uint64_t t_wait = ggml_time_us() - task.t_queued;
+        queue_stats &stats = queues[task.params.priority];
+        stats.n_tasks++;
+        stats.t_wait_total += t_wait;
+        stats.t_wait_max = std::max(stats.t_wait_max, t_wait);
+    }
+
+    // a preempted generation is resumed, which was suspended at the given time
+    void on_resumed(int64_t t_start) {
+        const uint64_t t_suspended = ggml_time_us() - t_start;
+        n_preemption_resumes_total++;
+        t_suspended_total += t_suspended;
+        t_suspended_max = std::max(t_suspended_max, t_suspended);
+    }
+
     void reset_bucket() {
         n_prompt_tokens_processed = 0;
         t_prompt_processing = 0;
@@ -1442,6 +1761,10 @@ struct server_queue {
     std::deque<server_task> queue_tasks;
     std::deque<server_task> queue_tasks_deferred;
 
+    // the maximum amount of deferred tasks and of their prompt tokens, 0 means unlimited
+    size_t n_deferred_max = 0;
+    size_t n_deferred_tokens_max = 0;
+
     std::mutex mutex_tasks;
     std::condition_variable condition_tasks;
 
@@ -1458,6 +1781,9 @@ struct server_queue {
             cleanup_pending_task(task.id_target);
         }
         QUE_DBG("new task, id = %d, front = %d\n", task.id, front);
+        if (task.t_queued < 0) {
+            task.t_queued = ggml_time_us();
+        }
         if (front) {
             queue_tasks.push_front(std::move(task));
         } else {
@@ -1479,6 +1805,9 @@ struct server_queue {
                 cleanup_pending_task(task.id_target);
             }
             QUE_DBG("new task, id = %d/%d, front = %d\n", task.id, (int)tasks.size(), front);
+            if (task.t_queued < 0) {
+                task.t_queued = ggml_time_us();
+            }
             if (front) {
                 queue_tasks.push_front(std::move(task));
             } else {
@@ -1497,6 +1826,25 @@ struct server_queue {
         condition_tasks.notify_one();
     }
 
+    // Defer a task unless the deferred tasks would exceed their limits, returns whether the task was deferred
+    bool try_defer(server_task task) {
+        std::unique_lock<std::mutex> lock(mutex_tasks);
+        if (!task.admitted && exceeds_deferred_limits(task.prompt_tokens.size())) {
+            return false;
+        }
+        task.admitted = true;
+        QUE_DBG("defer task, id = %d\n", task.id);
+        queue_tasks_deferred.push_back(std::move(task));
+        condition_tasks.notify_one();
+        return true;
+    }
+
+    // whether a task with the given amount of prompt tokens couldn't be deferred, see try_defer
+    bool is_deferral_full(size_t n_prompt_tokens) {
+        std::unique_lock<std::mutex> lock(mutex_tasks);
+        return exceeds_deferred_limits(n_prompt_tokens);
+    }
+
     // Get the next id for creating a new task
     int get_new_id() {
         std::unique_lock<std::mutex> lock(mutex_tasks);
@@ -1510,16 +1858,59 @@ struct server_queue {
     // Register the function to be called when all slots data is ready to be processed
     void on_update_slots(std::function<void(void)> callback) { callback_update_slots = std::move(callback); }
 
-    // Call when the state of one slot is changed, it will move one task from deferred to main queue
+    // Call when the state of one slot is changed, it will move one task from deferred to main queue. The task with
+    // the highest priority is moved first, then the one with the earliest deadline, then the one deferred first.
     void pop_deferred_task() {
         std::unique_lock<std::mutex> lock(mutex_tasks);
         if (!queue_tasks_deferred.empty()) {
-            queue_tasks.emplace_back(std::move(queue_tasks_deferred.front()));
-            queue_tasks_deferred.pop_front();
+            auto next = queue_tasks_deferred.begin();
+            for (auto it = next + 1; it != queue_tasks_deferred.end(); ++it) {
+                if (is_more_urgent(*it, *next)) {
+                    next = it;
+                }
+            }
+            queue_tasks.emplace_back(std::move(*next));
+            queue_tasks_deferred.erase(next);
         }
         condition_tasks.notify_one();
     }
 
+    // the amount of deferred tasks of each priority
+    std::map<int32_t, size_t> n_deferred_by_priority() {
+        std::unique_lock<std::mutex> lock(mutex_tasks);
+        std::map<int32_t, size_t> n_deferred;
+        for (const server_task &task : queue_tasks_deferred) {
+            n_deferred[task.params.priority]++;
+        }
+        return n_deferred;
+    }
+
+    // remove the deferred tasks whose deadline has passed at the given time in ms since the epoch
+    std::vector<server_task> take_expired_deferred_tasks(int64_t t_now_ms) {
+        std::unique_lock<std::mutex> lock(mutex_tasks);
+        std::vector<server_task> expired;
+        for (auto it = queue_tasks_deferred.begin(); it != queue_tasks_deferred.end();) {
+            if (it->params.is_expired(t_now_ms)) {
+                expired.push_back(std::move(*it));
+                it = queue_tasks_deferred.erase(it);
+            } else {
+                ++it;
+            }
+        }
+        return expired;
+    }
+
+    // whether a deferred task has a higher priority than the given one
+    bool has_more_urgent_deferred_task(int32_t priority) {
+        std::unique_lock<std::mutex> lock(mutex_tasks);
+        for (const server_task &task : queue_tasks_deferred) {
+            if (task.params.priority > priority) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // end the start_loop routine
     void terminate() {
         std::unique_lock<std::mutex> lock(mutex_tasks);
@@ -1578,6 +1969,33 @@ struct server_queue {
     }
 
   private:
+    bool exceeds_deferred_limits(size_t n_prompt_tokens) const {
+        if (n_deferred_max > 0 && queue_tasks_deferred.size() >= n_deferred_max) {
+            return true;
+        }
+        if (n_deferred_tokens_max > 0) {
+            size_t n_tokens = n_prompt_tokens;
+            for (const server_task &task : queue_tasks_deferred) {
+                n_tokens += task.prompt_tokens.size();
+            }
+            return n_tokens > n_deferred_tokens_max;
+        }
+        return false;
+    }
+
+    static bool is_more_urgent(const server_task &a, const server_task &b) {
+        if (a.params.priority != b.params.priority) {
+            return a.params.priority > b.params.priority;
+        }
+        // tasks without a deadline are the least urgent of their priority
+        const bool has_deadline_a = a.params.t_deadline > 0;
+        const bool has_deadline_b = b.params.t_deadline > 0;
+        if (has_deadline_a != has_deadline_b) {
+            return has_deadline_a;
+        }
+        return has_deadline_a && a.params.t_deadline < b.params.t_deadline;
+    }
+
     void cleanup_pending_task(int id_target) {
         // no need lock because this is called exclusively by post()
         auto rm_func = [id_target](const server_task &task) { return task.id_target == id_target; };
@@ -1588,96 +2006,130 @@ struct server_queue {
 };
 
 struct server_response {
-    // for keeping track of all tasks waiting for the result
-    std::unordered_set<int> waiting_task_ids;
+    // the results of tasks that are waited for together are collected in a single mailbox, so that every result is
+    // routed in constant time and only wakes up the thread waiting for it
+    struct mailbox {
+        std::mutex mutex;
+        std::condition_variable condition;
+        std::deque<server_task_result_ptr> results;
+
+        // if set, results are handed to the callback on the thread calling send() instead of being queued
+        std::function<void(server_task_result_ptr &&)> callback;
+    };
 
-    // the main result queue (using ptr for polymorphism)
-    std::vector<server_task_result_ptr> queue_results;
+    // for keeping track of all tasks waiting for the result
+    std::unordered_map<int, std::shared_ptr<mailbox>> mailboxes;
 
+    // guards the routing, the contents of a mailbox are guarded by its own mutex
     std::mutex mutex_results;
-    std::condition_variable condition_results;
 
     // add the id_task to the list of tasks waiting for response
     void add_waiting_task_id(int id_task) {
-        SRV_DBG("add task %d to waiting list. current waiting = %d (before add)\n", id_task,
-                (int)waiting_task_ids.size());
+        SRV_DBG("add task %d to waiting list. current waiting = %d (before add)\n", id_task, (int)mailboxes.size());
 
         std::unique_lock<std::mutex> lock(mutex_results);
-        waiting_task_ids.insert(id_task);
+        mailboxes[id_task] = std::make_shared<mailbox>();
     }
 
+    // the results of all tasks are received via the same mailbox, see recv(const std::unordered_set<int> &)
     void add_waiting_tasks(const std::vector<server_task> &tasks) {
+        auto box = std::make_shared<mailbox>();
+
         std::unique_lock<std::mutex> lock(mutex_results);
 
         for (const auto &task : tasks) {
             SRV_DBG("add task %d to waiting list. current waiting = %d (before add)\n", task.id,
-                    (int)waiting_task_ids.size());
-            waiting_task_ids.insert(task.id);
+                    (int)mailboxes.size());
+            mailboxes[task.id] = box;
         }
     }
 
+    // register a callback that receives the results of id_task on the thread calling send()
+    // the callback is dropped after it received a stop or error result
+    void add_waiting_task_callback(int id_task, std::function<void(server_task_result_ptr &&)> callback) {
+        SRV_DBG("add task %d to waiting list with callback\n", id_task);
+
+        auto box = std::make_shared<mailbox>();
+        box->callback = std::move(callback);
+
+        std::unique_lock<std::mutex> lock(mutex_results);
+        mailboxes[id_task] = std::move(box);
+    }
+
     // when the request is finished, we can remove task associated with it
     void remove_waiting_task_id(int id_task) {
         SRV_DBG("remove task %d from waiting list. current waiting = %d (before remove)\n", id_task,
-                (int)waiting_task_ids.size());
+                (int)mailboxes.size());
+
+        std::shared_ptr<mailbox> box;
+        {
+            std::unique_lock<std::mutex> lock(mutex_results);
+            auto it = mailboxes.find(id_task);
+            if (it == mailboxes.end()) {
+                return;
+            }
+            box = std::move(it->second);
+            mailboxes.erase(it);
+        }
 
-        std::unique_lock<std::mutex> lock(mutex_results);
-        waiting_task_ids.erase(id_task);
         // make sure to clean up all pending results
-        queue_results.erase(std::remove_if(queue_results.begin(), queue_results.end(),
-                                           [id_task](const server_task_result_ptr &res) { return res->id == id_task; }),
-                            queue_results.end());
+        std::unique_lock<std::mutex> lock(box->mutex);
+        box->results.erase(std::remove_if(box->results.begin(), box->results.end(),
+                                          [id_task](const server_task_result_ptr &res) { return res->id == id_task; }),
+                           box->results.end());
     }
 
     void remove_waiting_task_ids(const std::unordered_set<int> &id_tasks) {
-        std::unique_lock<std::mutex> lock(mutex_results);
-
         for (const auto &id_task : id_tasks) {
-            SRV_DBG("remove task %d from waiting list. current waiting = %d (before remove)\n", id_task,
-                    (int)waiting_task_ids.size());
-            waiting_task_ids.erase(id_task);
+            remove_waiting_task_id(id_task);
         }
     }
 
     // This function blocks the thread until there is a response for one of the id_tasks
+    // note: all id_tasks have to share a mailbox, i.e., they have to be added together via add_waiting_tasks
     server_task_result_ptr recv(const std::unordered_set<int> &id_tasks) {
-        while (true) {
-            std::unique_lock<std::mutex> lock(mutex_results);
-            condition_results.wait(lock, [&] { return !queue_results.empty(); });
+        std::shared_ptr<mailbox> box = get_mailbox(id_tasks);
+        if (box == nullptr) {
+            return not_waiting_error(id_tasks);
+        }
 
-            for (size_t i = 0; i < queue_results.size(); i++) {
-                if (id_tasks.find(queue_results[i]->id) != id_tasks.end()) {
-                    server_task_result_ptr res = std::move(queue_results[i]);
-                    queue_results.erase(queue_results.begin() + i);
-                    return res;
-                }
+        std::unique_lock<std::mutex> lock(box->mutex);
+        while (true) {
+            server_task_result_ptr res = pop_result(*box, id_tasks);
+            if (res != nullptr) {
+                return res;
             }
+            box->condition.wait(lock);
         }
-
-        // should never reach here
     }
 
     // same as recv(), but have timeout in seconds
     // if timeout is reached, nullptr is returned
     server_task_result_ptr recv_with_timeout(const std::unordered_set<int> &id_tasks, int timeout) {
-        while (true) {
-            std::unique_lock<std::mutex> lock(mutex_results);
+        return recv_with_timeout(id_tasks, std::chrono::milliseconds(1000LL * timeout));
+    }
 
-            for (int i = 0; i < (int)queue_results.size(); i++) {
-                if (id_tasks.find(queue_results[i]->id) != id_tasks.end()) {
-                    server_task_result_ptr res = std::move(queue_results[i]);
-                    queue_results.erase(queue_results.begin() + i);
-                    return res;
-                }
+    // same as recv(), but waits at most the given time in total, if it passes nullptr is returned
+    server_task_result_ptr recv_with_timeout(const std::unordered_set<int> &id_tasks,
+                                             std::chrono::milliseconds timeout) {
+        std::shared_ptr<mailbox> box = get_mailbox(id_tasks);
+        if (box == nullptr) {
+            return not_waiting_error(id_tasks);
+        }
+
+        const auto t_end = std::chrono::steady_clock::now() + timeout;
+        std::unique_lock<std::mutex> lock(box->mutex);
+        while (true) {
+            server_task_result_ptr res = pop_result(*box, id_tasks);
+            if (res != nullptr) {
+                return res;
             }
 
-            std::cv_status cr_res = condition_results.wait_for(lock, std::chrono::seconds(timeout));
+            std::cv_status cr_res = box->condition.wait_until(lock, t_end);
             if (cr_res == std::cv_status::timeout) {
-                return nullptr;
+                return pop_result(*box, id_tasks);
             }
         }
-
-        // should never reach here
     }
 
     // single-task version of recv()
@@ -1690,19 +2142,290 @@ struct server_response {
     void send(server_task_result_ptr &&result) {
         SRV_DBG("sending result for task id = %d\n", result->id);
 
+        std::shared_ptr<mailbox> box;
+        {
+            std::unique_lock<std::mutex> lock(mutex_results);
+            auto it = mailboxes.find(result->id);
+            if (it == mailboxes.end()) {
+                return;
+            }
+            box = it->second;
+            if (box->callback && (result->is_stop() || result->is_error())) {
+                mailboxes.erase(it);
+            }
+        }
+
+        if (box->callback) {
+            // the callback may call back into the server, so no lock is held
+            box->callback(std::move(result));
+            return;
+        }
+
+        SRV_DBG("task id = %d pushed to result queue\n", result->id);
+        {
+            std::unique_lock<std::mutex> lock(box->mutex);
+            box->results.emplace_back(std::move(result));
+        }
+        box->condition.notify_one();
+    }
+
+  private:
+    std::shared_ptr<mailbox> get_mailbox(const std::unordered_set<int> &id_tasks) {
         std::unique_lock<std::mutex> lock(mutex_results);
-        for (const auto &id_task : waiting_task_ids) {
-            if (result->id == id_task) {
-                SRV_DBG("task id = %d pushed to result queue\n", result->id);
+        for (const auto &id_task : id_tasks) {
+            auto it = mailboxes.find(id_task);
+            if (it != mailboxes.end()) {
+                return it->second;
+            }
+        }
+        return nullptr;
+    }
 
-                queue_results.emplace_back(std::move(result));
-                condition_results.notify_all();
-                return;
+    // the results in a mailbox usually all belong to id_tasks, so this hardly ever has to skip any
+    static server_task_result_ptr pop_result(mailbox &box, const std::unordered_set<int> &id_tasks) {
+        for (auto it = box.results.begin(); it != box.results.end(); ++it) {
+            if (id_tasks.find((*it)->id) != id_tasks.end()) {
+                server_task_result_ptr res = std::move(*it);
+                box.results.erase(it);
+                return res;
+            }
+        }
+        return nullptr;
+    }
+
+    static server_task_result_ptr not_waiting_error(const std::unordered_set<int> &id_tasks) {
+        auto res = std::make_unique<server_task_result_error>();
+        res->id = id_tasks.empty() ? -1 : *id_tasks.begin();
+        res->err_type = ERROR_TYPE_SERVER;
+        res->err_msg = "no results are awaited for the task";
+        return res;
+    }
+};
+
+// An index of the prompt prefixes cached by the slots. The cached tokens of a slot are split into blocks of a fixed
+// size, and every block is identified by a hash chained with the hashes of all previous blocks, so that equal hashes
+// imply equal prefixes (barring collisions). This finds the slots with the longest cached prefix of a prompt in time
+// linear in the length of the prompt, instead of comparing the prompt with the cache of every slot.
+struct server_prefix_index {
+    static constexpr size_t BLOCK_SIZE = 32;
+
+    // the slots whose cached tokens start with the blocks of a chained hash
+    std::unordered_map<uint64_t, std::vector<int>> slots_by_hash;
+    // the chained hashes of the indexed blocks of each slot
+    std::unordered_map<int, std::vector<uint64_t>> hashes_by_slot;
+
+    // chain the hash of the previous blocks with the tokens of the next block
+    static uint64_t hash_block(uint64_t hash, const llama_token *tokens) {
+        for (size_t i = 0; i < BLOCK_SIZE; i++) {
+            hash = (hash ^ static_cast<uint32_t>(tokens[i])) * 0x100000001b3ULL; // FNV-1a
+            hash ^= hash >> 29;
+        }
+        return hash;
+    }
+
+    // re-index the cached tokens of a slot, which has to be done whenever they change while the slot is idle
+    void update(int id_slot, const llama_tokens &tokens) {
+        remove(id_slot);
+        std::vector<uint64_t> &hashes = hashes_by_slot[id_slot];
+        hashes.reserve(tokens.size() / BLOCK_SIZE);
+        uint64_t hash = 0xcbf29ce484222325ULL;
+        for (size_t i = 0; i + BLOCK_SIZE <= tokens.size(); i += BLOCK_SIZE) {
+            hash = hash_block(hash, tokens.data() + i);
+            hashes.push_back(hash);
+            slots_by_hash[hash].push_back(id_slot);
+        }
+    }
+
+    void remove(int id_slot) {
+        auto it = hashes_by_slot.find(id_slot);
+        if (it == hashes_by_slot.end()) {
+            return;
+        }
+        for (const uint64_t hash : it->second) {
+            auto &ids = slots_by_hash[hash];
+            ids.erase(std::remove(ids.begin(), ids.end(), id_slot), ids.end());
+            if (ids.empty()) {
+                slots_by_hash.erase(hash);
+            }
+        }
+        hashes_by_slot.erase(it);
+    }
+
+    // call the function with every slot and the amount of leading blocks of the prompt it has cached, in ascending
+    // order of the amount of blocks (the same slot may be passed repeatedly)
+    void match(const llama_tokens &prompt, const std::function<void(int, size_t)> &on_match) const {
+        uint64_t hash = 0xcbf29ce484222325ULL;
+        for (size_t i = 0; i + BLOCK_SIZE <= prompt.size(); i += BLOCK_SIZE) {
+            hash = hash_block(hash, prompt.data() + i);
+            auto it = slots_by_hash.find(hash);
+            if (it == slots_by_hash.end()) {
+                break;
+            }
+            for (const int id_slot : it->second) {
+                on_match(id_slot, i / BLOCK_SIZE + 1);
+            }
+        }
+    }
+};
+
+// A second tier of the prompt cache on disk. Before an idle slot is reused for a prompt that discards most of its
+// cached tokens, the KV cache state of the slot is spilled into a bounded directory, and once a prompt shares a longer
+// prefix with a spilled state than with the cache of its slot, the state is restored instead of processing the prefix
+// again. Spilled states are evicted once they weren't used for a while, and the least recently used ones are evicted
+// once the directory grows too large. The directory should only be used by a single model.
+struct server_slot_spill {
+    // caches that would only lose fewer tokens aren't worth the disk I/O
+    static constexpr size_t MIN_TOKENS = 64;
+
+    struct entry {
+        std::string filename;
+        llama_tokens tokens;
+        size_t size;
+        int64_t t_last_used;
+    };
+
+    // the directory of the spilled states with a trailing separator, spilling is disabled if it is empty
+    std::string path;
+    // the maximum total size of the spilled states in bytes, or 0 for no limit
+    size_t max_bytes = 0;
+    // the time after which unused spilled states are evicted in microseconds, or 0 to keep them
+    int64_t max_age_us = 0;
+    // the time after which the caches of idle slots are spilled and erased in microseconds, or 0 to keep them
+    int64_t max_idle_us = 0;
+
+    std::vector<entry> entries;
+    size_t n_bytes = 0;
+
+    bool enabled() const { return !path.empty(); }
+
+    static std::string filename_of(const llama_tokens &tokens) {
+        uint64_t hash = 0xcbf29ce484222325ULL;
+        for (const llama_token token : tokens) {
+            hash = (hash ^ static_cast<uint32_t>(token)) * 0x100000001b3ULL; // FNV-1a
+        }
+        char filename[64];
+        snprintf(filename, sizeof(filename), "slot-spill-%016" PRIx64 ".bin", hash);
+        return filename;
+    }
+
+    // index the states that were spilled before a restart, the tokens are read from the header of the state files
+    // (see llama_state_seq_save_file) and the modification time of the files is used as the time of their last use
+    void load() {
+        std::error_code ec;
+        const int64_t t_now = ggml_time_us();
+        for (const auto &file : std::filesystem::directory_iterator(path, ec)) {
+            const std::string filename = file.path().filename().string();
+            if (!file.is_regular_file(ec) || filename.rfind("slot-spill-", 0) != 0) {
+                continue;
+            }
+
+            std::ifstream in(file.path(), std::ios::binary);
+            uint32_t header[3] = {0, 0, 0};
+            in.read(reinterpret_cast<char *>(header), sizeof(header));
+            if (!in || header[0] != LLAMA_STATE_SEQ_MAGIC || header[1] != LLAMA_STATE_SEQ_VERSION) {
+                SRV_WRN("skipping invalid spilled slot state, filename = %s\n", filename.c_str());
+                continue;
             }
+            llama_tokens tokens(header[2]);
+            in.read(reinterpret_cast<char *>(tokens.data()), tokens.size() * sizeof(llama_token));
+            if (!in) {
+                SRV_WRN("skipping truncated spilled slot state, filename = %s\n", filename.c_str());
+                continue;
+            }
+
+            const auto age = std::filesystem::file_time_type::clock::now() - file.last_write_time(ec);
+            const int64_t t_last_used = t_now - std::chrono::duration_cast<std::chrono::microseconds>(age).count();
+            add({filename, std::move(tokens), static_cast<size_t>(file.file_size(ec)), t_last_used});
+        }
+
+        SRV_INF("indexed spilled slot states, n_entries = %zu, n_bytes = %zu\n", entries.size(), n_bytes);
+        evict(t_now);
+    }
+
+    // delete all spilled states
+    void clear() {
+        while (!entries.empty()) {
+            remove(entries.back().filename, true);
+        }
+    }
+
+    void add(entry e) {
+        remove(e.filename, false);
+        n_bytes += e.size;
+        entries.push_back(std::move(e));
+    }
+
+    // the filename is copied, since it may refer to the removed entry
+    void remove(std::string filename, bool delete_file) {
+        for (auto it = entries.begin(); it != entries.end(); ++it) {
+            if (it->filename == filename) {
+                n_bytes -= it->size;
+                entries.erase(it);
+                break;
+            }
+        }
+        if (delete_file) {
+            std::error_code ec;
+            std::filesystem::remove(path + filename, ec);
+        }
+    }
+
+    // the entry that shares the longest prefix with a prompt, or nullptr if none shares a prefix
+    const entry *match(const llama_tokens &prompt, size_t &n_match) const {
+        const entry *best = nullptr;
+        n_match = 0;
+        for (const entry &e : entries) {
+            const size_t n = common_lcp(e.tokens, prompt);
+            if (n > n_match) {
+                n_match = n;
+                best = &e;
+            }
+        }
+        return best;
+    }
+
+    void touch(const std::string &filename, int64_t t_now) {
+        for (entry &e : entries) {
+            if (e.filename == filename) {
+                e.t_last_used = t_now;
+            }
+        }
+        // keep the time of the last use across restarts
+        std::error_code ec;
+        std::filesystem::last_write_time(path + filename, std::filesystem::file_time_type::clock::now(), ec);
+    }
+
+    void evict(int64_t t_now) {
+        std::sort(entries.begin(), entries.end(),
+                  [](const entry &a, const entry &b) { return a.t_last_used < b.t_last_used; });
+        size_t n_evict = 0;
+        size_t n_bytes_left = n_bytes;
+        for (const entry &e : entries) {
+            const bool expired = max_age_us > 0 && t_now - e.t_last_used > max_age_us;
+            const bool too_large = max_bytes > 0 && n_bytes_left > max_bytes;
+            if (!expired && !too_large) {
+                break;
+            }
+            n_bytes_left -= e.size;
+            n_evict++;
+        }
+        for (size_t i = 0; i < n_evict; i++) {
+            SRV_DBG("evicting spilled slot state, filename = %s\n", entries.front().filename.c_str());
+            remove(entries.front().filename, true);
         }
     }
 };
 
+// a generation that was suspended to serve a more urgent task, until a slot is available again (see preempt_slot)
+struct server_suspended_slot {
+    // the state of the generation, which owns its sampler
+    server_slot slot;
+    // the sequence of the generation in the KV cache
+    std::vector<uint8_t> kv_state;
+
+    int64_t t_suspended = 0;
+};
+
 struct server_context {
     common_params params_base;
 
@@ -1739,6 +2462,30 @@ struct server_context {
     // Necessary similarity of prompt for slot selection
     float slot_prompt_similarity = 0.0f;
 
+    // the prompt prefixes cached by idle slots, see get_available_slot
+    server_prefix_index prefix_index;
+
+    // a prompt prefix that is decoded once into its own sequence, after the sequences of the slots, and copied into
+    // the sequence of every slot whose prompt starts with it, see set_shared_prefix. Its cells come out of the same KV
+    // cache that the slots size their context against (n_ctx / n_parallel), so they are not reserved in addition.
+    llama_tokens shared_prefix;
+
+    // the disk tier of the prompt cache, see swap_spilled_state
+    server_slot_spill slot_spill;
+
+    // the generations that were preempted by more urgent tasks, see preempt_slot and resume_suspended_slots
+    std::vector<server_suspended_slot> suspended_slots;
+
+    // the average time tasks waited for a slot, as a hint when to retry rejected tasks (see try_defer), which is read
+    // by other threads
+    std::atomic<int64_t> t_retry_after_ms{1000};
+    // the tasks that were rejected, either before they were created or instead of deferring them
+    std::atomic<uint64_t> n_tasks_rejected{0};
+
+    // the maximum amount of prompt tokens that are processed per batch while any slot is generating, 0 means
+    // unlimited, see update_slots
+    int32_t n_prefill_budget = 0;
+
     common_chat_templates_ptr chat_templates;
 
     ~server_context() {
@@ -1756,6 +2503,11 @@ struct server_context {
             llama_batch_free(slot.batch_spec);
         }
 
+        for (server_suspended_slot &suspended : suspended_slots) {
+            common_sampler_free(suspended.slot.smpl);
+            suspended.slot.smpl = nullptr;
+        }
+
         llama_batch_free(batch);
     }
 
@@ -1871,7 +2623,14 @@ struct server_context {
 
             slot.params.sampling = params_base.sampling;
 
-            slot.callback_on_release = [this](int) { queue_tasks.pop_deferred_task(); };
+            slot.callback_on_release = [this](int id_slot) {
+                server_slot *released = get_slot_by_id(id_slot);
+                prefix_index.update(id_slot, released->cache_tokens);
+                // a suspended generation takes the slot in the next update unless a more urgent task is waiting
+                if (!has_resumable_slot()) {
+                    queue_tasks.pop_deferred_task();
+                }
+            };
 
             slot.reset();
 
@@ -1908,7 +2667,11 @@ struct server_context {
 
         // find the slot that has at least n% prompt similarity
         if (ret == nullptr && slot_prompt_similarity != 0.0f) {
-            int lcs_len = 0;
+            // the amount of leading blocks of the prompt that every slot has cached
+            std::vector<size_t> n_blocks(slots.size(), 0);
+            prefix_index.match(task.prompt_tokens, [&](int id_slot, size_t n) { n_blocks[id_slot] = n; });
+
+            size_t n_prefix = 0;
             float similarity = 0;
 
             for (server_slot &slot : slots) {
@@ -1922,22 +2685,31 @@ struct server_context {
                     continue;
                 }
 
-                // length of the Longest Common Subsequence between the current slot's prompt and the input prompt
-                int cur_lcs_len = common_lcs(slot.cache_tokens, task.prompt_tokens);
+                // length of the common prefix of the current slot's cache and the input prompt, the matched blocks
+                // are extended by the common tokens of the next, partial block
+                size_t cur_n_prefix = std::min(n_blocks[slot.id] * server_prefix_index::BLOCK_SIZE,
+                                               slot.cache_tokens.size());
+                const size_t n_max = std::min({cur_n_prefix + server_prefix_index::BLOCK_SIZE,
+                                               slot.cache_tokens.size(), task.prompt_tokens.size()});
+                while (cur_n_prefix < n_max && slot.cache_tokens[cur_n_prefix] == task.prompt_tokens[cur_n_prefix]) {
+                    cur_n_prefix++;
+                }
 
-                // fraction of the common subsequence length compared to the current slot's prompt length
-                float cur_similarity = static_cast<float>(cur_lcs_len) / static_cast<int>(slot.cache_tokens.size());
+                // fraction of the common prefix length compared to the current slot's prompt length
+                float cur_similarity =
+                    static_cast<float>(cur_n_prefix) / static_cast<float>(slot.cache_tokens.size());
 
                 // select the current slot if the criteria match
-                if (cur_lcs_len > lcs_len && cur_similarity > slot_prompt_similarity) {
-                    lcs_len = cur_lcs_len;
+                if (cur_n_prefix > n_prefix && cur_similarity > slot_prompt_similarity) {
+                    n_prefix = cur_n_prefix;
                     similarity = cur_similarity;
                     ret = &slot;
                 }
             }
 
             if (ret != nullptr) {
-                SLT_DBG(*ret, "selected slot by lcs similarity, lcs_len = %d, similarity = %f\n", lcs_len, similarity);
+                SLT_DBG(*ret, "selected slot by prefix similarity, n_prefix = %zu, similarity = %f\n", n_prefix,
+                        similarity);
             }
         }
 
@@ -1966,12 +2738,17 @@ struct server_context {
     }
 
     bool launch_slot_with_task(server_slot &slot, const server_task &task) {
+        metrics.on_task_started(task);
+        update_retry_after();
+
         slot.reset();
         slot.id_task = task.id;
         slot.index = task.index;
         slot.task_type = task.type;
+        slot.pinned = task.id_selected_slot != -1;
         slot.params = std::move(task.params);
         slot.prompt_tokens = std::move(task.prompt_tokens);
+        slot.embd_out = task.embd_out;
 
         if (!are_lora_equal(task.params.lora, slot.lora)) {
             // if lora is changed, we cannot reuse cached tokens
@@ -1979,6 +2756,26 @@ struct server_context {
             slot.lora = task.params.lora;
         }
 
+        if (slot.params.prompt_append) {
+            // the prompt only contains the tokens that follow the conversation of the session, which the cache of the
+            // slot mostly holds already
+            if (slot.params.id_session < 0 || slot.id_session != slot.params.id_session ||
+                slot.session_tokens.empty()) {
+                send_error(task, "The cached conversation of the session is not available anymore",
+                           ERROR_TYPE_SESSION);
+                return false;
+            }
+            slot.prompt_tokens.insert(slot.prompt_tokens.begin(), slot.session_tokens.begin(),
+                                      slot.session_tokens.end());
+        }
+        slot.id_session = slot.params.id_session;
+        slot.session_tokens.clear();
+
+        if (slot_spill.enabled() && slot.params.cache_prompt &&
+            (slot.task_type == SERVER_TASK_TYPE_COMPLETION || slot.task_type == SERVER_TASK_TYPE_INFILL)) {
+            swap_spilled_state(slot);
+        }
+
         SLT_DBG(slot, "launching slot : %s\n", safe_json_to_str(slot.to_json()).c_str());
 
         if (slot.n_predict > 0 && slot.params.n_predict > slot.n_predict) {
@@ -2024,6 +2821,345 @@ struct server_context {
         // clear the entire KV cache
         llama_kv_cache_clear(ctx);
         clean_kv_cache = false;
+        shared_prefix.clear();
+    }
+
+    bool spill_slot(server_slot &slot) {
+        const std::string filename = server_slot_spill::filename_of(slot.cache_tokens);
+        const int64_t t_start = ggml_time_us();
+
+        const size_t nwrite = llama_state_seq_save_file(ctx, (slot_spill.path + filename).c_str(), slot.id,
+                                                        slot.cache_tokens.data(), slot.cache_tokens.size());
+        if (nwrite == 0) {
+            SLT_WRN(slot, "failed to spill slot state, filename = %s\n", filename.c_str());
+            return false;
+        }
+
+        slot_spill.add({filename, slot.cache_tokens, nwrite, t_start});
+        slot_spill.evict(t_start);
+        metrics.n_slot_spills_total++;
+
+        SLT_INF(slot, "spilled slot state, n_tokens = %zu, n_bytes = %zu, t = %.3f ms\n", slot.cache_tokens.size(),
+                nwrite, (ggml_time_us() - t_start) / 1000.0);
+
+        return true;
+    }
+
+    bool restore_spilled_slot(server_slot &slot, const std::string &filename, size_t n_tokens) {
+        const int64_t t_start = ggml_time_us();
+
+        llama_tokens tokens(n_tokens);
+        size_t n_token_count = 0;
+        slot.n_shared_cells = 0;
+
+        const size_t nread = llama_state_seq_load_file(ctx, (slot_spill.path + filename).c_str(), slot.id,
+                                                       tokens.data(), tokens.size(), &n_token_count);
+        if (nread == 0) {
+            SLT_WRN(slot, "failed to restore spilled slot state, filename = %s\n", filename.c_str());
+            llama_kv_cache_seq_rm(ctx, slot.id, -1, -1);
+            slot.cache_tokens.clear();
+            slot_spill.remove(filename, true);
+            return false;
+        }
+
+        tokens.resize(n_token_count);
+        slot.cache_tokens = std::move(tokens);
+        slot_spill.touch(filename, t_start);
+        metrics.n_slot_spill_restores_total++;
+        metrics.n_slot_spill_tokens_restored_total += n_token_count;
+
+        SLT_INF(slot, "restored spilled slot state, n_tokens = %zu, n_bytes = %zu, t = %.3f ms\n", n_token_count,
+                nread, (ggml_time_us() - t_start) / 1000.0);
+
+        return true;
+    }
+
+    // exchange the cached state of a slot that is about to process a prompt with the disk tier of the prompt cache:
+    // the state is spilled if the prompt would discard most of it, and a spilled state is restored if it shares a
+    // longer prefix with the prompt
+    void swap_spilled_state(server_slot &slot) {
+        const llama_tokens &prompt = slot.prompt_tokens;
+        const size_t n_cached = common_lcp(slot.cache_tokens, prompt);
+
+        slot_spill.evict(ggml_time_us());
+
+        if (slot.cache_tokens.size() - n_cached >= server_slot_spill::MIN_TOKENS) {
+            spill_slot(slot);
+        }
+
+        size_t n_spilled = 0;
+        const server_slot_spill::entry *spilled = slot_spill.match(prompt, n_spilled);
+        if (spilled != nullptr && n_spilled >= n_cached + server_slot_spill::MIN_TOKENS) {
+            // the entry may be removed while restoring it
+            const std::string filename = spilled->filename;
+            restore_spilled_slot(slot, filename, spilled->tokens.size());
+        }
+    }
+
+    // evict the caches of slots that were idle for too long from the KV cache, and spill them to disk if enabled
+    void spill_idle_slots() {
+        if (slot_spill.max_idle_us <= 0) {
+            return;
+        }
+
+        const int64_t t_now = ggml_time_us();
+        for (server_slot &slot : slots) {
+            if (slot.is_processing() || slot.cache_tokens.empty() ||
+                t_now - slot.t_last_used <= slot_spill.max_idle_us) {
+                continue;
+            }
+
+            if (slot_spill.enabled() && slot.cache_tokens.size() >= server_slot_spill::MIN_TOKENS) {
+                spill_slot(slot);
+            }
+
+            llama_kv_cache_seq_rm(ctx, slot.id, -1, -1);
+            slot.cache_tokens.clear();
+            slot.n_shared_cells = 0;
+            prefix_index.remove(slot.id);
+            metrics.n_slot_idle_evictions_total++;
+
+            SLT_INF(slot, "%s", "evicted cache of idle slot\n");
+        }
+    }
+
+    // fail the tasks whose deadline has passed, whether they wait for a slot, are suspended, process their prompt or
+    // generate, and the tasks whose prompt processing exceeds its time limit
+    void expire_tasks() {
+        const int64_t t_now_ms = time_ms_since_epoch();
+
+        for (const server_task &task : queue_tasks.take_expired_deferred_tasks(t_now_ms)) {
+            metrics.n_tasks_expired_total++;
+            send_error(task, "The deadline of the task has passed before it got a slot", ERROR_TYPE_TIMEOUT);
+        }
+
+        for (auto it = suspended_slots.begin(); it != suspended_slots.end();) {
+            if (it->slot.params.is_expired(t_now_ms)) {
+                metrics.n_tasks_expired_total++;
+                send_error(it->slot, "The deadline of the task has passed while it was preempted", ERROR_TYPE_TIMEOUT);
+                common_sampler_free(it->slot.smpl);
+                it = suspended_slots.erase(it);
+            } else {
+                ++it;
+            }
+        }
+
+        for (server_slot &slot : slots) {
+            if (!slot.is_processing()) {
+                continue;
+            }
+
+            const int64_t t_max_prompt_us = 1000 * slot.params.t_max_prompt_ms;
+            const bool prompt_timeout = slot.state == SLOT_STATE_PROCESSING_PROMPT && t_max_prompt_us > 0 &&
+                                        ggml_time_us() - slot.t_start_process_prompt > t_max_prompt_us;
+            if (!slot.params.is_expired(t_now_ms) && !prompt_timeout) {
+                continue;
+            }
+
+            SLT_WRN(slot, "stopped by %s, n_past = %d, n_prompt_tokens = %d, n_decoded = %d\n",
+                    prompt_timeout ? "prompt time limit" : "deadline", slot.n_past, slot.n_prompt_tokens,
+                    slot.n_decoded);
+
+            metrics.n_tasks_expired_total++;
+            slot.release();
+            send_error(slot,
+                       prompt_timeout ? "The prompt processing exceeded its time limit"
+                                      : "The deadline of the task has passed",
+                       ERROR_TYPE_TIMEOUT);
+        }
+    }
+
+    // suspend the least urgent generation whose priority is lower than the given one, so that its slot serves a more
+    // urgent task: the sequence of the generation is copied out of the KV cache and the generation continues from it
+    // once a slot is available again (see resume_suspended_slots), returns the freed slot or nullptr. Generations that
+    // are pinned to their slot are never preempted, since they may resume in another one.
+    server_slot *preempt_slot(int32_t priority) {
+        server_slot *victim = nullptr;
+        for (server_slot &slot : slots) {
+            if (slot.state != SLOT_STATE_GENERATING || slot.pinned || slot.params.priority >= priority ||
+                (slot.task_type != SERVER_TASK_TYPE_COMPLETION && slot.task_type != SERVER_TASK_TYPE_INFILL)) {
+                continue;
+            }
+            // prefer the least urgent generation, then the one that started last
+            if (victim == nullptr || slot.params.priority < victim->params.priority ||
+                (slot.params.priority == victim->params.priority &&
+                 slot.t_start_generation > victim->t_start_generation)) {
+                victim = &slot;
+            }
+        }
+        if (victim == nullptr) {
+            return nullptr;
+        }
+
+        const int64_t t_start = ggml_time_us();
+
+        server_suspended_slot suspended;
+        suspended.kv_state.resize(llama_state_seq_get_size(ctx, victim->id));
+        const size_t nwrite =
+            llama_state_seq_get_data(ctx, suspended.kv_state.data(), suspended.kv_state.size(), victim->id);
+        if (nwrite == 0) {
+            SLT_WRN(*victim, "%s", "failed to copy the sequence of the generation, not preempting it\n");
+            return nullptr;
+        }
+        suspended.kv_state.resize(nwrite);
+        suspended.slot = *victim;
+        suspended.t_suspended = t_start;
+
+        // the sampler belongs to the suspended generation now
+        victim->smpl = nullptr;
+        victim->state = SLOT_STATE_IDLE;
+        victim->id_task = -1;
+        victim->t_last_used = t_start;
+        victim->cache_tokens.clear();
+        victim->n_shared_cells = 0;
+        llama_kv_cache_seq_rm(ctx, victim->id, -1, -1);
+        prefix_index.remove(victim->id);
+
+        SLT_INF(*victim, "preempted generation, id_task = %d, priority = %d, n_past = %d, n_bytes = %zu, t = %.3f ms\n",
+                suspended.slot.id_task, suspended.slot.params.priority, suspended.slot.n_past, nwrite,
+                (ggml_time_us() - t_start) / 1000.0);
+
+        suspended_slots.push_back(std::move(suspended));
+        metrics.n_preemptions_total++;
+
+        return victim;
+    }
+
+    // the suspended generation that is resumed next, which is the most urgent one and of those the one suspended first
+    std::vector<server_suspended_slot>::iterator next_suspended_slot() {
+        auto next = suspended_slots.begin();
+        for (auto it = next; it != suspended_slots.end(); ++it) {
+            if (it->slot.params.priority > next->slot.params.priority) {
+                next = it;
+            }
+        }
+        return next;
+    }
+
+    // whether an available slot is taken by a suspended generation instead of a deferred task or a new task of the
+    // given priority
+    bool has_resumable_slot(int32_t priority = INT32_MIN) {
+        if (suspended_slots.empty()) {
+            return false;
+        }
+        const int32_t priority_next = next_suspended_slot()->slot.params.priority;
+        return priority_next >= priority && !queue_tasks.has_more_urgent_deferred_task(priority_next);
+    }
+
+    // continue the suspended generations in the available slots, unless more urgent tasks are waiting for them
+    void resume_suspended_slots() {
+        while (has_resumable_slot()) {
+            server_slot *slot = nullptr;
+            for (server_slot &cur : slots) {
+                if (!cur.is_processing() && (slot == nullptr || cur.t_last_used < slot->t_last_used)) {
+                    slot = &cur;
+                }
+            }
+            if (slot == nullptr) {
+                return;
+            }
+
+            auto next = next_suspended_slot();
+            server_suspended_slot suspended = std::move(*next);
+            suspended_slots.erase(next);
+
+            if (!resume_slot(*slot, suspended)) {
+                // the slot is available for a deferred task instead
+                queue_tasks.pop_deferred_task();
+            }
+        }
+    }
+
+    bool resume_slot(server_slot &slot, server_suspended_slot &suspended) {
+        const int64_t t_start = ggml_time_us();
+
+        // the cache of the slot is replaced by the sequence of the generation
+        if (slot_spill.enabled() && slot.cache_tokens.size() >= server_slot_spill::MIN_TOKENS) {
+            spill_slot(slot);
+        }
+        llama_kv_cache_seq_rm(ctx, slot.id, -1, -1);
+        slot.cache_tokens.clear();
+        slot.n_shared_cells = 0;
+        prefix_index.remove(slot.id);
+
+        const size_t nread =
+            llama_state_seq_set_data(ctx, suspended.kv_state.data(), suspended.kv_state.size(), slot.id);
+        if (nread == 0) {
+            SLT_ERR(slot, "failed to restore the sequence of the preempted task %d\n", suspended.slot.id_task);
+            llama_kv_cache_seq_rm(ctx, slot.id, -1, -1);
+            common_sampler_free(suspended.slot.smpl);
+            send_error(suspended.slot, "Failed to resume the preempted generation", ERROR_TYPE_SERVER);
+            return false;
+        }
+
+        // the generation continues with the resources of this slot
+        const int id = slot.id;
+        const int n_ctx_slot = slot.n_ctx;
+        llama_context *ctx_dft = slot.ctx_dft;
+        common_speculative *spec = slot.spec;
+        llama_batch batch_spec = slot.batch_spec;
+        std::function<void(int)> callback_on_release = std::move(slot.callback_on_release);
+
+        common_sampler_free(slot.smpl);
+        slot = std::move(suspended.slot);
+
+        slot.id = id;
+        slot.n_ctx = n_ctx_slot;
+        slot.ctx_dft = ctx_dft;
+        slot.spec = spec;
+        slot.batch_spec = batch_spec;
+        slot.callback_on_release = std::move(callback_on_release);
+
+        if (slot.ctx_dft) {
+            llama_batch_free(slot.batch_spec);
+
+            slot.batch_spec = llama_batch_init(slot.params.speculative.n_max + 1, 0, 1);
+        }
+
+        // the time the generation was suspended doesn't count as generation time
+        slot.t_start_generation += t_start - suspended.t_suspended;
+        slot.t_last_used = t_start;
+        slot.i_batch = -1;
+
+        metrics.on_resumed(suspended.t_suspended);
+
+        SLT_INF(slot, "resumed preempted generation, id_task = %d, n_past = %d, suspended = %.3f ms, t = %.3f ms\n",
+                slot.id_task, slot.n_past, (t_start - suspended.t_suspended) / 1000.0,
+                (ggml_time_us() - t_start) / 1000.0);
+
+        return true;
+    }
+
+    bool set_shared_prefix(const llama_tokens &tokens) {
+        const llama_seq_id seq_shared = slots.size();
+        const int32_t n_batch = llama_n_batch(ctx);
+
+        llama_kv_cache_seq_rm(ctx, seq_shared, -1, -1);
+        shared_prefix.clear();
+
+        // the KV cache must not be cleared once the slots are idle, since that would drop the shared sequence
+        clean_kv_cache = false;
+
+        for (int32_t i = 0; i < (int32_t)tokens.size(); i += n_batch) {
+            const int32_t n_tokens = std::min(n_batch, (int32_t)tokens.size() - i);
+
+            common_batch_clear(batch);
+            for (int32_t j = 0; j < n_tokens; j++) {
+                common_batch_add(batch, tokens[i + j], i + j, {seq_shared}, false);
+            }
+
+            if (llama_decode(ctx, batch) != 0) {
+                SRV_ERR("failed to decode the shared prefix, i = %d, n_batch = %d\n", i, n_batch);
+                llama_kv_cache_seq_rm(ctx, seq_shared, -1, -1);
+                return false;
+            }
+        }
+
+        shared_prefix = tokens;
+
+        SRV_INF("set shared prefix, n_tokens = %d\n", (int)shared_prefix.size());
+
+        return true;
     }
 
     bool process_token(completion_token_output &result, server_slot &slot) {
@@ -2074,6 +3210,13 @@ struct server_context {
 
         if (incomplete) {
             slot.has_next_token = true;
+
+            // token streams need every token, the text is sent once the UTF-8 character is complete
+            if (slot.params.stream && slot.params.stream_tokens) {
+                completion_token_output token = result;
+                token.text_to_send = "";
+                send_partial_response(slot, token);
+            }
         }
 
         // check the limits
@@ -2237,6 +3380,35 @@ struct server_context {
         queue_results.send(std::move(res));
     }
 
+    // defer a task until a slot is available, or reject it if too many tasks are waiting already
+    void try_defer(const server_task &task) {
+        if (queue_tasks.try_defer(task)) {
+            return;
+        }
+
+        SRV_WRN("too many deferred tasks, reject task, id_task = %d\n", task.id);
+        n_tasks_rejected++;
+
+        auto res = std::make_unique<server_task_result_error>();
+        res->id = task.id;
+        res->err_type = ERROR_TYPE_UNAVAILABLE;
+        res->err_msg = "Too many requests are waiting for a slot";
+        res->retry_after_ms = t_retry_after_ms.load();
+        queue_results.send(std::move(res));
+    }
+
+    void update_retry_after() {
+        uint64_t n_tasks = 0;
+        uint64_t t_wait = 0;
+        for (const auto &entry : metrics.queues) {
+            n_tasks += entry.second.n_tasks;
+            t_wait += entry.second.t_wait_total;
+        }
+        if (n_tasks > 0) {
+            t_retry_after_ms.store(std::max<int64_t>(1, t_wait / n_tasks / 1000));
+        }
+    }
+
     void send_partial_response(server_slot &slot, const completion_token_output &tkn) {
         auto res = std::make_unique<server_task_result_cmpl_partial>();
 
@@ -2268,6 +3440,13 @@ struct server_context {
     }
 
     void send_final_response(server_slot &slot) {
+        if (slot.id_session >= 0) {
+            // the next turn of the session continues the returned text, like a prompt of the whole conversation would
+            slot.session_tokens = slot.prompt_tokens;
+            const llama_tokens response = tokenize_continuation(vocab, slot.generated_text, false);
+            slot.session_tokens.insert(slot.session_tokens.end(), response.begin(), response.end());
+        }
+
         auto res = std::make_unique<server_task_result_cmpl_final>();
         res->id = slot.id_task;
         res->id_slot = slot.id;
@@ -2338,10 +3517,24 @@ struct server_context {
                 SLT_ERR(slot, "failed to get embeddings, token = %d, seq_id = %d\n", batch.token[i],
                         batch.seq_id[i][0]);
 
+                if (slot.embd_out != nullptr) {
+                    std::fill(slot.embd_out, slot.embd_out + n_embd, 0.0f);
+                    break;
+                }
                 res->embedding.push_back(std::vector<float>(n_embd, 0.0f));
                 continue;
             }
 
+            // write only the first embedding straight into the output buffer, if there is any
+            if (slot.embd_out != nullptr) {
+                if (llama_pooling_type(slot.ctx) != LLAMA_POOLING_TYPE_NONE) {
+                    common_embd_normalize(embd, slot.embd_out, n_embd, 2);
+                } else {
+                    std::copy(embd, embd + n_embd, slot.embd_out);
+                }
+                break;
+            }
+
             // normalize only when there is pooling
             // TODO: configurable
             if (llama_pooling_type(slot.ctx) != LLAMA_POOLING_TYPE_NONE) {
@@ -2408,6 +3601,25 @@ struct server_context {
         queue_tasks.post(cancel_tasks, true);
     }
 
+    // stop generating tokens for a task until it is resumed, e.g., because its consumer can't keep up
+    // note: this has to be called from the task loop thread, e.g., within a result callback
+    void pause_task(int id_task) {
+        for (auto &slot : slots) {
+            if (slot.id_task == id_task && slot.state == SLOT_STATE_GENERATING) {
+                SLT_DBG(slot, "%s", "pausing generation\n");
+                slot.paused = true;
+                break;
+            }
+        }
+    }
+
+    // continue generating tokens for a task that was paused with pause_task
+    void resume_task(int id_task) {
+        server_task task(SERVER_TASK_TYPE_RESUME);
+        task.id_target = id_task;
+        queue_tasks.post(task, true);
+    }
+
     // receive the results from task(s)
     void receive_multi_results(const std::unordered_set<int> &id_tasks,
                                const std::function<void(std::vector<server_task_result_ptr> &)> &result_handler,
@@ -2494,18 +3706,37 @@ struct server_context {
         case SERVER_TASK_TYPE_RERANK: {
             const int id_slot = task.id_selected_slot;
 
+            if (task.params.is_expired(time_ms_since_epoch())) {
+                metrics.n_tasks_expired_total++;
+                send_error(task, "The deadline of the task has passed before it got a slot", ERROR_TYPE_TIMEOUT);
+                break;
+            }
+
+            spill_idle_slots();
+
             server_slot *slot = id_slot != -1 ? get_slot_by_id(id_slot) : get_available_slot(task);
 
+            if (id_slot == -1 && slot != nullptr && has_resumable_slot(task.params.priority)) {
+                // the available slot is taken by a suspended generation that is at least as urgent
+                SRV_DBG("a suspended generation is resumed first, defer task, id_task = %d\n", task.id);
+                try_defer(task);
+                break;
+            }
+            if (id_slot == -1 && slot == nullptr &&
+                (task.type == SERVER_TASK_TYPE_COMPLETION || task.type == SERVER_TASK_TYPE_INFILL)) {
+                slot = preempt_slot(task.params.priority);
+            }
+
             if (slot == nullptr) {
                 // if no slot is available, we defer this task for processing later
                 SRV_DBG("no slot is available, defer task, id_task = %d\n", task.id);
-                queue_tasks.defer(task);
+                try_defer(task);
                 break;
             }
             if (slot->is_processing()) {
                 // if requested slot is unavailable, we defer this task for processing later
                 SRV_DBG("requested slot is unavailable, defer task, id_task = %d\n", task.id);
-                queue_tasks.defer(task);
+                try_defer(task);
                 break;
             }
 
@@ -2522,6 +3753,27 @@ struct server_context {
                     break;
                 }
             }
+            for (auto it = suspended_slots.begin(); it != suspended_slots.end(); ++it) {
+                if (it->slot.id_task == task.id_target) {
+                    common_sampler_free(it->slot.smpl);
+                    suspended_slots.erase(it);
+                    break;
+                }
+            }
+        } break;
+        case SERVER_TASK_TYPE_RESUME: {
+            for (auto &slot : slots) {
+                if (slot.id_task == task.id_target) {
+                    slot.paused = false;
+                    break;
+                }
+            }
+            for (server_suspended_slot &suspended : suspended_slots) {
+                if (suspended.slot.id_task == task.id_target) {
+                    suspended.slot.paused = false;
+                    break;
+                }
+            }
         } break;
         case SERVER_TASK_TYPE_NEXT_RESPONSE: {
             // do nothing
@@ -2568,6 +3820,44 @@ struct server_context {
 
             res->n_decode_total = metrics.n_decode_total;
             res->n_busy_slots_total = metrics.n_busy_slots_total;
+            res->n_prefix_tokens_reused_total = metrics.n_prefix_tokens_reused_total;
+            res->n_shared_prefix_tokens_saved_total = metrics.n_shared_prefix_tokens_saved_total;
+            res->n_shared_prefix_tokens = shared_prefix.size();
+
+            res->n_slot_spills_total = metrics.n_slot_spills_total;
+            res->n_slot_spill_restores_total = metrics.n_slot_spill_restores_total;
+            res->n_slot_spill_tokens_restored_total = metrics.n_slot_spill_tokens_restored_total;
+            res->n_slot_idle_evictions_total = metrics.n_slot_idle_evictions_total;
+            res->n_slot_spill_entries = slot_spill.entries.size();
+            res->n_slot_spill_bytes = slot_spill.n_bytes;
+            res->n_tasks_rejected_total = n_tasks_rejected.load();
+
+            res->n_prefill_budget_splits_total = metrics.n_prefill_budget_splits_total;
+            res->n_tasks_expired_total = metrics.n_tasks_expired_total;
+
+            res->n_preemptions_total = metrics.n_preemptions_total;
+            res->n_preemption_resumes_total = metrics.n_preemption_resumes_total;
+            res->t_suspended_total = metrics.t_suspended_total;
+            res->t_suspended_max = metrics.t_suspended_max;
+            res->n_suspended_slots = suspended_slots.size();
+
+            std::map<int32_t, size_t> n_deferred = queue_tasks.n_deferred_by_priority();
+            std::map<int32_t, server_metrics::queue_stats> queues = metrics.queues;
+            for (const auto &entry : n_deferred) {
+                queues[entry.first];
+            }
+            // the most urgent priority first
+            for (auto it = queues.rbegin(); it != queues.rend(); ++it) {
+                const server_metrics::queue_stats &stats = it->second;
+                res->queues.push_back({
+                    {"priority", it->first},
+                    {"deferred", n_deferred[it->first]},
+                    {"n_tasks_started_total", stats.n_tasks},
+                    {"t_wait_total_ms", stats.t_wait_total / 1e3},
+                    {"t_wait_max_ms", stats.t_wait_max / 1e3},
+                    {"t_wait_avg_ms", stats.n_tasks == 0 ? 0.0 : stats.t_wait_total / 1e3 / stats.n_tasks},
+                });
+            }
 
             if (task.metrics_reset_bucket) {
                 metrics.reset_bucket();
@@ -2630,16 +3920,19 @@ struct server_context {
             std::string filepath = task.slot_action.filepath;
 
             slot->cache_tokens.resize(slot->n_ctx);
+            slot->n_shared_cells = 0;
             size_t token_count = 0;
             size_t nread = llama_state_seq_load_file(ctx, filepath.c_str(), slot->id, slot->cache_tokens.data(),
                                                      slot->cache_tokens.size(), &token_count);
             if (nread == 0) {
                 slot->cache_tokens.resize(0);
+                prefix_index.remove(slot->id);
                 send_error(task, "Unable to restore slot, no available space in KV cache or invalid slot save file",
                            ERROR_TYPE_INVALID_REQUEST);
                 break;
             }
             slot->cache_tokens.resize(token_count);
+            prefix_index.update(slot->id, slot->cache_tokens);
 
             const int64_t t_end = ggml_time_us();
             const double t_restore_ms = (t_end - t_start) / 1000.0;
@@ -2672,6 +3965,8 @@ struct server_context {
             const size_t n_erased = slot->cache_tokens.size();
             llama_kv_cache_seq_rm(ctx, slot->id, -1, -1);
             slot->cache_tokens.clear();
+            slot->n_shared_cells = 0;
+            prefix_index.remove(slot->id);
 
             auto res = std::make_unique<server_task_result_slot_erase>();
             res->id = task.id;
@@ -2679,6 +3974,116 @@ struct server_context {
             res->n_erased = n_erased;
             queue_results.send(std::move(res));
         } break;
+        case SERVER_TASK_TYPE_SLOT_EXPORT: {
+            int id_slot = task.slot_action.slot_id;
+            server_slot *slot = get_slot_by_id(id_slot);
+            if (slot == nullptr) {
+                send_error(task, "Invalid slot ID", ERROR_TYPE_INVALID_REQUEST);
+                break;
+            }
+            if (slot->is_processing()) {
+                // if requested slot is unavailable, we defer this task for processing later
+                SRV_DBG("requested slot is unavailable, defer task, id_task = %d\n", task.id);
+                queue_tasks.defer(task);
+                break;
+            }
+
+            const int64_t t_start = ggml_time_us();
+
+            // layout: the amount of tokens as int32, the cached tokens and the sequence state, in native byte order
+            const size_t token_count = slot->cache_tokens.size();
+            const size_t n_header = sizeof(int32_t) + token_count * sizeof(llama_token);
+            const size_t n_state = llama_state_seq_get_size(ctx, slot->id);
+            size_t n_bytes = n_header + n_state;
+
+            // nothing is written if the state doesn't fit, the caller has to check the returned amount of bytes
+            if (task.slot_action.data != nullptr && n_bytes <= task.slot_action.size) {
+                const int32_t n_tokens = token_count;
+                std::memcpy(task.slot_action.data, &n_tokens, sizeof(int32_t));
+                std::memcpy(task.slot_action.data + sizeof(int32_t), slot->cache_tokens.data(),
+                            token_count * sizeof(llama_token));
+                n_bytes = n_header + llama_state_seq_get_data(ctx, task.slot_action.data + n_header, n_state, slot->id);
+            }
+
+            const int64_t t_end = ggml_time_us();
+
+            auto res = std::make_unique<server_task_result_slot_save_load>();
+            res->id = task.id;
+            res->id_slot = id_slot;
+            res->is_save = true;
+            res->n_tokens = token_count;
+            res->n_bytes = n_bytes;
+            res->t_ms = (t_end - t_start) / 1000.0;
+            queue_results.send(std::move(res));
+        } break;
+        case SERVER_TASK_TYPE_SLOT_IMPORT: {
+            int id_slot = task.slot_action.slot_id;
+            server_slot *slot = get_slot_by_id(id_slot);
+            if (slot == nullptr) {
+                send_error(task, "Invalid slot ID", ERROR_TYPE_INVALID_REQUEST);
+                break;
+            }
+            if (slot->is_processing()) {
+                // if requested slot is unavailable, we defer this task for processing later
+                SRV_DBG("requested slot is unavailable, defer task, id_task = %d\n", task.id);
+                queue_tasks.defer(task);
+                break;
+            }
+
+            const int64_t t_start = ggml_time_us();
+
+            int32_t n_tokens = -1;
+            if (task.slot_action.size >= sizeof(int32_t)) {
+                std::memcpy(&n_tokens, task.slot_action.data, sizeof(int32_t));
+            }
+            const size_t n_header = sizeof(int32_t) + std::max(n_tokens, 0) * sizeof(llama_token);
+            if (n_tokens < 0 || n_tokens > slot->n_ctx || n_header > task.slot_action.size) {
+                send_error(task, "Unable to import slot, invalid slot state", ERROR_TYPE_INVALID_REQUEST);
+                break;
+            }
+
+            slot->n_shared_cells = 0;
+            const size_t nread = llama_state_seq_set_data(ctx, task.slot_action.data + n_header,
+                                                          task.slot_action.size - n_header, slot->id);
+            if (nread == 0) {
+                slot->cache_tokens.clear();
+                prefix_index.remove(slot->id);
+                send_error(task, "Unable to import slot, no available space in KV cache or invalid slot state",
+                           ERROR_TYPE_INVALID_REQUEST);
+                break;
+            }
+            slot->cache_tokens.resize(n_tokens);
+            std::memcpy(slot->cache_tokens.data(), task.slot_action.data + sizeof(int32_t),
+                        n_tokens * sizeof(llama_token));
+            prefix_index.update(slot->id, slot->cache_tokens);
+
+            const int64_t t_end = ggml_time_us();
+
+            auto res = std::make_unique<server_task_result_slot_save_load>();
+            res->id = task.id;
+            res->id_slot = id_slot;
+            res->is_save = false;
+            res->n_tokens = n_tokens;
+            res->n_bytes = n_header + nread;
+            res->t_ms = (t_end - t_start) / 1000.0;
+            queue_results.send(std::move(res));
+        } break;
+        case SERVER_TASK_TYPE_SHARED_PREFIX: {
+            // the shared prefix has to fit into the context of a slot, with room left for the context shift
+            if ((int32_t)task.prompt_tokens.size() >= slots[0].n_ctx - 4) {
+                send_error(task, "Shared prefix is longer than the context of a slot", ERROR_TYPE_INVALID_REQUEST);
+                break;
+            }
+            if (!set_shared_prefix(task.prompt_tokens)) {
+                send_error(task, "Unable to decode the shared prefix", ERROR_TYPE_SERVER);
+                break;
+            }
+
+            auto res = std::make_unique<server_task_result_shared_prefix>();
+            res->id = task.id;
+            res->n_tokens = shared_prefix.size();
+            queue_results.send(std::move(res));
+        } break;
         case SERVER_TASK_TYPE_SET_LORA: {
             params_base.lora_adapters = std::move(task.set_lora);
             auto res = std::make_unique<server_task_result_apply_lora>();
@@ -2689,14 +4094,21 @@ struct server_context {
     }
 
     void update_slots() {
+        expire_tasks();
+        resume_suspended_slots();
+
         // check if all slots are idle
         {
             bool all_idle = true;
+            bool all_paused = true;
 
             for (auto &slot : slots) {
                 if (slot.is_processing()) {
                     all_idle = false;
-                    break;
+                    if (!slot.paused) {
+                        all_paused = false;
+                        break;
+                    }
                 }
             }
 
@@ -2708,6 +4120,12 @@ struct server_context {
 
                 return;
             }
+
+            // don't post NEXT_RESPONSE, the loop is woken up again by the task resuming a slot
+            if (all_paused) {
+                SRV_DBG("%s", "all processing slots are paused\n");
+                return;
+            }
         }
 
         {
@@ -2768,7 +4186,7 @@ struct server_context {
 
         // frist, add sampled tokens from any ongoing sequences
         for (auto &slot : slots) {
-            if (slot.state != SLOT_STATE_GENERATING) {
+            if (slot.state != SLOT_STATE_GENERATING || slot.paused) {
                 continue;
             }
 
@@ -2797,6 +4215,14 @@ struct server_context {
         int32_t n_batch = llama_n_batch(ctx);
         int32_t n_ubatch = llama_n_ubatch(ctx);
 
+        // the tokens of the generating slots always have room in the batch, since they were added first. While there
+        // are any, the prompts are limited to the prefill budget, so that a long prompt is processed in chunks over
+        // several batches instead of delaying the next token of every generating slot by as many batches.
+        int32_t n_batch_prompt = n_batch;
+        if (n_prefill_budget > 0 && batch.n_tokens > 0) {
+            n_batch_prompt = std::min(n_batch, batch.n_tokens + n_prefill_budget);
+        }
+
         // next, batch any pending prompts without exceeding n_batch
         if (params_base.cont_batching || batch.n_tokens == 0) {
             for (auto &slot : slots) {
@@ -2915,10 +4341,16 @@ struct server_context {
                                 // reuse any previously computed tokens that are common with the new prompt
                                 slot.n_past = common_lcp(slot.cache_tokens, prompt_tokens);
 
+                                // the cells copied from the shared prefix are shared with other sequences, so they are
+                                // never shifted: the search for chunks starts behind them, and those that are not
+                                // part of the common prefix are only dropped from the sequence of the slot
+                                const int32_t n_shared_cells = slot.n_shared_cells;
+                                slot.n_shared_cells = std::min(slot.n_shared_cells, slot.n_past);
+
                                 // reuse chunks from the cached prompt by shifting their KV cache in the new position
                                 if (params_base.n_cache_reuse > 0) {
-                                    size_t head_c = slot.n_past; // cache
-                                    size_t head_p = slot.n_past; // current prompt
+                                    size_t head_c = std::max(slot.n_past, n_shared_cells); // cache
+                                    size_t head_p = slot.n_past;                           // current prompt
 
                                     SLT_DBG(slot, "trying to reuse chunks with size > %d, slot.n_past = %d\n",
                                             params_base.n_cache_reuse, slot.n_past);
@@ -2965,6 +4397,30 @@ struct server_context {
                             }
                         }
 
+                        // copy the shared prefix from its own sequence instead of processing it again
+                        const int32_t n_shared = shared_prefix.size();
+                        if (n_shared > slot.n_past && n_shared <= slot.n_prompt_tokens && n_shared < slot.n_ctx - 4 &&
+                            (slot.task_type == SERVER_TASK_TYPE_COMPLETION ||
+                             slot.task_type == SERVER_TASK_TYPE_INFILL) &&
+                            std::equal(shared_prefix.begin(), shared_prefix.end(), prompt_tokens.begin())) {
+                            llama_kv_cache_seq_rm(ctx, slot.id, -1, -1);
+                            llama_kv_cache_seq_cp(ctx, slots.size(), slot.id, -1, -1);
+
+                            metrics.n_shared_prefix_tokens_saved_total += n_shared - slot.n_past;
+
+                            slot.cache_tokens = shared_prefix;
+                            slot.n_past = n_shared;
+                            slot.n_shared_cells = n_shared;
+
+                            SLT_INF(slot, "copied shared prefix, n_shared = %d\n", n_shared);
+                        }
+
+                        // the cells shared with the other sequences are part of the common prefix, so a context
+                        // shift must keep them
+                        slot.n_shared_cells = std::min(slot.n_shared_cells, slot.n_past);
+                        slot.params.n_keep =
+                            std::max(slot.params.n_keep, slot.n_shared_cells - (int32_t)add_bos_token);
+
                         if (slot.n_past == slot.n_prompt_tokens && slot.n_past > 0) {
                             // we have to evaluate at least 1 token to generate logits.
                             SLT_WRN(slot,
@@ -2976,6 +4432,7 @@ struct server_context {
                         }
 
                         slot.n_prompt_tokens_processed = 0;
+                        slot.n_prefix_reused = slot.n_past;
                     }
 
                     // non-causal tasks require to fit the entire prompt in the physical batch
@@ -2993,6 +4450,8 @@ struct server_context {
 
                         // there is no common part left
                         slot.n_past = 0;
+                        slot.n_prefix_reused = 0;
+                        slot.n_shared_cells = 0;
                     }
 
                     SLT_INF(slot, "kv cache rm [%d, end)\n", slot.n_past);
@@ -3000,8 +4459,9 @@ struct server_context {
                     // remove the non-common part from the cache
                     slot.cache_tokens.resize(slot.n_past);
 
-                    // add prompt tokens for processing in the current batch
-                    while (slot.n_past < slot.n_prompt_tokens && batch.n_tokens < n_batch) {
+                    // add prompt tokens for processing in the current batch, a non-causal prompt is never split
+                    const int32_t n_batch_slot = slot.is_non_causal() ? n_batch : n_batch_prompt;
+                    while (slot.n_past < slot.n_prompt_tokens && batch.n_tokens < n_batch_slot) {
                         // without pooling, we want to output the embeddings for all the tokens in the batch
                         const bool need_embd = slot.task_type == SERVER_TASK_TYPE_EMBEDDING &&
                                                llama_pooling_type(slot.ctx) == LLAMA_POOLING_TYPE_NONE;
@@ -3038,11 +4498,17 @@ struct server_context {
                         slot.n_decoded = 0;
                         slot.i_batch = batch.n_tokens - 1;
 
-                        SLT_INF(slot, "prompt done, n_past = %d, n_tokens = %d\n", slot.n_past, batch.n_tokens);
+                        SLT_INF(slot, "prompt done, n_past = %d, n_tokens = %d, n_prefix_reused = %d\n", slot.n_past,
+                                batch.n_tokens, slot.n_prefix_reused);
+
+                        metrics.on_prefix_reused(slot);
                     }
                 }
 
-                if (batch.n_tokens >= n_batch) {
+                if (batch.n_tokens >= n_batch_prompt) {
+                    if (n_batch_prompt < n_batch && slot.state == SLOT_STATE_PROCESSING_PROMPT) {
+                        metrics.n_prefill_budget_splits_total++;
+                    }
                     break;
                 }
             }
@@ -3170,7 +4636,7 @@ struct server_context {
                     continue;
                 }
 
-                if (slot.state != SLOT_STATE_GENERATING) {
+                if (slot.state != SLOT_STATE_GENERATING || slot.paused) {
                     continue;
                 }
 
@@ -119,10 +119,29 @@ static json json_get_nested_values(const std::vector<std::string> &paths, const
     return result;
 }
 
+/**
+ * Tokenize text that continues other text. Some vocabularies (e.g. SPM) prefix the beginning of a text with a space,
+ * which would be inserted between both texts, so the text is tokenized after a newline whose tokens are removed again.
+ */
+static llama_tokens tokenize_continuation(const llama_vocab *vocab, const std::string &text, bool parse_special) {
+    const std::string separator = "\n";
+    const llama_tokens tokens_separator = common_tokenize(vocab, separator, false, false);
+    llama_tokens tokens = common_tokenize(vocab, separator + text, false, parse_special);
+    if (tokens.size() >= tokens_separator.size() &&
+        std::equal(tokens_separator.begin(), tokens_separator.end(), tokens.begin())) {
+        tokens.erase(tokens.begin(), tokens.begin() + tokens_separator.size());
+        return tokens;
+    }
+    // the separator was merged with the text
+    return common_tokenize(vocab, text, false, parse_special);
+}
+
 /**
  * this handles 2 cases:
  * - only string, example: "string"
  * - mixed string and tokens, example: [12, 34, "string", 56, 78]
+ * a string that follows other elements continues them, so it is tokenized without the leading space that some
+ * vocabularies prefix a text with, see tokenize_continuation
  */
 static llama_tokens tokenize_mixed(const llama_vocab *vocab, const json &json_prompt, bool add_special,
                                    bool parse_special) {
@@ -141,7 +160,7 @@ static llama_tokens tokenize_mixed(const llama_vocab *vocab, const json &json_pr
                     p = common_tokenize(vocab, s, add_special, parse_special);
                     first = false;
                 } else {
-                    p = common_tokenize(vocab, s, false, parse_special);
+                    p = tokenize_continuation(vocab, s, parse_special);
                 }
 
                 prompt_tokens.insert(prompt_tokens.end(), p.begin(), p.end());
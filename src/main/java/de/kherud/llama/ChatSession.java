@@ -0,0 +1,115 @@
+package de.kherud.llama;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A conversation whose history stays in the KV cache of a pinned slot. Every message is rendered with the chat template
+ * of the model, but only the text following the part of the conversation that the slot already processed is submitted,
+ * so that each turn is tokenized and processed in time proportional to the new text instead of the whole history. If
+ * the cached conversation isn't available anymore, e.g., because another request was processed in the slot, the whole
+ * conversation is submitted again. Any other failure, e.g., a {@link LlamaOverloadedException} or
+ * {@link LlamaTimeoutException}, is thrown as it is.
+ * <p>
+ * Other requests shouldn't be processed in the slot of a session (see {@link InferenceParameters#setSlotId(int)}), and
+ * a session shouldn't be used by multiple threads at once.
+ */
+public final class ChatSession {
+
+    private static final AtomicLong SESSION_IDS = new AtomicLong();
+
+    private final LlamaModel model;
+    private final int slotId;
+    @Nullable
+    private final String systemMessage;
+    private final long sessionId = SESSION_IDS.incrementAndGet();
+    private final List<Pair<String, String>> messages = new ArrayList<>();
+
+    // the conversation as the slot processed it, i.e., the last rendered prompt and response
+    @Nullable
+    private String processed;
+
+    /**
+     * @param model the model to chat with
+     * @param slotId the id of the slot to keep the conversation in
+     * @param systemMessage the system message of the conversation, or null if there is none
+     */
+    public ChatSession(LlamaModel model, int slotId, @Nullable String systemMessage) {
+        if (slotId < 0) {
+            throw new IllegalArgumentException("slot id must not be negative");
+        }
+        this.model = model;
+        this.slotId = slotId;
+        this.systemMessage = systemMessage;
+    }
+
+    /**
+     * Send a user message and generate the response of the assistant with default parameters.
+     *
+     * @return the response of the assistant
+     */
+    public String chat(String message) {
+        return chat(message, new InferenceParameters(""));
+    }
+
+    /**
+     * Send a user message and generate the response of the assistant. The prompt, slot and prompt caching of the
+     * parameters are set by the session.
+     *
+     * @param parameters the parameters of the response, like the amount of tokens to predict or sampling settings
+     * @return the response of the assistant
+     */
+    public String chat(String message, InferenceParameters parameters) {
+        messages.add(new Pair<>("user", message));
+        try {
+            String rendered = model.applyTemplate(new InferenceParameters("").setMessages(systemMessage, messages));
+            String response = null;
+            if (processed != null && rendered.startsWith(processed)) {
+                try {
+                    response = complete(parameters, rendered.substring(processed.length()), true);
+                } catch (LlamaSessionException e) {
+                    // the cached conversation was evicted from the slot, so submit the whole conversation below
+                }
+            }
+            if (response == null) {
+                processed = null;
+                response = complete(parameters, rendered, false);
+            }
+            processed = rendered + response;
+            messages.add(new Pair<>("assistant", response));
+            return response;
+        } catch (RuntimeException e) {
+            messages.remove(messages.size() - 1);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the user and assistant messages of the conversation so far
+     */
+    public List<Pair<String, String>> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * @return the id of the slot the conversation is kept in
+     */
+    public int getSlotId() {
+        return slotId;
+    }
+
+    private String complete(InferenceParameters parameters, String prompt, boolean append) {
+        parameters.setPrompt(prompt)
+                .setSlotId(slotId)
+                .setCachePrompt(true)
+                .setSession(sessionId, append)
+                .setStream(false);
+        // the response caches are bypassed, since the response has to be processed by the slot
+        int taskId = model.submitCompletion(parameters);
+        return model.receiveCompletion(taskId).text;
+    }
+}
@@ -0,0 +1,349 @@
+package de.kherud.llama;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of embeddings that is keyed by the SHA-256 hash of the model identity (see {@link LlamaModel#getModelMeta()})
+ * and the embedded text. Once it is set via {@link LlamaModel#setEmbeddingCache(EmbeddingCache)}, cached embeddings are
+ * returned by {@link LlamaModel#embed(String)} and {@link LlamaModel#embed(java.util.List)} without running inference.
+ * <p>
+ * The least recently used embeddings are evicted from memory. Optionally, embeddings are also stored in a
+ * memory-mapped file with a fixed amount of entries, so that they survive restarts of the JVM. If the file is full,
+ * new embeddings overwrite older ones with a similar hash. The file is created with the dimension of the first stored
+ * embedding, and it is re-created if a different dimension is stored later.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class EmbeddingCache implements AutoCloseable {
+
+    private static final int MAGIC = 0x6a6c6563; // "jlec"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    // the amount of neighboring entries of the file that are probed for a hash
+    private static final int PROBES = 8;
+
+    private final int maxEntries;
+    private final Map<Key, float[]> entries;
+
+    @Nullable
+    private final Path file;
+    private final int maxFileEntries;
+    @Nullable
+    private FileChannel channel;
+    @Nullable
+    private MappedByteBuffer mapped;
+    private int dimension;
+    private boolean closed;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a cache that only keeps embeddings in memory.
+     *
+     * @param maxEntries the maximum amount of embeddings to keep in memory
+     */
+    public EmbeddingCache(int maxEntries) {
+        this(maxEntries, null, 0);
+    }
+
+    /**
+     * Create a cache that keeps embeddings in memory and in a memory-mapped file. An existing file is re-used.
+     *
+     * @param maxEntries the maximum amount of embeddings to keep in memory
+     * @param file the file to store embeddings in
+     * @param maxFileEntries the maximum amount of embeddings to store in the file
+     * @throws UncheckedIOException if an existing file can't be opened
+     */
+    public EmbeddingCache(int maxEntries, @Nullable Path file, int maxFileEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maximum amount of entries must be positive");
+        }
+        if (file != null && maxFileEntries <= 0) {
+            throw new IllegalArgumentException("maximum amount of file entries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, float[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+                return size() > EmbeddingCache.this.maxEntries;
+            }
+        };
+        this.file = file;
+        this.maxFileEntries = maxFileEntries;
+        if (file != null && file.toFile().isFile()) {
+            openFile(0);
+        }
+    }
+
+    /**
+     * @return the amount of lookups that were answered from memory or the file
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the amount of lookups that required inference
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the amount of embeddings currently kept in memory
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all embeddings from memory, but keep the file and the hit and miss counters.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Write pending changes of the file to the storage device and close it. The in-memory cache can still be used,
+     * but no further embeddings are stored in the file.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeFile();
+    }
+
+    private void closeFile() {
+        if (mapped != null) {
+            mapped.force();
+            mapped = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Note, that the returned array is shared and must not be modified.
+     *
+     * @return the cached embedding, or null if it isn't cached
+     */
+    @Nullable
+    synchronized float[] get(Key key) {
+        float[] embedding = entries.get(key);
+        if (embedding == null && mapped != null) {
+            embedding = readFile(key);
+            if (embedding != null) {
+                entries.put(key, embedding);
+            }
+        }
+        if (embedding == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return embedding;
+    }
+
+    synchronized void put(Key key, float[] embedding) {
+        entries.put(key, embedding);
+        if (file != null && !closed) {
+            if (mapped == null || embedding.length != dimension) {
+                openFile(embedding.length);
+            }
+            writeFile(key, embedding);
+        }
+    }
+
+    /**
+     * Hash the identity of a model and a text to a key of this cache.
+     */
+    static Key key(String modelIdentity, String text) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(modelIdentity.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        return new Key(digest.digest());
+    }
+
+    // Opens the file with the dimension stored in its header, or (re-)creates it if it has a different dimension.
+    // A dimension of zero opens an existing file with whatever dimension it has.
+    private void openFile(int dimension) {
+        closeFile();
+        if (dimension > 0) {
+            checkFileSize(dimension);
+        }
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (channel.size() >= HEADER_BYTES) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                int storedDimension = header.getInt(8);
+                int storedEntries = header.getInt(12);
+                if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION && storedEntries == maxFileEntries
+                        && (dimension == 0 || dimension == storedDimension)
+                        && channel.size() == fileSize(storedDimension)) {
+                    map(storedDimension);
+                    return;
+                }
+            }
+            if (dimension == 0) {
+                // an unknown or outdated file, which is re-created once the first embedding is stored
+                closeFile();
+                return;
+            }
+            channel.truncate(0);
+            map(dimension);
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            mapped.putInt(8, dimension);
+            mapped.putInt(12, maxFileEntries);
+        } catch (IOException e) {
+            closeFile();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            closeFile();
+            throw e;
+        }
+    }
+
+    private void map(int dimension) throws IOException {
+        checkFileSize(dimension);
+        this.dimension = dimension;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(dimension));
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // a file is mapped as a whole, so it can't be larger than a byte buffer
+    private void checkFileSize(int dimension) {
+        if (fileSize(dimension) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("embedding cache file is too large, reduce the amount of entries");
+        }
+    }
+
+    private long fileSize(int dimension) {
+        return HEADER_BYTES + (long) maxFileEntries * entryBytes(dimension);
+    }
+
+    private static int entryBytes(int dimension) {
+        return HASH_BYTES + dimension * Float.BYTES;
+    }
+
+    // the offset of the entry with the key, or of the entry to overwrite if there is none, or -1 if there is neither
+    private int findEntry(Key key, boolean forWriting) {
+        int entryBytes = entryBytes(dimension);
+        int start = Math.floorMod(key.hashCode(), maxFileEntries);
+        int free = -1;
+        for (int i = 0; i < Math.min(PROBES, maxFileEntries); i++) {
+            int offset = HEADER_BYTES + ((start + i) % maxFileEntries) * entryBytes;
+            if (key.equalsAt(mapped, offset)) {
+                return offset;
+            }
+            if (free < 0 && isEmptyAt(mapped, offset)) {
+                free = offset;
+            }
+        }
+        if (!forWriting) {
+            return -1;
+        }
+        return free >= 0 ? free : HEADER_BYTES + start * entryBytes;
+    }
+
+    @Nullable
+    private float[] readFile(Key key) {
+        int offset = findEntry(key, false);
+        if (offset < 0) {
+            return null;
+        }
+        float[] embedding = new float[dimension];
+        floatsAt(offset + HASH_BYTES).get(embedding);
+        return embedding;
+    }
+
+    private void writeFile(Key key, float[] embedding) {
+        int offset = findEntry(key, true);
+        // clear the hash first and write it last, so that a partially written entry is never found
+        for (int i = 0; i < HASH_BYTES; i++) {
+            mapped.put(offset + i, (byte) 0);
+        }
+        floatsAt(offset + HASH_BYTES).put(embedding);
+        for (int i = 0; i < HASH_BYTES; i++) {
+            mapped.put(offset + i, key.hash[i]);
+        }
+    }
+
+    private FloatBuffer floatsAt(int offset) {
+        ByteBuffer view = mapped.duplicate();
+        view.position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    private static boolean isEmptyAt(MappedByteBuffer buffer, int offset) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            if (buffer.get(offset + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static final class Key {
+
+        private final byte[] hash;
+        private final int hashCode;
+
+        private Key(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        private boolean equalsAt(MappedByteBuffer buffer, int offset) {
+            for (int i = 0; i < HASH_BYTES; i++) {
+                if (buffer.get(offset + i) != hash[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(hash, ((Key) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package de.kherud.llama;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A compact hierarchical navigable small world graph for approximate nearest neighbour search by cosine similarity
+ * (see Malkov and Yashunin, "Efficient and robust approximate nearest neighbor search using Hierarchical Navigable
+ * Small World graphs"). Nodes are identified by the order in which they were added. Removed nodes are only excluded
+ * from search results, but still used to navigate the graph, so the index should be rebuilt once many nodes were
+ * removed.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class HnswIndex {
+
+    private static final Comparator<Candidate> NEAREST_FIRST = (a, b) -> Float.compare(b.similarity, a.similarity);
+    private static final Comparator<Candidate> FARTHEST_FIRST = (a, b) -> Float.compare(a.similarity, b.similarity);
+
+    private final int dimension;
+    private final int maxLinks;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final Random random;
+
+    private final List<float[]> vectors = new ArrayList<>();
+    // the neighbours of every node on every level it is part of
+    private final List<int[][]> links = new ArrayList<>();
+    private final BitSet removed = new BitSet();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    /**
+     * @param dimension the dimension of the indexed vectors
+     * @param maxLinks the maximum amount of neighbours per node on upper levels, twice as many are kept on level zero
+     * @param efConstruction the amount of candidates considered when linking a new node
+     * @param seed the seed of the random levels of nodes
+     */
+    HnswIndex(int dimension, int maxLinks, int efConstruction, long seed) {
+        this.dimension = dimension;
+        this.maxLinks = maxLinks;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1 / Math.log(maxLinks);
+        this.random = new Random(seed);
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    /**
+     * @return the amount of nodes that were ever added, including removed ones
+     */
+    int nodes() {
+        return vectors.size();
+    }
+
+    /**
+     * @return the amount of nodes that were removed
+     */
+    int removed() {
+        return removed.cardinality();
+    }
+
+    /**
+     * Add a vector to the index.
+     *
+     * @return the node of the vector
+     */
+    int add(float[] vector) {
+        float[] normalized = normalize(vector);
+        int node = vectors.size();
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+        int[][] nodeLinks = new int[level + 1][];
+        for (int i = 0; i <= level; i++) {
+            nodeLinks[i] = new int[0];
+        }
+        vectors.add(normalized);
+        links.add(nodeLinks);
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return node;
+        }
+
+        int entry = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            entry = searchLayer(normalized, entry, 1, l).get(0).node;
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Candidate> found = searchLayer(normalized, entry, efConstruction, l);
+            int count = Math.min(maxLinks, found.size());
+            int[] neighbours = new int[count];
+            for (int i = 0; i < count; i++) {
+                neighbours[i] = found.get(i).node;
+            }
+            nodeLinks[l] = neighbours;
+            for (int neighbour : neighbours) {
+                link(neighbour, node, l);
+            }
+            entry = found.get(0).node;
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        return node;
+    }
+
+    /**
+     * Exclude a node from future search results.
+     */
+    void remove(int node) {
+        removed.set(node);
+    }
+
+    /**
+     * Find the approximately nearest nodes of a vector that weren't removed.
+     *
+     * @param k the maximum amount of nodes to return
+     * @param ef the amount of candidates to consider, at least k
+     * @return the nearest nodes, starting with the most similar one
+     */
+    List<Candidate> search(float[] vector, int k, int ef) {
+        List<Candidate> nearest = new ArrayList<>();
+        if (entryPoint < 0) {
+            return nearest;
+        }
+        float[] normalized = normalize(vector);
+        int entry = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            entry = searchLayer(normalized, entry, 1, l).get(0).node;
+        }
+        for (Candidate candidate : searchLayer(normalized, entry, Math.max(k, ef), 0)) {
+            if (!removed.get(candidate.node)) {
+                nearest.add(candidate);
+                if (nearest.size() == k) {
+                    break;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    // the ef nearest nodes of a level that are reachable from the entry, starting with the most similar one
+    private List<Candidate> searchLayer(float[] vector, int entry, int ef, int level) {
+        BitSet visited = new BitSet(vectors.size());
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(NEAREST_FIRST);
+        PriorityQueue<Candidate> results = new PriorityQueue<>(FARTHEST_FIRST);
+        Candidate first = new Candidate(entry, similarity(vector, entry));
+        visited.set(entry);
+        candidates.add(first);
+        results.add(first);
+        while (!candidates.isEmpty()) {
+            Candidate current = candidates.poll();
+            if (results.size() >= ef && current.similarity < results.peek().similarity) {
+                break;
+            }
+            for (int neighbour : links.get(current.node)[level]) {
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                float similarity = similarity(vector, neighbour);
+                if (results.size() < ef || similarity > results.peek().similarity) {
+                    Candidate candidate = new Candidate(neighbour, similarity);
+                    candidates.add(candidate);
+                    results.add(candidate);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        List<Candidate> nearest = new ArrayList<>(results);
+        nearest.sort(NEAREST_FIRST);
+        return nearest;
+    }
+
+    // add a link from a node to a new neighbour, and drop the least similar neighbour if there are too many
+    private void link(int node, int neighbour, int level) {
+        int[] neighbours = links.get(node)[level];
+        int max = level == 0 ? 2 * maxLinks : maxLinks;
+        if (neighbours.length < max) {
+            int[] extended = new int[neighbours.length + 1];
+            System.arraycopy(neighbours, 0, extended, 0, neighbours.length);
+            extended[neighbours.length] = neighbour;
+            links.get(node)[level] = extended;
+            return;
+        }
+        float[] vector = vectors.get(node);
+        int weakest = -1;
+        float weakestSimilarity = similarity(vector, neighbour);
+        for (int i = 0; i < neighbours.length; i++) {
+            float similarity = similarity(vector, neighbours[i]);
+            if (similarity < weakestSimilarity) {
+                weakest = i;
+                weakestSimilarity = similarity;
+            }
+        }
+        if (weakest >= 0) {
+            neighbours[weakest] = neighbour;
+        }
+    }
+
+    private float similarity(float[] vector, int node) {
+        float[] other = vectors.get(node);
+        float dot = 0;
+        for (int i = 0; i < dimension; i++) {
+            dot += vector[i] * other[i];
+        }
+        return dot;
+    }
+
+    private float[] normalize(float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("expected a vector of dimension " + dimension + " but got " + vector.length);
+        }
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        float[] normalized = new float[dimension];
+        if (norm > 0) {
+            for (int i = 0; i < dimension; i++) {
+                normalized[i] = (float) (vector[i] / norm);
+            }
+        }
+        return normalized;
+    }
+
+    static final class Candidate {
+
+        final int node;
+        // the cosine similarity to the searched vector
+        final float similarity;
+
+        private Candidate(int node, float similarity) {
+            this.node = node;
+            this.similarity = similarity;
+        }
+    }
+}
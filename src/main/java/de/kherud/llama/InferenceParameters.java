@@ -1,11 +1,19 @@
 package de.kherud.llama;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import de.kherud.llama.args.MiroStat;
 import de.kherud.llama.args.Sampler;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Parameters used throughout inference of a {@link LlamaModel}, e.g., {@link LlamaModel#generate(InferenceParameters)}
@@ -50,6 +58,32 @@ public final class InferenceParameters extends JsonParameters {
 	private static final String PARAM_USE_CHAT_TEMPLATE = "use_chat_template";
 	private static final String PARAM_USE_JINJA = "use_jinja";
 	private static final String PARAM_MESSAGES = "messages";
+	private static final String PARAM_ID_SLOT = "id_slot";
+	private static final String PARAM_STREAM_TOKENS = "stream_tokens";
+	private static final String PARAM_ID_SESSION = "id_session";
+	private static final String PARAM_PROMPT_APPEND = "prompt_append";
+	private static final String PARAM_PRIORITY = "priority";
+	private static final String PARAM_DEADLINE = "deadline";
+	private static final String PARAM_T_MAX_PROMPT_MS = "t_max_prompt_ms";
+
+	// Scalar parameters that can be sent in binary form instead of JSON, see toBinary(ByteBuffer).
+	// The order has to match the enum binary_param in server.hpp.
+	private static final List<String> BINARY_PARAMS = Arrays.asList(
+			PARAM_STREAM, PARAM_CACHE_PROMPT, PARAM_N_PREDICT, PARAM_TOP_K, PARAM_TOP_P, PARAM_MIN_P,
+			PARAM_TYPICAL_P, PARAM_TEMPERATURE, PARAM_DYNATEMP_RANGE, PARAM_DYNATEMP_EXPONENT, PARAM_REPEAT_LAST_N,
+			PARAM_REPEAT_PENALTY, PARAM_FREQUENCY_PENALTY, PARAM_PRESENCE_PENALTY, PARAM_MIROSTAT,
+			PARAM_MIROSTAT_TAU, PARAM_MIROSTAT_ETA, PARAM_N_KEEP, PARAM_SEED, PARAM_N_PROBS, PARAM_MIN_KEEP,
+			PARAM_IGNORE_EOS, PARAM_ID_SLOT, PARAM_STREAM_TOKENS, PARAM_PRIORITY, PARAM_DEADLINE
+	);
+	// parameters that aren't used by the native code, so they don't prevent the binary encoding
+	private static final Set<String> UNUSED_PARAMS = new HashSet<>(Arrays.asList(PARAM_TFS_Z, PARAM_PENALIZE_NL));
+
+	// the plain prompt if it was set via setPrompt(String), for the binary encoding
+	@Nullable
+	private String prompt;
+	// the prompt if it was set via setPromptSegments(String...), see resolvePromptSegments(LlamaModel)
+	@Nullable
+	private String[] promptSegments;
 
 	public InferenceParameters(String prompt) {
 		// we always need a prompt
@@ -60,10 +94,83 @@ public final class InferenceParameters extends JsonParameters {
 	 * Set the prompt to start generation with (default: empty)
 	 */
 	public InferenceParameters setPrompt(String prompt) {
+		this.prompt = prompt;
+		this.promptSegments = null;
 		parameters.put(PARAM_PROMPT, toJsonString(prompt));
 		return this;
 	}
 
+	/**
+	 * Set the prompt as a concatenation of text segments, e.g., a system prompt, few-shot examples and a user message.
+	 * All segments except the last one are tokenized via the {@link TokenizerCache} of the model (if there is any,
+	 * see {@link LlamaModel#setTokenizerCache(TokenizerCache)}), so recurring segments are only tokenized once. The
+	 * segments after the first one are tokenized as continuations, i.e., without the leading space that some
+	 * vocabularies (e.g., SPM) prefix the beginning of a text with, so a segment has to start with a space itself if
+	 * one separates it from the previous segment. Note, that every segment is tokenized on its own, which may still
+	 * yield different tokens at the segment boundaries than tokenizing the whole prompt at once.
+	 */
+	public InferenceParameters setPromptSegments(String... segments) {
+		if (segments.length == 0) {
+			return setPrompt("");
+		}
+		this.prompt = null;
+		this.promptSegments = segments.clone();
+		parameters.put(PARAM_PROMPT, toJsonString(String.join("", segments)));
+		return this;
+	}
+
+	/**
+	 * Replace the prompt segments (if any) with their tokens, followed by the last segment as text, which is tokenized
+	 * natively as a continuation of the others.
+	 */
+	void resolvePromptSegments(LlamaModel model) {
+		if (promptSegments == null) {
+			return;
+		}
+		StringBuilder builder = new StringBuilder();
+		builder.append("[");
+		// a mixed prompt that starts with a token doesn't get a BOS token natively
+		int bosToken = model.getBosToken();
+		boolean hasTokens = false;
+		for (int i = 0; i < promptSegments.length - 1; i++) {
+			for (int token : model.encodeShared(promptSegments[i], i > 0)) {
+				if (!hasTokens && bosToken >= 0) {
+					builder.append(bosToken).append(", ");
+				}
+				builder.append(token).append(", ");
+				hasTokens = true;
+			}
+		}
+		String suffix = promptSegments[promptSegments.length - 1];
+		if (hasTokens) {
+			builder.append(toJsonString(suffix)).append("]");
+			parameters.put(PARAM_PROMPT, builder.toString());
+		} else {
+			// an array of only strings would be multiple prompts
+			parameters.put(PARAM_PROMPT, toJsonString(suffix));
+		}
+	}
+
+	/**
+	 * Set multiple prompts that are completed independently of each other, but scheduled across the slots at once
+	 * (see {@link LlamaModel#completeAll(InferenceParameters)} and {@link LlamaModel#generateAll(InferenceParameters)})
+	 */
+	public InferenceParameters setPrompts(String... prompts) {
+		this.prompt = null;
+		this.promptSegments = null;
+		StringBuilder builder = new StringBuilder();
+		builder.append("[");
+		for (int i = 0; i < prompts.length; i++) {
+			builder.append(toJsonString(prompts[i]));
+			if (i < prompts.length - 1) {
+				builder.append(", ");
+			}
+		}
+		builder.append("]");
+		parameters.put(PARAM_PROMPT, builder.toString());
+		return this;
+	}
+
 	/**
 	 * Set a prefix for infilling (default: empty)
 	 */
@@ -538,9 +645,170 @@ public final class InferenceParameters extends JsonParameters {
         return this;
     }
 
+	/**
+	 * Set the id of the slot to process the request in (default: -1, -1 = any idle slot)
+	 */
+	public InferenceParameters setSlotId(int slotId) {
+		parameters.put(PARAM_ID_SLOT, String.valueOf(slotId));
+		return this;
+	}
+
+	/**
+	 * Set the priority of the request (default: 0). If all slots are busy, waiting requests with a higher priority
+	 * are processed first, e.g., interactive requests before batch jobs. If no slot is available at all, a request
+	 * preempts the generation with the lowest priority below its own, which is suspended and continues once a slot
+	 * is available again. Generations pinned to a slot (see {@link #setSlotId(int)}) are never preempted.
+	 */
+	public InferenceParameters setPriority(int priority) {
+		parameters.put(PARAM_PRIORITY, String.valueOf(priority));
+		return this;
+	}
+
+	/**
+	 * Set the time the request should be done by in milliseconds since the epoch (see
+	 * {@link System#currentTimeMillis()}). If all slots are busy, waiting requests of the same priority are processed
+	 * in order of their deadlines, before requests without a deadline. Once the deadline passes, the request is
+	 * stopped wherever it is, waiting for a slot, processing the prompt or generating, and fails with a
+	 * {@link LlamaTimeoutException}.
+	 */
+	public InferenceParameters setDeadline(long deadlineMillis) {
+		if (deadlineMillis <= 0) {
+			throw new IllegalArgumentException("deadline must be positive");
+		}
+		parameters.put(PARAM_DEADLINE, String.valueOf(deadlineMillis));
+		return this;
+	}
+
+	/**
+	 * Set the maximum time in milliseconds to process the prompt (default: -1, unlimited). If the prompt takes longer,
+	 * the request fails with a {@link LlamaTimeoutException}.
+	 */
+	public InferenceParameters setMaxPromptTime(long maxPromptMillis) {
+		parameters.put(PARAM_T_MAX_PROMPT_MS, String.valueOf(maxPromptMillis));
+		return this;
+	}
+
+	/**
+	 * Mark the request as a turn of a {@link ChatSession}. If the prompt is appended, it only contains the text that
+	 * follows the conversation cached by the selected slot.
+	 */
+	InferenceParameters setSession(long sessionId, boolean appendPrompt) {
+		parameters.put(PARAM_ID_SESSION, String.valueOf(sessionId));
+		parameters.put(PARAM_PROMPT_APPEND, String.valueOf(appendPrompt));
+		return this;
+	}
+
 	InferenceParameters setStream(boolean stream) {
 		parameters.put(PARAM_STREAM, String.valueOf(stream));
 		return this;
 	}
 
+	InferenceParameters setStreamTokens(boolean streamTokens) {
+		parameters.put(PARAM_STREAM_TOKENS, String.valueOf(streamTokens));
+		return this;
+	}
+
+	/**
+	 * Normalize the parameters to a key of the {@link ResponseCache}, i.e., sort them and drop those that don't
+	 * influence the generated text. Prompt segments have to be resolved before (see
+	 * {@link #resolvePromptSegments(LlamaModel)}).
+	 *
+	 * @return the key, or null if the generated text isn't deterministic, i.e., neither the temperature is zero nor
+	 * a seed is set
+	 */
+	@Nullable
+	String toCacheKey() {
+		String temperature = parameters.get(PARAM_TEMPERATURE);
+		String seed = parameters.get(PARAM_SEED);
+		boolean greedy = temperature != null && Float.parseFloat(temperature) <= 0;
+		boolean seeded = seed != null && Integer.parseInt(seed) >= 0;
+		if (!greedy && !seeded) {
+			return null;
+		}
+		return normalize(new TreeMap<>(parameters));
+	}
+
+	/**
+	 * Normalize the parameters except the prompt and seed, so that the {@link SemanticCache} only returns responses
+	 * to requests with otherwise equal parameters.
+	 */
+	String toSemanticContext() {
+		Map<String, String> normalized = new TreeMap<>(parameters);
+		normalized.remove(PARAM_PROMPT);
+		normalized.remove(PARAM_SEED);
+		return normalize(normalized);
+	}
+
+	/**
+	 * @return the plain prompt if it was set via {@link #setPrompt(String)}, or null otherwise
+	 */
+	@Nullable
+	String getPrompt() {
+		return prompt;
+	}
+
+	private static String normalize(Map<String, String> normalized) {
+		normalized.remove(PARAM_STREAM);
+		normalized.remove(PARAM_CACHE_PROMPT);
+		normalized.remove(PARAM_ID_SLOT);
+		normalized.remove(PARAM_PRIORITY);
+		normalized.remove(PARAM_DEADLINE);
+		normalized.remove(PARAM_T_MAX_PROMPT_MS);
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, String> entry : normalized.entrySet()) {
+			builder.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Encode the parameters in the compact binary layout read by the native code, which avoids creating and parsing
+	 * JSON for every request. The layout (in native byte order) is: the number of binary parameters and the prompt
+	 * length as int, a long bit mask of the parameters that are set, a double for each of {@link #BINARY_PARAMS} and
+	 * the UTF-8 bytes of the prompt.
+	 *
+	 * @param buffer a direct buffer to re-use if it is large enough, or <code>null</code>
+	 * @return the encoded parameters ready to be read, or <code>null</code> if any parameter can only be sent as JSON
+	 */
+	@Nullable
+	ByteBuffer toBinary(@Nullable ByteBuffer buffer) {
+		if (prompt == null) {
+			return null;
+		}
+		long mask = 0;
+		double[] values = new double[BINARY_PARAMS.size()];
+		for (Map.Entry<String, String> entry : parameters.entrySet()) {
+			String key = entry.getKey();
+			if (key.equals(PARAM_PROMPT) || UNUSED_PARAMS.contains(key)) {
+				continue;
+			}
+			int index = BINARY_PARAMS.indexOf(key);
+			if (index < 0) {
+				return null;
+			}
+			String value = entry.getValue();
+			if (value.equals("true") || value.equals("false")) {
+				values[index] = Boolean.parseBoolean(value) ? 1 : 0;
+			} else {
+				values[index] = Double.parseDouble(value);
+			}
+			mask |= 1L << index;
+		}
+
+		byte[] promptBytes = prompt.getBytes(StandardCharsets.UTF_8);
+		int size = 2 * Integer.BYTES + Long.BYTES + values.length * Double.BYTES + promptBytes.length;
+		if (buffer == null || buffer.capacity() < size) {
+			buffer = ByteBuffer.allocateDirect(Math.max(size, buffer == null ? 0 : 2 * buffer.capacity()))
+					.order(ByteOrder.nativeOrder());
+		}
+		buffer.clear();
+		buffer.putInt(values.length).putInt(promptBytes.length).putLong(mask);
+		for (double value : values) {
+			buffer.putDouble(value);
+		}
+		buffer.put(promptBytes);
+		buffer.flip();
+		return buffer;
+	}
+
 }
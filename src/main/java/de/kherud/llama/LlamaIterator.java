@@ -1,26 +1,73 @@
 package de.kherud.llama;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.lang.annotation.Native;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
- * This iterator is used by {@link LlamaModel#generate(InferenceParameters)}. In addition to implementing {@link Iterator},
- * it allows to cancel ongoing inference (see {@link #cancel()}).
+ * This iterator is used by {@link LlamaModel#generate(InferenceParameters)} and
+ * {@link LlamaModel#generateAll(InferenceParameters)}. In addition to implementing {@link Iterator}, it allows to cancel
+ * ongoing inference (see {@link #cancel()}). If a {@link ResponseCache} is set, cached responses to deterministic
+ * requests are replayed instead of running inference.
  */
 public final class LlamaIterator implements Iterator<LlamaOutput> {
 
     private final LlamaModel model;
     private final int taskId;
+    // the tasks of all prompts if multiple prompts are generated at once
+    private final int[] taskIds;
+    private int running;
+
+    // the cached outputs that are replayed instead of running inference
+    @Nullable
+    private final List<LlamaOutput> replay;
+    private int replayed;
+    // the cache to store the generated outputs in once the generation is completed
+    @Nullable
+    private final ResponseCache cache;
+    @Nullable
+    private final String cacheKey;
+    @Nullable
+    private final List<LlamaOutput> recorded;
 
     @Native
     @SuppressWarnings("FieldMayBeFinal")
     private boolean hasNext = true;
 
     LlamaIterator(LlamaModel model, InferenceParameters parameters) {
+        this(model, parameters, false);
+    }
+
+    LlamaIterator(LlamaModel model, InferenceParameters parameters, boolean multiplePrompts) {
         this.model = model;
         parameters.setStream(true);
-        taskId = model.requestCompletion(parameters.toString());
+        ResponseCache responseCache = multiplePrompts ? null : model.getResponseCache();
+        String key = responseCache == null ? null : model.responseCacheKey(parameters);
+        List<LlamaOutput> cached = key == null ? null : responseCache.get(key);
+        if (cached != null) {
+            taskIds = new int[0];
+            replay = cached;
+            cache = null;
+            cacheKey = null;
+            recorded = null;
+        } else {
+            if (multiplePrompts) {
+                taskIds = model.requestCompletions(model.toJson(parameters));
+            } else {
+                taskIds = new int[]{model.submitCompletion(parameters)};
+            }
+            replay = null;
+            cache = key == null ? null : responseCache;
+            cacheKey = key;
+            recorded = key == null ? null : new ArrayList<>();
+        }
+        taskId = taskIds.length > 0 ? taskIds[0] : -1;
+        running = replay != null ? 1 : taskIds.length;
+        hasNext = running > 0;
     }
 
     @Override
@@ -33,10 +80,30 @@ public final class LlamaIterator implements Iterator<LlamaOutput> {
         if (!hasNext) {
             throw new NoSuchElementException();
         }
-        LlamaOutput output = model.receiveCompletion(taskId);
-        hasNext = !output.stop;
+        LlamaOutput output;
+        if (replay != null) {
+            output = replay.get(replayed++);
+            hasNext = replayed < replay.size();
+            return output;
+        } else if (taskIds.length == 1) {
+            output = model.receiveCompletion(taskId);
+        } else {
+            output = model.receiveAnyCompletion(taskIds);
+        }
+        if (recorded != null) {
+            recorded.add(output);
+        }
         if (output.stop) {
-        	model.releaseTask(taskId);
+            running--;
+            hasNext = running > 0;
+        }
+        if (!hasNext) {
+            for (int id : taskIds) {
+                model.releaseTask(id);
+            }
+            if (cache != null) {
+                cache.put(cacheKey, recorded);
+            }
         }
         return output;
     }
@@ -45,7 +112,9 @@ public final class LlamaIterator implements Iterator<LlamaOutput> {
      * Cancel the ongoing generation process.
      */
     public void cancel() {
-        model.cancelCompletion(taskId);
+        for (int id : taskIds) {
+            model.cancelCompletion(id);
+        }
         hasNext = false;
     }
 }
@@ -4,10 +4,23 @@ import de.kherud.llama.args.LogFormat;
 import org.jetbrains.annotations.Nullable;
 
 import java.lang.annotation.Native;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 /**
@@ -18,9 +31,18 @@ import java.util.function.BiConsumer;
  * The main functionality of this class is:
  * <ul>
  *     <li>Streaming answers (and probabilities) via {@link #generate(InferenceParameters)}</li>
- *     <li>Creating whole responses to prompts via {@link #complete(InferenceParameters)}</li>
- *     <li>Creating embeddings via {@link #embed(String)} (make sure to configure {@link ModelParameters#enableEmbedding()}</li>
- *     <li>Accessing the tokenizer via {@link #encode(String)} and {@link #decode(int[])}</li>
+ *     <li>Publishing answers to reactive subscribers via {@link #generatePublisher(InferenceParameters)}</li>
+ *     <li>Streaming token ids and probabilities without per-token allocations via {@link #streamTokens(InferenceParameters)}</li>
+ *     <li>Creating whole responses to prompts via {@link #complete(InferenceParameters)}, optionally cached for
+ *     deterministic requests via {@link #setResponseCache(ResponseCache)} and for paraphrased prompts via
+ *     {@link #setSemanticCache(SemanticCache)}</li>
+ *     <li>Creating whole responses without blocking via {@link #completeAsync(InferenceParameters)}</li>
+ *     <li>Creating responses to multiple prompts at once via {@link #completeAll(InferenceParameters)} and
+ *     {@link #generateAll(InferenceParameters)}</li>
+ *     <li>Creating embeddings via {@link #embed(String)} (make sure to configure {@link ModelParameters#enableEmbedding()}),
+ *     optionally cached via {@link #setEmbeddingCache(EmbeddingCache)}</li>
+ *     <li>Accessing the tokenizer via {@link #encode(String)} and {@link #decode(int[])}, or for many texts at once
+ *     via {@link #encodeBatch(List)} and {@link #decodeBatch(int[][])}</li>
  * </ul>
  */
 public class LlamaModel implements AutoCloseable {
@@ -29,9 +51,27 @@ public class LlamaModel implements AutoCloseable {
 		LlamaLoader.initialize();
 	}
 
+	// re-used buffers for the binary encoding of inference parameters, see InferenceParameters#toBinary
+	private static final ThreadLocal<ByteBuffer> parameterBuffers = new ThreadLocal<>();
+
+	// the size and amount of chunks that are counted at once by countTokens(Reader)
+	private static final int COUNT_CHUNK_SIZE = 1 << 16;
+	private static final int COUNT_CHUNKS = Runtime.getRuntime().availableProcessors();
+
 	@Native
 	private long ctx;
 
+	@Nullable
+	private volatile TokenizerCache tokenizerCache;
+	@Nullable
+	private volatile EmbeddingCache embeddingCache;
+	@Nullable
+	private volatile ResponseCache responseCache;
+	@Nullable
+	private volatile SemanticCache semanticCache;
+	@Nullable
+	private volatile String modelIdentity;
+
 	/**
 	 * Load with the given {@link ModelParameters}. Make sure to either set
 	 * <ul>
@@ -55,11 +95,93 @@ public class LlamaModel implements AutoCloseable {
 	 */
 	public String complete(InferenceParameters parameters) {
 		parameters.setStream(false);
-		int taskId = requestCompletion(parameters.toString());
+		ResponseCache cache = responseCache;
+		String key = cache == null ? null : responseCacheKey(parameters);
+		if (key != null) {
+			List<LlamaOutput> cached = cache.get(key);
+			if (cached != null) {
+				return ResponseCache.text(cached);
+			}
+		}
+		SemanticCache semantic = semanticCache;
+		String prompt = semantic == null ? null : parameters.getPrompt();
+		String context = null;
+		float[] embedding = null;
+		if (prompt != null) {
+			context = parameters.toSemanticContext();
+			embedding = semantic.embed(prompt);
+			String cached = semantic.get(context, prompt, embedding);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		int taskId = submitCompletion(parameters);
 		LlamaOutput output = receiveCompletion(taskId);
+		if (key != null) {
+			cache.put(key, Collections.singletonList(output));
+		}
+		if (embedding != null) {
+			semantic.put(context, prompt, embedding, output.text);
+		}
+		return output.text;
+	}
+
+	/**
+	 * Generate a whole answer like {@link #complete(InferenceParameters)}, but wait at most the given time for it. The
+	 * response caches aren't used.
+	 *
+	 * @return an LLM response
+	 * @throws LlamaTimeoutException if the answer isn't complete in time, in which case the request is cancelled
+	 */
+	public String complete(InferenceParameters parameters, long timeout, TimeUnit unit) {
+		parameters.setStream(false);
+		int taskId = submitCompletion(parameters);
+		LlamaOutput output = receiveCompletionTimed(taskId, unit.toMillis(timeout));
+		if (output == null) {
+			cancelCompletion(taskId);
+			throw new LlamaTimeoutException("The answer wasn't complete within " + unit.toMillis(timeout) + " ms");
+		}
 		return output.text;
 	}
 
+	/**
+	 * Generate whole answers to all prompts given via {@link InferenceParameters#setPrompts(String...)}. The prompts are
+	 * scheduled across the slots at once, so they are processed in parallel if the model was loaded with multiple
+	 * slots (see {@link ModelParameters#setParallel(int)}).
+	 *
+	 * @return an LLM response for each prompt, in the same order as the prompts
+	 */
+	public List<String> completeAll(InferenceParameters parameters) {
+		parameters.setStream(false);
+		int[] taskIds = requestCompletions(toJson(parameters));
+		String[] texts = new String[taskIds.length];
+		for (int i = 0; i < taskIds.length; i++) {
+			LlamaOutput output = receiveAnyCompletion(taskIds);
+			texts[output.index] = output.text;
+		}
+		return Arrays.asList(texts);
+	}
+
+	/**
+	 * Generate a whole answer like {@link #complete(InferenceParameters)}, but without blocking the calling thread.
+	 * The returned future is completed by the native inference thread, so dependent stages that do any heavy work
+	 * should use the <code>*Async</code> methods of {@link CompletableFuture}. Cancelling the future cancels the
+	 * inference.
+	 *
+	 * @return a future LLM response
+	 */
+	public CompletableFuture<LlamaOutput> completeAsync(InferenceParameters parameters) {
+		parameters.setStream(false);
+		CompletableFuture<LlamaOutput> future = new CompletableFuture<>();
+		int taskId = requestAsyncCompletion(toJson(parameters), future);
+		future.whenComplete((output, throwable) -> {
+			if (future.isCancelled()) {
+				cancelCompletion(taskId);
+			}
+		});
+		return future;
+	}
+
 	/**
 	 * Generate and stream outputs with custom inference parameters. Note, that the prompt isn't preprocessed in any
 	 * way, nothing like "User: ", "###Instruction", etc. is added.
@@ -69,27 +191,424 @@ public class LlamaModel implements AutoCloseable {
 	public LlamaIterable generate(InferenceParameters parameters) {
 		return () -> new LlamaIterator(this, parameters);
 	}
+
+	/**
+	 * Generate and stream outputs for all prompts given via {@link InferenceParameters#setPrompts(String...)}. The
+	 * outputs of the prompts are interleaved in the order they are generated, use {@link LlamaOutput#index} to tell
+	 * them apart. The iteration ends once every prompt is completed.
+	 *
+	 * @return iterable LLM outputs of all prompts
+	 */
+	public LlamaIterable generateAll(InferenceParameters parameters) {
+		return () -> new LlamaIterator(this, parameters, true);
+	}
+
+	/**
+	 * Generate outputs like {@link #generate(InferenceParameters)}, but push them to the subscribers of a
+	 * {@link java.util.concurrent.Flow.Publisher} instead of blocking a consumer thread. Outputs are delivered on the
+	 * common {@link ForkJoinPool} and at most 64 outputs are buffered per subscriber.
+	 *
+	 * @return a publisher that starts a new generation for every subscriber
+	 */
+	public LlamaPublisher generatePublisher(InferenceParameters parameters) {
+		return generatePublisher(parameters, ForkJoinPool.commonPool(), 64);
+	}
+
+	/**
+	 * Generate outputs like {@link #generate(InferenceParameters)}, but push them to the subscribers of a
+	 * {@link java.util.concurrent.Flow.Publisher} instead of blocking a consumer thread. If a subscriber doesn't
+	 * request outputs fast enough, its generation is paused once <code>bufferSize</code> outputs are buffered.
+	 *
+	 * @param executor the executor to deliver the outputs on
+	 * @param bufferSize the maximum amount of outputs to buffer per subscriber
+	 * @return a publisher that starts a new generation for every subscriber
+	 */
+	public LlamaPublisher generatePublisher(InferenceParameters parameters, Executor executor, int bufferSize) {
+		return new LlamaPublisher(this, parameters, executor, bufferSize);
+	}
+
+	/**
+	 * Generate and stream single tokens with custom inference parameters. Unlike {@link #generate(InferenceParameters)},
+	 * every sampled token is returned with its id, bytes and (if {@link InferenceParameters#setNProbs(int)} is
+	 * configured) probabilities in primitive arrays that are re-used between tokens.
+	 *
+	 * @return a stream of the generated tokens, which should be closed if it isn't consumed until the end
+	 */
+	public LlamaTokenStream streamTokens(InferenceParameters parameters) {
+		return new LlamaTokenStream(this, parameters);
+	}
 	
 	
     
 	/**
 	 * Get the embedding of a string. Note, that the prompt isn't preprocessed in any way, nothing like
-	 * "User: ", "###Instruction", etc. is added.
+	 * "User: ", "###Instruction", etc. is added. If an {@link EmbeddingCache} is set, cached embeddings are returned
+	 * without running inference.
 	 *
 	 * @param prompt the string to embed
 	 * @return an embedding float array
 	 * @throws IllegalStateException if embedding mode was not activated (see {@link ModelParameters#enableEmbedding()})
 	 */
-	public  native float[] embed(String prompt);
+	public float[] embed(String prompt) {
+		EmbeddingCache cache = embeddingCache;
+		if (cache == null) {
+			return computeEmbedding(prompt);
+		}
+		EmbeddingCache.Key key = EmbeddingCache.key(getModelIdentity(), prompt);
+		float[] embedding = cache.get(key);
+		if (embedding == null) {
+			embedding = computeEmbedding(prompt);
+			cache.put(key, embedding.clone());
+			return embedding;
+		}
+		return embedding.clone();
+	}
+
+	/**
+	 * Get the embeddings of multiple strings at once. All prompts are submitted together, so they are processed
+	 * in parallel if the model was loaded with multiple slots (see {@link ModelParameters#setParallel(int)}).
+	 *
+	 * @param prompts the strings to embed
+	 * @return an embedding float array for each prompt, in the same order as the prompts
+	 * @throws LlamaException if embedding mode was not activated (see {@link ModelParameters#enableEmbedding()})
+	 */
+	public float[][] embed(List<String> prompts) {
+		EmbeddingCache cache = embeddingCache;
+		if (cache == null) {
+			return embedAll(prompts.toArray(new String[0]));
+		}
+		float[][] embeddings = new float[prompts.size()][];
+		EmbeddingCache.Key[] keys = new EmbeddingCache.Key[prompts.size()];
+		List<Integer> missing = new ArrayList<>();
+		for (int i = 0; i < prompts.size(); i++) {
+			keys[i] = EmbeddingCache.key(getModelIdentity(), prompts.get(i));
+			float[] embedding = cache.get(keys[i]);
+			if (embedding == null) {
+				missing.add(i);
+			} else {
+				embeddings[i] = embedding.clone();
+			}
+		}
+		if (!missing.isEmpty()) {
+			String[] missingPrompts = new String[missing.size()];
+			for (int i = 0; i < missingPrompts.length; i++) {
+				missingPrompts[i] = prompts.get(missing.get(i));
+			}
+			float[][] computed = embedAll(missingPrompts);
+			for (int i = 0; i < computed.length; i++) {
+				int index = missing.get(i);
+				embeddings[index] = computed[i];
+				cache.put(keys[index], computed[i].clone());
+			}
+		}
+		return embeddings;
+	}
+
+	/**
+	 * Set a cache for embeddings, which is used by {@link #embed(String)} and {@link #embed(List)}. Note, that
+	 * {@link #embedInto(List, FloatBuffer)} always runs inference.
+	 *
+	 * @param cache the cache to use, or null to disable caching
+	 */
+	public void setEmbeddingCache(@Nullable EmbeddingCache cache) {
+		this.embeddingCache = cache;
+	}
+
+	/**
+	 * @return the cache for embeddings, or null if there is none
+	 */
+	@Nullable
+	public EmbeddingCache getEmbeddingCache() {
+		return embeddingCache;
+	}
+
+	/**
+	 * Set a cache for whole responses to deterministic requests, which is used by
+	 * {@link #complete(InferenceParameters)} and {@link #generate(InferenceParameters)}. Responses to multiple prompts,
+	 * asynchronous completions, publishers and token streams always run inference.
+	 *
+	 * @param cache the cache to use, or null to disable caching
+	 */
+	public void setResponseCache(@Nullable ResponseCache cache) {
+		this.responseCache = cache;
+	}
+
+	/**
+	 * @return the cache for responses to deterministic requests, or null if there is none
+	 */
+	@Nullable
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Set a cache that answers prompts similar to previous ones, which is used by
+	 * {@link #complete(InferenceParameters)}. It is consulted after the {@link ResponseCache}, if there is any.
+	 *
+	 * @param cache the cache to use, or null to disable caching
+	 */
+	public void setSemanticCache(@Nullable SemanticCache cache) {
+		this.semanticCache = cache;
+	}
+
+	/**
+	 * @return the cache for responses to similar prompts, or null if there is none
+	 */
+	@Nullable
+	public SemanticCache getSemanticCache() {
+		return semanticCache;
+	}
+
+	/**
+	 * @return the key of the request in the response cache, or null if it must not be cached
+	 */
+	@Nullable
+	String responseCacheKey(InferenceParameters parameters) {
+		parameters.resolvePromptSegments(this);
+		return ResponseCache.key(getModelIdentity(), parameters);
+	}
+
+	/**
+	 * Get metadata of the loaded model, like its file, vocabulary type and amount of parameters.
+	 *
+	 * @return a JSON object of model metadata
+	 */
+	public native String getModelMeta();
+
+	/**
+	 * Get runtime metrics of the server, like the amount of idle and processing slots, processed and predicted tokens,
+	 * and the amount of cached prompt tokens that were reused instead of processed again
+	 * (<code>n_prefix_tokens_reused_total</code>). The <code>slots</code> array contains the state of every slot,
+	 * including the amount of cached tokens reused for its current or last task (<code>n_prefix_reused</code>).
+	 * The prefill tokens saved by copying a shared prefix (see {@link #setSharedPrefix(String)}) are reported as
+	 * <code>n_shared_prefix_tokens_saved_total</code>. If slot states are spilled to disk (see
+	 * {@link ModelParameters#setSlotSpillPath(String)}), the amount of spilled and restored states and restored tokens
+	 * are reported as <code>n_slot_spills_total</code>, <code>n_slot_spill_restores_total</code> and
+	 * <code>n_slot_spill_tokens_restored_total</code>.
+	 * The <code>queues</code> array contains, for each request priority (see
+	 * {@link InferenceParameters#setPriority(int)}), the amount of requests waiting for a slot and how long the started
+	 * requests waited.
+	 * Requests rejected because too many requests were waiting (see {@link LlamaOverloadedException}) are reported as
+	 * <code>n_tasks_rejected_total</code>.
+	 *
+	 * @return a JSON object of metrics
+	 */
+	public native String getMetrics();
+
+	/**
+	 * Register a prompt prefix that many requests share, e.g., a long system prompt. The prefix is processed once into
+	 * a reserved sequence of the KV cache, and copied into the sequence of every slot whose prompt starts with its
+	 * tokens, so that only the rest of the prompt has to be processed. The prefix should end at a token boundary, like
+	 * a newline, so that prompts starting with it are tokenized the same way. A context shift keeps at least the
+	 * tokens of the prefix (see {@link InferenceParameters#setNKeep(int)}), and chunks of a cached prompt reused via
+	 * {@link ModelParameters#setCacheReuse(int)} are never shifted into the copied cells.
+	 * <p>
+	 * The reserved sequence takes its cells from the same KV cache that the slots share, whereas the context of each
+	 * slot is still sized as <code>n_ctx / n_parallel</code>. A long prefix therefore leaves less room to the slots
+	 * whose prompts don't start with it, and the context should be sized with the prefix in mind.
+	 *
+	 * @param prefix the shared prefix, or an empty string to remove the current one
+	 * @return the amount of tokens of the prefix
+	 * @throws LlamaException if the model is recurrent, the prefix doesn't fit into the context of a slot, or it can't
+	 * be processed
+	 */
+	public native int setSharedPrefix(String prefix) throws LlamaException;
+
+	/**
+	 * Save the KV cache state of a slot to a file in the slot save path, e.g., after processing a long system prompt.
+	 * If the slot is busy, the state is saved once it becomes idle.
+	 *
+	 * @param slotId the id of the slot
+	 * @param filename the name of the file in the slot save path (see {@link ModelParameters#setSlotSavePath(String)})
+	 * @return the amount of saved tokens and written bytes
+	 * @throws LlamaException if no slot save path is set, or the slot id or filename is invalid
+	 */
+	public native SlotResult saveSlot(int slotId, String filename) throws LlamaException;
+
+	/**
+	 * Restore the KV cache state of a slot from a file in the slot save path (see {@link #saveSlot(int, String)}).
+	 * Completions of prompts that start with the restored tokens and are processed in this slot (see
+	 * {@link InferenceParameters#setSlotId(int)}) skip the prefill of these tokens. If the slot is busy, the state is
+	 * restored once it becomes idle.
+	 *
+	 * @param slotId the id of the slot
+	 * @param filename the name of the file in the slot save path (see {@link ModelParameters#setSlotSavePath(String)})
+	 * @return the amount of restored tokens and read bytes
+	 * @throws LlamaException if no slot save path is set, the slot id or filename is invalid, or the state can't be
+	 * restored
+	 */
+	public native SlotResult restoreSlot(int slotId, String filename) throws LlamaException;
+
+	/**
+	 * Erase the KV cache state of a slot. If the slot is busy, the state is erased once it becomes idle.
+	 *
+	 * @param slotId the id of the slot
+	 * @return the amount of erased tokens
+	 * @throws LlamaException if the slot id is invalid
+	 */
+	public native SlotResult eraseSlot(int slotId) throws LlamaException;
+
+	/**
+	 * Serialize the cached tokens and KV cache state of a slot into a direct buffer, starting at its current position,
+	 * e.g., to ship a processed prefix to another process or node. The position is advanced by the amount of bytes
+	 * written if the state fits, otherwise nothing is written and the position is unchanged. To query the required
+	 * amount of bytes, pass <code>null</code>. If the slot is busy, the state is exported once it becomes idle.
+	 * <p>
+	 * The state can only be imported by a model loaded from the same file with the same KV cache types, on a machine
+	 * with the same byte order (see {@link #importSlot(int, ByteBuffer)}).
+	 *
+	 * @param slotId the id of the slot
+	 * @param buffer a direct buffer, or null
+	 * @return the amount of exported tokens and the amount of bytes written, which is the amount of space required
+	 * if the buffer is too small
+	 * @throws IllegalArgumentException if the buffer is not direct
+	 * @throws LlamaException if the slot id is invalid
+	 */
+	public SlotResult exportSlot(int slotId, @Nullable ByteBuffer buffer) throws LlamaException {
+		if (buffer == null) {
+			return exportSlotState(slotId, null, 0, 0);
+		}
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("buffer must be direct");
+		}
+		SlotResult result = exportSlotState(slotId, buffer, buffer.position(), buffer.limit());
+		if (result.bytes <= buffer.remaining()) {
+			buffer.position(buffer.position() + (int) result.bytes);
+		}
+		return result;
+	}
+
+	/**
+	 * Replace the cached tokens and KV cache state of a slot with a state exported by
+	 * {@link #exportSlot(int, ByteBuffer)}, read from a direct buffer starting at its current position. The position
+	 * is advanced by the amount of bytes read. Completions of prompts that start with the imported tokens and are
+	 * processed in this slot (see {@link InferenceParameters#setSlotId(int)}) skip the prefill of these tokens. If the
+	 * slot is busy, the state is imported once it becomes idle.
+	 *
+	 * @param slotId the id of the slot
+	 * @param buffer a direct buffer containing an exported state
+	 * @return the amount of imported tokens and read bytes
+	 * @throws IllegalArgumentException if the buffer is not direct
+	 * @throws LlamaException if the slot id is invalid, or the state is invalid or doesn't fit into the KV cache
+	 */
+	public SlotResult importSlot(int slotId, ByteBuffer buffer) throws LlamaException {
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("buffer must be direct");
+		}
+		SlotResult result = importSlotState(slotId, buffer, buffer.position(), buffer.limit());
+		buffer.position(buffer.position() + (int) result.bytes);
+		return result;
+	}
+
+	// the metadata identifies the model for the embedding and response caches
+	private String getModelIdentity() {
+		String identity = modelIdentity;
+		if (identity == null) {
+			identity = getModelMeta();
+			modelIdentity = identity;
+		}
+		return identity;
+	}
+
+	/**
+	 * Write the embedding of a string into a direct buffer, starting at its current position. The position is
+	 * advanced by {@link #getEmbeddingSize()}. No intermediate Java arrays are created.
+	 *
+	 * @param prompt the string to embed
+	 * @param buffer a direct buffer in native byte order
+	 * @throws IllegalArgumentException if the buffer is not direct or not in native byte order
+	 * @throws BufferOverflowException if the buffer has not enough remaining space
+	 * @throws LlamaException if embedding mode was not activated (see {@link ModelParameters#enableEmbedding()})
+	 */
+	public void embedInto(String prompt, FloatBuffer buffer) {
+		embedInto(Collections.singletonList(prompt), buffer);
+	}
+
+	/**
+	 * Write the embeddings of multiple strings one after another into a direct buffer, starting at its current
+	 * position. The position is advanced by the number of prompts times {@link #getEmbeddingSize()}. All prompts are
+	 * submitted together, like with {@link #embed(List)}.
+	 *
+	 * @param prompts the strings to embed
+	 * @param buffer a direct buffer in native byte order
+	 * @throws IllegalArgumentException if the buffer is not direct or not in native byte order
+	 * @throws BufferOverflowException if the buffer has not enough remaining space
+	 * @throws LlamaException if embedding mode was not activated (see {@link ModelParameters#enableEmbedding()})
+	 */
+	public void embedInto(List<String> prompts, FloatBuffer buffer) {
+		if (!buffer.isDirect() || buffer.order() != ByteOrder.nativeOrder()) {
+			throw new IllegalArgumentException("buffer must be direct and in native byte order");
+		}
+		int size = prompts.size() * getEmbeddingSize();
+		if (buffer.remaining() < size) {
+			throw new BufferOverflowException();
+		}
+		embedIntoBuffer(prompts.toArray(new String[0]), buffer, buffer.position());
+		buffer.position(buffer.position() + size);
+	}
+
+	/**
+	 * Get the size of the embeddings of this model, i.e., the length of the arrays returned by {@link #embed(String)}.
+	 *
+	 * @return the embedding dimension
+	 */
+	public native int getEmbeddingSize();
 		
 
 	/**
-	 * Tokenize a prompt given the native tokenizer
+	 * Tokenize a prompt given the native tokenizer. If a {@link TokenizerCache} is set, the tokens are looked up in
+	 * and added to the cache.
 	 *
 	 * @param prompt the prompt to tokenize
 	 * @return an array of integers each representing a token id
 	 */
-	public native int[] encode(String prompt);
+	public int[] encode(String prompt) {
+		TokenizerCache cache = tokenizerCache;
+		if (cache == null) {
+			return tokenize(prompt);
+		}
+		return encodeCached(cache, prompt, false).clone();
+	}
+
+	/**
+	 * Set a cache for tokenized text segments, which is used by {@link #encode(String)} and for prompts given via
+	 * {@link InferenceParameters#setPromptSegments(String...)}. A cache should only be used for a single model.
+	 *
+	 * @param cache the cache to use, or null to disable caching
+	 */
+	public void setTokenizerCache(@Nullable TokenizerCache cache) {
+		this.tokenizerCache = cache;
+	}
+
+	/**
+	 * @return the cache for tokenized text segments, or null if there is none
+	 */
+	@Nullable
+	public TokenizerCache getTokenizerCache() {
+		return tokenizerCache;
+	}
+
+	/**
+	 * Like {@link #encode(String)}, but the returned array may be shared with the cache and must not be modified. If
+	 * the text continues other text, it is tokenized without the leading space that some vocabularies (e.g., SPM)
+	 * prefix the beginning of a text with.
+	 */
+	int[] encodeShared(String text, boolean continuation) {
+		TokenizerCache cache = tokenizerCache;
+		if (cache == null) {
+			return continuation ? tokenizeContinuation(text) : tokenize(text);
+		}
+		return encodeCached(cache, text, continuation);
+	}
+
+	private int[] encodeCached(TokenizerCache cache, String text, boolean continuation) {
+		int[] tokens = cache.get(text, continuation);
+		if (tokens == null) {
+			tokens = continuation ? tokenizeContinuation(text) : tokenize(text);
+			cache.put(text, continuation, tokens);
+		}
+		return tokens;
+	}
 
 	/**
 	 * Convert an array of token ids to its string representation
@@ -102,6 +621,160 @@ public class LlamaModel implements AutoCloseable {
 		return new String(bytes, StandardCharsets.UTF_8);
 	}
 
+	/**
+	 * Count the tokens of a text like <code>encode(text).length</code>, but without creating the array of token ids.
+	 *
+	 * @param text the text to count the tokens of
+	 * @return the amount of tokens
+	 */
+	public native int countTokens(String text);
+
+	/**
+	 * Count the tokens of multiple texts at once. The texts are counted in parallel on all available cores.
+	 *
+	 * @param texts the texts to count the tokens of
+	 * @return the amount of tokens of each text, in the same order as the texts
+	 */
+	public int[] countTokens(List<String> texts) {
+		return countAll(texts.toArray(new String[0]), false);
+	}
+
+	/**
+	 * Count the tokens of a text that is read from a {@link Reader}, so that very large documents never have to be
+	 * loaded into memory at once. The text is split into chunks at whitespace, which are counted in parallel. In rare
+	 * cases, the count may deviate from {@link #countTokens(String)} if a tokenizer would merge characters across a
+	 * chunk boundary. The reader is not closed.
+	 *
+	 * @param reader the reader to read the text from
+	 * @return the amount of tokens
+	 * @throws IOException if the reader fails
+	 */
+	public long countTokens(Reader reader) throws IOException {
+		List<String> chunks = new ArrayList<>(COUNT_CHUNKS);
+		char[] buffer = new char[COUNT_CHUNK_SIZE];
+		int length = 0;
+		boolean first = true;
+		long count = 0;
+		while (true) {
+			int read = reader.read(buffer, length, buffer.length - length);
+			if (read > 0) {
+				length += read;
+				if (length < buffer.length) {
+					continue;
+				}
+			}
+			int end = read < 0 ? length : chunkEnd(buffer, length);
+			String chunk = new String(buffer, 0, end);
+			System.arraycopy(buffer, end, buffer, 0, length - end);
+			length -= end;
+			// the first chunk is counted like any other text, the following ones start with whitespace
+			if (first) {
+				count += countTokens(chunk);
+				first = false;
+			} else if (!chunk.isEmpty()) {
+				chunks.add(chunk);
+			}
+			if (!chunks.isEmpty() && (read < 0 || chunks.size() == COUNT_CHUNKS)) {
+				for (int chunkCount : countAll(chunks.toArray(new String[0]), true)) {
+					count += chunkCount;
+				}
+				chunks.clear();
+			}
+			if (read < 0) {
+				return count;
+			}
+		}
+	}
+
+	// the end of the first chunk in a full buffer, which is before the last whitespace (if there is any)
+	private static int chunkEnd(char[] buffer, int length) {
+		for (int i = length - 1; i > 0; i--) {
+			if (Character.isWhitespace(buffer[i])) {
+				return i;
+			}
+		}
+		// don't split surrogate pairs
+		return Character.isHighSurrogate(buffer[length - 1]) ? length - 1 : length;
+	}
+
+	/**
+	 * Tokenize multiple prompts at once. The prompts are tokenized in parallel on all available cores.
+	 *
+	 * @param prompts the prompts to tokenize
+	 * @return an array of token ids for each prompt, in the same order as the prompts
+	 */
+	public int[][] encodeBatch(List<String> prompts) {
+		return encodeAll(prompts.toArray(new String[0]));
+	}
+
+	/**
+	 * Tokenize multiple prompts at once and write the token ids of all prompts one after another into a direct buffer,
+	 * starting at its current position. The amount of tokens of each prompt is written to <code>lengths</code>.
+	 * The positions of both buffers are advanced by the amount of values written. If there is not enough space in
+	 * <code>tokens</code>, nothing is written and the positions are unchanged.
+	 *
+	 * @param prompts the prompts to tokenize
+	 * @param tokens a direct buffer in native byte order for the token ids
+	 * @param lengths a direct buffer in native byte order for the amount of tokens of each prompt
+	 * @return the amount of token ids written, which is the amount of space required if the buffer is too small
+	 * @throws IllegalArgumentException if a buffer is not direct or not in native byte order
+	 * @throws BufferOverflowException if <code>lengths</code> has less space remaining than there are prompts
+	 */
+	public int encodeInto(List<String> prompts, IntBuffer tokens, IntBuffer lengths) {
+		if (!tokens.isDirect() || tokens.order() != ByteOrder.nativeOrder()
+				|| !lengths.isDirect() || lengths.order() != ByteOrder.nativeOrder()) {
+			throw new IllegalArgumentException("buffers must be direct and in native byte order");
+		}
+		if (lengths.remaining() < prompts.size()) {
+			throw new BufferOverflowException();
+		}
+		int written = encodeIntoBuffer(prompts.toArray(new String[0]), tokens, tokens.position(), tokens.limit(),
+				lengths, lengths.position());
+		if (written <= tokens.remaining()) {
+			tokens.position(tokens.position() + written);
+			lengths.position(lengths.position() + prompts.size());
+		}
+		return written;
+	}
+
+	/**
+	 * Convert multiple arrays of token ids to their string representations at once. The arrays are decoded in parallel
+	 * on all available cores.
+	 *
+	 * @param tokens an array of token ids for each text
+	 * @return the decoded texts, in the same order as the token arrays
+	 */
+	public List<String> decodeBatch(int[][] tokens) {
+		byte[][] bytes = decodeAll(tokens);
+		List<String> texts = new ArrayList<>(bytes.length);
+		for (byte[] text : bytes) {
+			texts.add(new String(text, StandardCharsets.UTF_8));
+		}
+		return texts;
+	}
+
+	/**
+	 * Convert the remaining token ids of a direct buffer to UTF-8 encoded text and write it into another direct buffer,
+	 * starting at its current position. The positions of both buffers are advanced if the text fits into
+	 * <code>text</code>, otherwise nothing is written and the positions are unchanged.
+	 *
+	 * @param tokens a direct buffer in native byte order containing token ids
+	 * @param text a direct buffer for the UTF-8 encoded text
+	 * @return the amount of bytes written, which is the amount of space required if the buffer is too small
+	 * @throws IllegalArgumentException if a buffer is not direct or <code>tokens</code> is not in native byte order
+	 */
+	public int decodeInto(IntBuffer tokens, ByteBuffer text) {
+		if (!tokens.isDirect() || tokens.order() != ByteOrder.nativeOrder() || !text.isDirect()) {
+			throw new IllegalArgumentException("buffers must be direct and in native byte order");
+		}
+		int written = decodeIntoBuffer(tokens, tokens.position(), tokens.limit(), text, text.position(), text.limit());
+		if (written <= text.remaining()) {
+			tokens.position(tokens.limit());
+			text.position(text.position() + written);
+		}
+		return written;
+	}
+
 	/**
 	 * Sets a callback for native llama.cpp log messages.
 	 * Per default, log messages are written in JSON to stdout. Note, that in text mode the callback will be also
@@ -115,6 +788,28 @@ public class LlamaModel implements AutoCloseable {
 	 */
 	public static native void setLogger(LogFormat format, @Nullable BiConsumer<LogLevel, String> callback);
 
+	/**
+	 * Start a completion task, sending the parameters in binary form if possible and as JSON otherwise.
+	 *
+	 * @return the id of the task to receive the results of
+	 */
+	int submitCompletion(InferenceParameters parameters) {
+		ByteBuffer buffer = parameters.toBinary(parameterBuffers.get());
+		if (buffer == null) {
+			return requestCompletion(toJson(parameters));
+		}
+		parameterBuffers.set(buffer);
+		return requestBinaryCompletion(buffer);
+	}
+
+	/**
+	 * Serialize the parameters to JSON, with any prompt segments resolved to tokens.
+	 */
+	String toJson(InferenceParameters parameters) {
+		parameters.resolvePromptSegments(this);
+		return parameters.toString();
+	}
+
 	@Override
 	public void close() {
 		delete();
@@ -123,12 +818,56 @@ public class LlamaModel implements AutoCloseable {
 	// don't overload native methods since the C++ function names get nasty
 	native int requestCompletion(String params) throws LlamaException;
 
+	native int requestBinaryCompletion(ByteBuffer params) throws LlamaException;
+
+	native int[] requestCompletions(String params) throws LlamaException;
+
+	native int requestAsyncCompletion(String params, CompletableFuture<LlamaOutput> future) throws LlamaException;
+
+	native int requestStreamingCompletion(String params, LlamaOutputSink sink) throws LlamaException;
+
+	native void resumeCompletion(int taskId);
+
 	native LlamaOutput receiveCompletion(int taskId) throws LlamaException;
 
+	@Nullable
+	native LlamaOutput receiveCompletionTimed(int taskId, long timeoutMillis) throws LlamaException;
+
+	native LlamaOutput receiveAnyCompletion(int[] taskIds) throws LlamaException;
+
+	native float[] computeEmbedding(String prompt) throws LlamaException;
+
+	native float[][] embedAll(String[] prompts) throws LlamaException;
+
+	native void embedIntoBuffer(String[] prompts, FloatBuffer buffer, int offset) throws LlamaException;
+
+	native boolean receiveTokens(int taskId, LlamaTokenStream stream) throws LlamaException;
+
 	native void cancelCompletion(int taskId);
 
 	native byte[] decodeBytes(int[] tokens);
 
+	native int[] tokenize(String prompt);
+
+	native int[] tokenizeContinuation(String text);
+
+	// the token that is added to the beginning of prompts, or -1 if the model doesn't use one
+	native int getBosToken();
+
+	native int[][] encodeAll(String[] prompts);
+
+	native int[] countAll(String[] texts, boolean continuation);
+
+	native int encodeIntoBuffer(String[] prompts, IntBuffer tokens, int tokensOffset, int tokensLimit, IntBuffer lengths, int lengthsOffset);
+
+	native byte[][] decodeAll(int[][] tokens);
+
+	native int decodeIntoBuffer(IntBuffer tokens, int tokensOffset, int tokensLimit, ByteBuffer text, int textOffset, int textLimit);
+
+	native SlotResult exportSlotState(int slotId, @Nullable ByteBuffer buffer, int offset, int limit) throws LlamaException;
+
+	native SlotResult importSlotState(int slotId, ByteBuffer buffer, int offset, int limit) throws LlamaException;
+
 	private native void loadModel(String... parameters) throws LlamaException;
 
 	private native void delete();
@@ -24,12 +24,19 @@ public final class LlamaOutput {
     @NotNull
     public final Map<String, Float> probabilities;
 
+    /**
+     * The index of the prompt this output belongs to if multiple prompts were given (see
+     * {@link InferenceParameters#setPrompts(String...)}), or 0 otherwise.
+     */
+    public final int index;
+
     final boolean stop;
 
-    LlamaOutput(byte[] generated, @NotNull Map<String, Float> probabilities, boolean stop) {
+    LlamaOutput(byte[] generated, @NotNull Map<String, Float> probabilities, boolean stop, int index) {
         this.text = new String(generated, StandardCharsets.UTF_8);
         this.probabilities = probabilities;
         this.stop = stop;
+        this.index = index;
     }
 
     @Override
@@ -0,0 +1,23 @@
+package de.kherud.llama;
+
+/**
+ * A receiver of outputs that are pushed by the native inference thread, see
+ * {@link LlamaModel#requestStreamingCompletion(String, LlamaOutputSink)}. The methods are called on the native thread,
+ * so they must return quickly and must not block.
+ */
+interface LlamaOutputSink {
+
+    /**
+     * Receive the next output of a task.
+     *
+     * @return true if the sink can't take any more outputs for now, which pauses the generation until
+     * {@link LlamaModel#resumeCompletion(int)} is called
+     */
+    boolean onOutput(LlamaOutput output);
+
+    /**
+     * Receive the error of a failed task, e.g., a {@link LlamaOverloadedException} or {@link LlamaTimeoutException}.
+     * No further outputs follow.
+     */
+    void onError(Throwable error);
+}
@@ -0,0 +1,26 @@
+package de.kherud.llama;
+
+/**
+ * Thrown if a request is rejected because too many requests are waiting for a slot, see
+ * {@link ModelParameters#setMaxDeferredTasks(int)} and {@link ModelParameters#setMaxDeferredTokens(long)}. The request
+ * wasn't processed, so it can be retried later or on another instance.
+ */
+public final class LlamaOverloadedException extends LlamaException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    LlamaOverloadedException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return an estimate of the time in milliseconds after which the request may be admitted, based on how long
+     * previous requests waited for a slot
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,193 @@
+package de.kherud.llama;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Flow.Publisher} used by {@link LlamaModel#generatePublisher(InferenceParameters, Executor, int)}. Every
+ * subscription starts a new generation whose outputs are pushed by the native inference thread and delivered to the
+ * subscriber on the given executor, honoring the demand signaled via {@link Flow.Subscription#request(long)}.
+ * <p>
+ * At most <code>bufferSize</code> outputs are buffered per subscription. If a subscriber can't keep up, generation of
+ * its slot is paused until half of the buffer has been consumed, while other slots continue to generate.
+ */
+public final class LlamaPublisher implements Flow.Publisher<LlamaOutput> {
+
+    private final LlamaModel model;
+    private final InferenceParameters parameters;
+    private final Executor executor;
+    private final int bufferSize;
+
+    LlamaPublisher(LlamaModel model, InferenceParameters parameters, Executor executor, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+        this.model = model;
+        this.parameters = parameters;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super LlamaOutput> subscriber) {
+        Objects.requireNonNull(subscriber);
+        LlamaSubscription subscription = new LlamaSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    private final class LlamaSubscription implements Flow.Subscription, LlamaOutputSink {
+
+        private final Flow.Subscriber<? super LlamaOutput> subscriber;
+        private final ArrayDeque<LlamaOutput> buffer = new ArrayDeque<>();
+        // counts the requested drains, only the caller that increments it from zero schedules the delivery
+        private final AtomicInteger drains = new AtomicInteger();
+
+        // all fields below are guarded by this
+        private int taskId = -1;
+        private long demand;
+        private boolean paused;
+        private boolean done;
+        private boolean cancelled;
+        private Throwable error;
+
+        private LlamaSubscription(Flow.Subscriber<? super LlamaOutput> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private void start() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                parameters.setStream(true);
+                try {
+                    taskId = model.requestStreamingCompletion(model.toJson(parameters), this);
+                } catch (LlamaException e) {
+                    error = e;
+                    done = true;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("non-positive subscription request: " + n);
+                    done = true;
+                    buffer.clear();
+                    cancelTask();
+                } else {
+                    demand += n;
+                    if (demand < 0) {
+                        demand = Long.MAX_VALUE;
+                    }
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+            buffer.clear();
+            cancelTask();
+        }
+
+        @Override
+        public boolean onOutput(LlamaOutput output) {
+            boolean full;
+            synchronized (this) {
+                if (cancelled || done) {
+                    return false;
+                }
+                buffer.add(output);
+                done = output.stop;
+                full = !done && buffer.size() >= bufferSize;
+                paused |= full;
+            }
+            drain();
+            return full;
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            synchronized (this) {
+                this.error = error;
+                done = true;
+            }
+            drain();
+        }
+
+        private void cancelTask() {
+            if (!done && taskId >= 0) {
+                model.cancelCompletion(taskId);
+            }
+            done = true;
+        }
+
+        private void drain() {
+            if (drains.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::deliver);
+                } catch (RejectedExecutionException e) {
+                    cancel();
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        private void deliver() {
+            int missed = 1;
+            do {
+                while (true) {
+                    LlamaOutput output;
+                    boolean resume = false;
+                    synchronized (this) {
+                        if (cancelled) {
+                            return;
+                        }
+                        if (buffer.isEmpty() && done) {
+                            // there won't be any further signals
+                            cancelled = true;
+                        } else if (!buffer.isEmpty() && demand > 0) {
+                            demand--;
+                            if (paused && buffer.size() <= bufferSize / 2) {
+                                paused = false;
+                                resume = true;
+                            }
+                        } else {
+                            break;
+                        }
+                        output = buffer.poll();
+                    }
+                    if (output == null) {
+                        if (error == null) {
+                            subscriber.onComplete();
+                        } else {
+                            subscriber.onError(error);
+                        }
+                        return;
+                    }
+                    if (resume) {
+                        model.resumeCompletion(taskId);
+                    }
+                    try {
+                        subscriber.onNext(output);
+                    } catch (Throwable t) {
+                        // a subscriber that throws is considered to have cancelled its subscription
+                        cancel();
+                        return;
+                    }
+                }
+                missed = drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package de.kherud.llama;
+
+/**
+ * Thrown if a request continues the conversation of a {@link ChatSession}, but its slot doesn't hold the cached
+ * conversation anymore, e.g., because another request was processed in the slot. The request wasn't processed, so the
+ * session submits the whole conversation instead.
+ */
+final class LlamaSessionException extends LlamaException {
+
+    private static final long serialVersionUID = 1L;
+
+    LlamaSessionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,17 @@
+package de.kherud.llama;
+
+/**
+ * Thrown if a request didn't finish in time: its deadline passed (see {@link InferenceParameters#setDeadline(long)})
+ * while it waited for a slot, processed its prompt or generated, or its prompt processing exceeded its time limit
+ * (see {@link InferenceParameters#setMaxPromptTime(long)}). It is also thrown if a caller stops waiting for an answer,
+ * see {@link LlamaModel#complete(InferenceParameters, long, java.util.concurrent.TimeUnit)}. Either way, the request
+ * was stopped.
+ */
+public final class LlamaTimeoutException extends LlamaException {
+
+    private static final long serialVersionUID = 1L;
+
+    LlamaTimeoutException(String message) {
+        super(message);
+    }
+}
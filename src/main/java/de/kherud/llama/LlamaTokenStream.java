@@ -0,0 +1,135 @@
+package de.kherud.llama;
+
+import java.lang.annotation.Native;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A stream of generated tokens used by {@link LlamaModel#streamTokens(InferenceParameters)}. In contrast to
+ * {@link LlamaIterator}, no objects are created per token: each call to {@link #next()} overwrites the token id, its
+ * bytes and its probabilities in this holder, and the arrays are re-used between tokens.
+ * <p>
+ * Probabilities are only available if {@link InferenceParameters#setNProbs(int)} is configured.
+ */
+public final class LlamaTokenStream implements AutoCloseable {
+
+    private final LlamaModel model;
+    private final int taskId;
+    private boolean hasNext = true;
+
+    @Native
+    private int token = -1;
+    @Native
+    private float probability = Float.NaN;
+    @Native
+    private byte[] piece = new byte[16];
+    @Native
+    private int pieceLength;
+    @Native
+    private int[] topTokens = new int[0];
+    @Native
+    private float[] topProbabilities = new float[0];
+    @Native
+    private int topCount;
+
+    LlamaTokenStream(LlamaModel model, InferenceParameters parameters) {
+        this.model = model;
+        parameters.setStream(true);
+        parameters.setStreamTokens(true);
+        taskId = model.submitCompletion(parameters);
+    }
+
+    /**
+     * Wait for the next generated token and make it the current one.
+     *
+     * @return false if the generation has ended
+     */
+    public boolean next() {
+        if (!hasNext) {
+            return false;
+        }
+        hasNext = model.receiveTokens(taskId, this);
+        return hasNext;
+    }
+
+    /**
+     * @return the id of the current token
+     */
+    public int getToken() {
+        return token;
+    }
+
+    /**
+     * @return the probability of the current token, or {@link Float#NaN} if no probabilities were requested
+     */
+    public float getProbability() {
+        return probability;
+    }
+
+    /**
+     * Note, that the returned array is re-used and only its first {@link #getPieceLength()} bytes belong to the
+     * current token. A token may consist of an incomplete part of a multibyte UTF-8 character.
+     *
+     * @return the bytes of the current token
+     */
+    public byte[] getPiece() {
+        return piece;
+    }
+
+    /**
+     * @return the amount of bytes of the current token in {@link #getPiece()}
+     */
+    public int getPieceLength() {
+        return pieceLength;
+    }
+
+    /**
+     * Decode the bytes of the current token to a string. This allocates and should only be used for convenience.
+     *
+     * @return the text of the current token
+     */
+    public String getPieceText() {
+        return new String(piece, 0, pieceLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Note, that the returned array is re-used and only its first {@link #getTopCount()} elements belong to the
+     * current token.
+     *
+     * @return the ids of the most probable tokens at the current position
+     */
+    public int[] getTopTokens() {
+        return topTokens;
+    }
+
+    /**
+     * Note, that the returned array is re-used and only its first {@link #getTopCount()} elements belong to the
+     * current token.
+     *
+     * @return the probabilities of the tokens in {@link #getTopTokens()}
+     */
+    public float[] getTopProbabilities() {
+        return topProbabilities;
+    }
+
+    /**
+     * @return the amount of valid entries in {@link #getTopTokens()} and {@link #getTopProbabilities()}
+     */
+    public int getTopCount() {
+        return topCount;
+    }
+
+    /**
+     * Cancel the ongoing generation process.
+     */
+    public void cancel() {
+        if (hasNext) {
+            model.cancelCompletion(taskId);
+            hasNext = false;
+        }
+    }
+
+    @Override
+    public void close() {
+        cancel();
+    }
+}
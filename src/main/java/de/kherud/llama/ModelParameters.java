@@ -823,6 +823,97 @@ public final class ModelParameters extends CliParameters {
         return this;
     }
 
+    /**
+     * Set a directory to spill the KV cache state of idle slots to, before a slot is reused for a prompt that would
+     * discard most of its cached tokens. A spilled state is restored once a prompt shares a longer prefix with it than
+     * with the cache of its slot. The directory should only be used by a single model. Spilled states of a previous
+     * run are deleted, unless {@link #enableSlotSpillWarmStart()} is set.
+     */
+    public ModelParameters setSlotSpillPath(String slotSpillPath) {
+        parameters.put("--slot-spill-path", slotSpillPath);
+        return this;
+    }
+
+    /**
+     * Set the maximum total size of the spilled slot states in bytes, the least recently used states are deleted first
+     * (default: 0, unlimited).
+     */
+    public ModelParameters setSlotSpillMaxSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maximum size must not be negative");
+        }
+        parameters.put("--slot-spill-max-size", String.valueOf(maxBytes));
+        return this;
+    }
+
+    /**
+     * Set the time in seconds after which unused spilled slot states are deleted (default: 0, never).
+     */
+    public ModelParameters setSlotSpillMaxAge(long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("maximum age must not be negative");
+        }
+        parameters.put("--slot-spill-max-age", String.valueOf(seconds));
+        return this;
+    }
+
+    /**
+     * Set the time in seconds after which the cached tokens of idle slots are evicted from the KV cache, and spilled
+     * if a slot spill path is set (default: 0, never).
+     */
+    public ModelParameters setSlotMaxIdle(long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("maximum idle time must not be negative");
+        }
+        parameters.put("--slot-max-idle", String.valueOf(seconds));
+        return this;
+    }
+
+    /**
+     * Keep and re-index the slot states that were spilled to the slot spill path by a previous run.
+     */
+    public ModelParameters enableSlotSpillWarmStart() {
+        parameters.put("--slot-spill-warm", null);
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of requests that wait for a slot once all slots are busy (default: 0, unlimited). Further
+     * requests are rejected with a {@link LlamaOverloadedException}, before their prompt is tokenized if possible.
+     */
+    public ModelParameters setMaxDeferredTasks(int maxTasks) {
+        if (maxTasks < 0) {
+            throw new IllegalArgumentException("maximum amount of deferred tasks must not be negative");
+        }
+        parameters.put("--max-deferred-tasks", String.valueOf(maxTasks));
+        return this;
+    }
+
+    /**
+     * Set the maximum total amount of prompt tokens of the requests that wait for a slot (default: 0, unlimited).
+     * Further requests are rejected with a {@link LlamaOverloadedException}.
+     */
+    public ModelParameters setMaxDeferredTokens(long maxTokens) {
+        if (maxTokens < 0) {
+            throw new IllegalArgumentException("maximum amount of deferred tokens must not be negative");
+        }
+        parameters.put("--max-deferred-tokens", String.valueOf(maxTokens));
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of prompt tokens that are processed per batch while other slots are generating
+     * (default: 0, unlimited). Long prompts are then processed in chunks over several batches, which bounds the
+     * latency between the tokens of concurrent generations at the expense of the time to the first token.
+     */
+    public ModelParameters setPrefillBudget(int nTokens) {
+        if (nTokens < 0) {
+            throw new IllegalArgumentException("prefill budget must not be negative");
+        }
+        parameters.put("--prefill-budget", String.valueOf(nTokens));
+        return this;
+    }
+
     /**
      * Set custom jinja chat template.
      */
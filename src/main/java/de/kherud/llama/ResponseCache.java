@@ -0,0 +1,143 @@
+package de.kherud.llama;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of whole responses to deterministic requests, i.e., requests with a temperature of zero or a fixed seed (see
+ * {@link InferenceParameters#setTemperature(float)} and {@link InferenceParameters#setSeed(int)}). Once it is set via
+ * {@link LlamaModel#setResponseCache(ResponseCache)}, repeated requests of {@link LlamaModel#complete(InferenceParameters)}
+ * and {@link LlamaModel#generate(InferenceParameters)} are answered without running inference. For
+ * {@link LlamaModel#generate(InferenceParameters)}, the cached outputs are replayed in the order they were generated.
+ * <p>
+ * Responses are keyed by the model, the prompt and all parameters that influence the generated text. They expire
+ * after a fixed time, and the least recently used responses are evicted first.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ResponseCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries the maximum amount of responses to cache
+     * @param ttl the time after which a cached response expires
+     * @param unit the unit of the time to live
+     */
+    public ResponseCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maximum amount of entries must be positive");
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("time to live must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the amount of requests that were answered from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the amount of deterministic requests that required inference
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the share of deterministic requests that were answered from the cache, or 0 if there were none
+     */
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return the amount of currently cached responses, including expired ones that weren't evicted yet
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all cached responses, but keep the hit and miss counters.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the outputs of the cached response, the last of which is the stop output, or null if there is none
+     */
+    @Nullable
+    synchronized List<LlamaOutput> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.created > ttlNanos) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.outputs;
+    }
+
+    synchronized void put(String key, List<LlamaOutput> outputs) {
+        entries.put(key, new Entry(Collections.unmodifiableList(outputs)));
+    }
+
+    /**
+     * @return the key of the request, or null if the request isn't deterministic and must not be cached
+     */
+    @Nullable
+    static String key(String modelIdentity, InferenceParameters parameters) {
+        String key = parameters.toCacheKey();
+        return key == null ? null : modelIdentity + "\n" + key;
+    }
+
+    /**
+     * @return the generated text of the outputs
+     */
+    static String text(List<LlamaOutput> outputs) {
+        if (outputs.size() == 1) {
+            return outputs.get(0).text;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (LlamaOutput output : outputs) {
+            builder.append(output.text);
+        }
+        return builder.toString();
+    }
+
+    private static final class Entry {
+
+        private final List<LlamaOutput> outputs;
+        private final long created = System.nanoTime();
+
+        private Entry(List<LlamaOutput> outputs) {
+            this.outputs = outputs;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package de.kherud.llama;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * A cache of whole responses that also answers paraphrases of previous prompts. Once it is set via
+ * {@link LlamaModel#setSemanticCache(SemanticCache)}, prompts given to {@link LlamaModel#complete(InferenceParameters)}
+ * are embedded with an embedding model, and the response to the most similar previous prompt is returned without
+ * running inference if its cosine similarity reaches a threshold. Previous prompts are searched in an approximate
+ * nearest neighbour index, a hierarchical navigable small world graph.
+ * <p>
+ * Only requests with a plain prompt (see {@link InferenceParameters#setPrompt(String)}) are cached, and a response is
+ * only returned for requests with otherwise equal parameters. Optionally, a verifier can reject a similar prompt,
+ * e.g., if it contains different numbers or names. Such false positives are counted separately, so that the threshold
+ * can be tuned. The least recently used responses are evicted first.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class SemanticCache {
+
+    // the parameters of the index, see HnswIndex
+    private static final int MAX_LINKS = 16;
+    private static final int EF_CONSTRUCTION = 64;
+    private static final int EF_SEARCH = 64;
+    // the amount of similar prompts that are considered per lookup
+    private static final int CANDIDATES = 4;
+
+    private final LlamaModel embeddingModel;
+    private final float threshold;
+    private final int maxEntries;
+    @Nullable
+    private final BiPredicate<String, String> verifier;
+
+    @Nullable
+    private HnswIndex index;
+    // the entries by their node in the index
+    private Map<Integer, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private long falsePositives;
+
+    /**
+     * @param embeddingModel the model to embed prompts with, which has to be loaded with
+     *                       {@link ModelParameters#enableEmbedding()}
+     * @param threshold the minimum cosine similarity of a previous prompt to return its response, between -1 and 1
+     * @param maxEntries the maximum amount of responses to cache
+     */
+    public SemanticCache(LlamaModel embeddingModel, float threshold, int maxEntries) {
+        this(embeddingModel, threshold, maxEntries, null);
+    }
+
+    /**
+     * @param embeddingModel the model to embed prompts with, which has to be loaded with
+     *                       {@link ModelParameters#enableEmbedding()}
+     * @param threshold the minimum cosine similarity of a previous prompt to return its response, between -1 and 1
+     * @param maxEntries the maximum amount of responses to cache
+     * @param verifier tests a prompt and a similar previous prompt, and returns false to reject the previous response
+     */
+    public SemanticCache(LlamaModel embeddingModel, float threshold, int maxEntries,
+                         @Nullable BiPredicate<String, String> verifier) {
+        if (threshold < -1 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be between -1 and 1");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maximum amount of entries must be positive");
+        }
+        this.embeddingModel = embeddingModel;
+        this.threshold = threshold;
+        this.maxEntries = maxEntries;
+        this.verifier = verifier;
+        this.entries = createEntries();
+    }
+
+    /**
+     * @return the amount of requests that were answered from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the amount of requests that required inference, including those with only rejected similar prompts
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the amount of similar prompts above the threshold that were rejected by the verifier
+     */
+    public synchronized long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * @return the share of requests that were answered from the cache, or 0 if there were none
+     */
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return the amount of currently cached responses
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all cached responses, but keep the counters.
+     */
+    public synchronized void clear() {
+        entries = createEntries();
+        index = null;
+    }
+
+    float[] embed(String prompt) {
+        return embeddingModel.embed(prompt);
+    }
+
+    /**
+     * @param context the parameters of the request except the prompt, see {@link InferenceParameters#toSemanticContext()}
+     * @return the response to the most similar previous prompt that was accepted, or null if there is none
+     */
+    @Nullable
+    String get(String context, String prompt, float[] embedding) {
+        List<Entry> similar = new ArrayList<>();
+        synchronized (this) {
+            if (index != null && index.dimension() == embedding.length) {
+                for (HnswIndex.Candidate candidate : index.search(embedding, CANDIDATES, EF_SEARCH)) {
+                    if (candidate.similarity < threshold) {
+                        break;
+                    }
+                    Entry entry = entries.get(candidate.node);
+                    if (entry != null && entry.context.equals(context)) {
+                        similar.add(entry);
+                    }
+                }
+            }
+        }
+        // the verifier is called without holding the lock, since it may be slow
+        int rejected = 0;
+        Entry accepted = null;
+        for (Entry entry : similar) {
+            if (verifier == null || verifier.test(prompt, entry.prompt)) {
+                accepted = entry;
+                break;
+            }
+            rejected++;
+        }
+        synchronized (this) {
+            falsePositives += rejected;
+            if (accepted == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return accepted.response;
+        }
+    }
+
+    synchronized void put(String context, String prompt, float[] embedding, String response) {
+        if (index == null || index.dimension() != embedding.length) {
+            index = new HnswIndex(embedding.length, MAX_LINKS, EF_CONSTRUCTION, 0);
+            entries = createEntries();
+        }
+        int node = index.add(embedding);
+        entries.put(node, new Entry(context, prompt, embedding, response));
+        // evicted entries are only excluded from search results, so rebuild the graph once most of it is evicted
+        if (index.removed() > maxEntries) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        HnswIndex rebuilt = new HnswIndex(index.dimension(), MAX_LINKS, EF_CONSTRUCTION, 0);
+        Map<Integer, Entry> reindexed = createEntries();
+        // the least recently used entries are iterated first, so their order is kept
+        for (Entry entry : entries.values()) {
+            reindexed.put(rebuilt.add(entry.embedding), entry);
+        }
+        index = rebuilt;
+        entries = reindexed;
+    }
+
+    private Map<Integer, Entry> createEntries() {
+        return new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                if (size() > maxEntries) {
+                    index.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static final class Entry {
+
+        private final String context;
+        private final String prompt;
+        private final float[] embedding;
+        private final String response;
+
+        private Entry(String context, String prompt, float[] embedding, String response) {
+            this.context = context;
+            this.prompt = prompt;
+            this.embedding = embedding;
+            this.response = response;
+        }
+    }
+}
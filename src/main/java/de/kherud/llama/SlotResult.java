@@ -0,0 +1,54 @@
+package de.kherud.llama;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The result of saving, restoring, erasing, exporting or importing the KV cache state of a slot, see
+ * {@link LlamaModel#saveSlot(int, String)}, {@link LlamaModel#restoreSlot(int, String)},
+ * {@link LlamaModel#eraseSlot(int)}, {@link LlamaModel#exportSlot(int, java.nio.ByteBuffer)} and
+ * {@link LlamaModel#importSlot(int, java.nio.ByteBuffer)}.
+ */
+public final class SlotResult {
+
+    /**
+     * The id of the slot.
+     */
+    public final int slotId;
+
+    /**
+     * The name of the file in the slot save path (see {@link ModelParameters#setSlotSavePath(String)}), or null if the
+     * state wasn't saved to or restored from a file.
+     */
+    @Nullable
+    public final String filename;
+
+    /**
+     * The amount of tokens that were saved, restored, erased, exported or imported.
+     */
+    public final long tokens;
+
+    /**
+     * The amount of bytes that were written or read, or 0 if the slot was erased. If a state couldn't be exported
+     * because the buffer was too small, this is the amount of bytes required.
+     */
+    public final long bytes;
+
+    /**
+     * The time it took to save, restore, export or import the state in milliseconds, or 0 if the slot was erased.
+     */
+    public final double millis;
+
+    SlotResult(int slotId, @Nullable String filename, long tokens, long bytes, double millis) {
+        this.slotId = slotId;
+        this.filename = filename;
+        this.tokens = tokens;
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+
+    @Override
+    public String toString() {
+        return "SlotResult{slotId=" + slotId + ", filename=" + filename + ", tokens=" + tokens + ", bytes=" + bytes
+                + ", millis=" + millis + "}";
+    }
+}
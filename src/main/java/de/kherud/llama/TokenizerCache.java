@@ -0,0 +1,119 @@
+package de.kherud.llama;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A size-bounded cache of tokenized text segments that evicts the least recently used segments first. Once it is set
+ * via {@link LlamaModel#setTokenizerCache(TokenizerCache)}, it is used by {@link LlamaModel#encode(String)} and for the
+ * recurring segments of prompts given via {@link InferenceParameters#setPromptSegments(String...)}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class TokenizerCache {
+
+    private final int maxEntries;
+    private final Map<Key, int[]> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries the maximum amount of text segments to cache
+     */
+    public TokenizerCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maximum amount of entries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+                return size() > TokenizerCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the amount of lookups that were answered from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the amount of lookups that had to be tokenized natively
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the amount of currently cached text segments
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the maximum amount of cached text segments
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Remove all cached text segments, but keep the hit and miss counters.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Note, that the returned array is shared and must not be modified.
+     *
+     * @param continuation whether the text continues other text, which some vocabularies tokenize differently
+     * @return the cached tokens of the text, or null if they aren't cached
+     */
+    synchronized int[] get(String text, boolean continuation) {
+        int[] tokens = entries.get(new Key(text, continuation));
+        if (tokens == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return tokens;
+    }
+
+    synchronized void put(String text, boolean continuation, int[] tokens) {
+        entries.put(new Key(text, continuation), tokens);
+    }
+
+    private static final class Key {
+
+        private final String text;
+        private final boolean continuation;
+
+        private Key(String text, boolean continuation) {
+            this.text = text;
+            this.continuation = continuation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return continuation == key.continuation && text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(text, continuation);
+        }
+    }
+}
@@ -1,7 +1,21 @@
 package de.kherud.llama;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import de.kherud.llama.args.LogFormat;
@@ -19,6 +33,11 @@ public class LlamaModelTest {
 
 	private static LlamaModel model;
 
+	// a second model for the tests of scheduling and slot persistence, which is loaded once on demand
+	private static LlamaModel extraModel;
+	private static File slotSpillDirectory;
+	private static File slotSaveDirectory;
+
 	@BeforeClass
 	public static void setup() {
 //		LlamaModel.setLogger(LogFormat.TEXT, (level, msg) -> System.out.println(level + ": " + msg));
@@ -34,9 +53,74 @@ public class LlamaModelTest {
 
 	@AfterClass
 	public static void tearDown() {
-		if (model != null) {
-			model.close();
+		try {
+			if (model != null) {
+				model.close();
+			}
+			if (extraModel != null) {
+				extraModel.close();
+			}
+		} finally {
+			deleteRecursively(slotSpillDirectory);
+			deleteRecursively(slotSaveDirectory);
+		}
+	}
+
+	private static synchronized LlamaModel extraModel() throws IOException {
+		if (extraModel == null) {
+			slotSpillDirectory = Files.createTempDirectory("slot-spill").toFile();
+			slotSaveDirectory = Files.createTempDirectory("slot-save").toFile();
+			extraModel = new LlamaModel(
+					new ModelParameters()
+							.setCtxSize(1024)
+							.setModel("models/codellama-7b.Q2_K.gguf")
+							.setGpuLayers(43)
+							.setParallel(2)
+							.enableEmbedding()
+							.setSlotSpillPath(slotSpillDirectory.getAbsolutePath())
+							.setSlotSpillMaxSize(1L << 30)
+							.setSlotSavePath(slotSaveDirectory.getAbsolutePath())
+							.setMaxDeferredTasks(2)
+							.setPrefillBudget(4)
+							.setCacheReuse(4)
+			);
+		}
+		return extraModel;
+	}
+
+	private static void deleteRecursively(File file) {
+		if (file == null) {
+			return;
+		}
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+
+	// start a long generation, which is in progress in one of the slots once this returns
+	private static LlamaIterator startGeneration(LlamaModel model) {
+		return startGeneration(model, new InferenceParameters(prefix));
+	}
+
+	private static LlamaIterator startGeneration(LlamaModel model, InferenceParameters params) {
+		params.setNPredict(256).setIgnoreEos(true);
+		LlamaIterator iterator = model.generate(params).iterator();
+		iterator.next();
+		return iterator;
+	}
+
+	private static String finishGeneration(Iterator<LlamaOutput> iterator) {
+		StringBuilder builder = new StringBuilder();
+		while (iterator.hasNext()) {
+			builder.append(iterator.next().text);
 		}
+		return builder.toString();
 	}
 
 	@Test
@@ -57,6 +141,29 @@ public class LlamaModelTest {
 		Assert.assertTrue(generated > 0 && generated <= nPredict + 1);
 	}
 
+	@Test
+	public void testStreamTokens() {
+		InferenceParameters params = new InferenceParameters(prefix)
+				.setTemperature(0f)
+				.setNPredict(nPredict)
+				.setIgnoreEos(true)
+				.setNProbs(5);
+
+		List<Integer> tokens = new ArrayList<>();
+		try (LlamaTokenStream stream = model.streamTokens(params)) {
+			while (stream.next()) {
+				tokens.add(stream.getToken());
+				Assert.assertTrue(stream.getTopCount() > 0);
+				Assert.assertEquals(stream.getToken(), stream.getTopTokens()[0]);
+				Assert.assertTrue(stream.getProbability() > 0 && stream.getProbability() <= 1);
+			}
+		}
+		Assert.assertEquals(nPredict, tokens.size());
+
+		int[] ids = tokens.stream().mapToInt(Integer::intValue).toArray();
+		Assert.assertEquals(model.complete(params), model.decode(ids));
+	}
+
 	@Test
 	public void testGenerateInfill() {
 		Map<Integer, Float> logitBias = new HashMap<>();
@@ -108,6 +215,163 @@ public class LlamaModelTest {
 		Assert.assertFalse(output.isEmpty());
 	}
 
+	@Test
+	public void testCompleteBinaryParameters() {
+		InferenceParameters params = new InferenceParameters(prefix)
+				.setTemperature(0f)
+				.setNPredict(nPredict)
+				.setStream(false);
+		Assert.assertNotNull(params.toBinary(null));
+
+		String binary = model.receiveCompletion(model.submitCompletion(params)).text;
+		String json = model.receiveCompletion(model.requestCompletion(params.toString())).text;
+		Assert.assertEquals(json, binary);
+	}
+
+	@Test
+	public void testCompleteAsync() throws Exception {
+		InferenceParameters params = new InferenceParameters(prefix)
+				.setTemperature(0.95f)
+				.setStopStrings("\"\"\"")
+				.setNPredict(nPredict)
+				.setSeed(42);
+
+		List<CompletableFuture<LlamaOutput>> futures = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			futures.add(model.completeAsync(params));
+		}
+		for (CompletableFuture<LlamaOutput> future : futures) {
+			LlamaOutput output = future.get(1, TimeUnit.MINUTES);
+			Assert.assertFalse(output.text.isEmpty());
+		}
+	}
+
+	@Test
+	public void testCompleteAll() {
+		InferenceParameters params = new InferenceParameters("")
+				.setPrompts(prefix, "def fibonacci(n: int) -> int:\n", prefix)
+				.setTemperature(0)
+				.setStopStrings("\"\"\"")
+				.setNPredict(nPredict)
+				.setSeed(42);
+
+		List<String> outputs = model.completeAll(params);
+		Assert.assertEquals(3, outputs.size());
+		for (String output : outputs) {
+			Assert.assertFalse(output.isEmpty());
+		}
+		// greedy sampling yields the same completion for the same prompt
+		Assert.assertEquals(outputs.get(0), outputs.get(2));
+	}
+
+	@Test
+	public void testGenerateAll() {
+		InferenceParameters params = new InferenceParameters("")
+				.setPrompts(prefix, "def fibonacci(n: int) -> int:\n")
+				.setTemperature(0)
+				.setNPredict(nPredict)
+				.setSeed(42);
+
+		int[] generated = new int[2];
+		int[] stopped = new int[2];
+		for (LlamaOutput output : model.generateAll(params)) {
+			if (output.stop) {
+				stopped[output.index]++;
+			} else {
+				generated[output.index]++;
+			}
+		}
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals(1, stopped[i]);
+			Assert.assertTrue(generated[i] > 0 && generated[i] <= nPredict);
+		}
+	}
+
+	@Test
+	public void testGeneratePublisher() throws Exception {
+		InferenceParameters params = new InferenceParameters(prefix)
+				.setTemperature(0.95f)
+				.setStopStrings("\"\"\"")
+				.setNPredict(nPredict)
+				.setSeed(42);
+
+		// request one output at a time with a tiny buffer, so the generation has to be paused and resumed
+		List<LlamaOutput> outputs = new ArrayList<>();
+		CompletableFuture<Void> completed = new CompletableFuture<>();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		model.generatePublisher(params, executor, 2).subscribe(new Flow.Subscriber<LlamaOutput>() {
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(LlamaOutput item) {
+				outputs.add(item);
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				completed.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				completed.complete(null);
+			}
+		});
+		try {
+			completed.get(1, TimeUnit.MINUTES);
+		} finally {
+			executor.shutdown();
+		}
+
+		// the last output is the stop output
+		Assert.assertTrue(outputs.get(outputs.size() - 1).stop);
+		Assert.assertTrue(outputs.size() - 1 <= nPredict);
+	}
+
+	@Test
+	public void testGeneratePublisherTimeout() throws Exception {
+		// the deadline already passed, so the request fails before it is processed
+		InferenceParameters params = new InferenceParameters(prefix)
+				.setNPredict(nPredict)
+				.setDeadline(System.currentTimeMillis() - 1000);
+
+		CompletableFuture<Void> completed = new CompletableFuture<>();
+		model.generatePublisher(params).subscribe(new Flow.Subscriber<LlamaOutput>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(LlamaOutput item) {
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				completed.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				completed.complete(null);
+			}
+		});
+		try {
+			completed.get(1, TimeUnit.MINUTES);
+			Assert.fail("expected the deadline to pass");
+		} catch (ExecutionException e) {
+			// the subscriber receives the same exception as a blocking caller
+			Assert.assertTrue(e.getCause() instanceof LlamaTimeoutException);
+		}
+	}
+
 	@Test
 	public void testCompleteInfillCustom() {
 		Map<Integer, Float> logitBias = new HashMap<>();
@@ -158,6 +422,530 @@ public class LlamaModelTest {
 		float[] embedding = model.embed(prefix);
 		Assert.assertEquals(4096, embedding.length);
 	}
+
+	@Test
+	public void testEmbeddingBatch() {
+		List<String> prompts = Arrays.asList(prefix, suffix, prefix);
+		float[][] embeddings = model.embed(prompts);
+		Assert.assertEquals(prompts.size(), embeddings.length);
+		for (float[] embedding : embeddings) {
+			Assert.assertEquals(4096, embedding.length);
+		}
+		Assert.assertArrayEquals(model.embed(prefix), embeddings[0], 1e-3f);
+		Assert.assertArrayEquals(embeddings[0], embeddings[2], 1e-3f);
+	}
+
+	@Test
+	public void testEmbeddingCache() throws IOException {
+		File file = File.createTempFile("embeddings", ".bin");
+		Assert.assertTrue(file.delete());
+		try {
+			float[] embedding;
+			try (EmbeddingCache cache = new EmbeddingCache(1, file.toPath(), 16)) {
+				model.setEmbeddingCache(cache);
+				embedding = model.embed(prefix);
+				Assert.assertArrayEquals(embedding, model.embed(prefix), 0);
+				model.embed(Arrays.asList(suffix, prefix));
+				Assert.assertEquals(1, cache.size());
+				Assert.assertEquals(2, cache.getHits());
+				Assert.assertEquals(2, cache.getMisses());
+			}
+
+			// a new cache is backed by the same file
+			try (EmbeddingCache cache = new EmbeddingCache(1, file.toPath(), 16)) {
+				model.setEmbeddingCache(cache);
+				Assert.assertArrayEquals(embedding, model.embed(prefix), 0);
+				Assert.assertEquals(1, cache.getHits());
+			}
+		} finally {
+			model.setEmbeddingCache(null);
+			Assert.assertTrue(file.delete());
+		}
+	}
+
+	@Test
+	public void testEmbeddingCacheTooLarge() throws IOException {
+		File file = File.createTempFile("embeddings", ".bin");
+		Assert.assertTrue(file.delete());
+		try (EmbeddingCache cache = new EmbeddingCache(1, file.toPath(), 1_000_000)) {
+			model.setEmbeddingCache(cache);
+			// the size is checked before the file is created
+			Assert.assertThrows(IllegalArgumentException.class, () -> model.embed(prefix));
+			Assert.assertFalse(file.exists());
+		} finally {
+			model.setEmbeddingCache(null);
+		}
+	}
+
+	@Test
+	public void testResponseCache() {
+		ResponseCache cache = new ResponseCache(16, 1, TimeUnit.MINUTES);
+		model.setResponseCache(cache);
+		try {
+			InferenceParameters params = new InferenceParameters(prefix)
+					.setTemperature(0)
+					.setNPredict(nPredict);
+			String completed = model.complete(params);
+			Assert.assertEquals(completed, model.complete(params));
+
+			StringBuilder generated = new StringBuilder();
+			for (LlamaOutput output : model.generate(params)) {
+				generated.append(output.text);
+			}
+			Assert.assertEquals(completed, generated.toString());
+			Assert.assertEquals(2, cache.getHits());
+			Assert.assertEquals(1, cache.getMisses());
+
+			// non-deterministic requests aren't cached
+			model.complete(new InferenceParameters(prefix).setNPredict(nPredict));
+			Assert.assertEquals(1, cache.size());
+			Assert.assertEquals(1, cache.getMisses());
+		} finally {
+			model.setResponseCache(null);
+		}
+	}
+
+	@Test
+	public void testSemanticCache() {
+		SemanticCache cache = new SemanticCache(model, 0.99f, 16);
+		model.setSemanticCache(cache);
+		try {
+			InferenceParameters params = new InferenceParameters(prefix).setNPredict(nPredict);
+			String completed = model.complete(params);
+			Assert.assertEquals(completed, model.complete(params));
+			Assert.assertEquals(1, cache.getHits());
+			Assert.assertEquals(1, cache.getMisses());
+
+			// requests with other parameters aren't answered
+			model.complete(new InferenceParameters(prefix).setNPredict(nPredict + 1));
+			Assert.assertEquals(2, cache.getMisses());
+			Assert.assertEquals(2, cache.size());
+		} finally {
+			model.setSemanticCache(null);
+		}
+
+		SemanticCache rejecting = new SemanticCache(model, 0.99f, 16, (prompt, similar) -> false);
+		model.setSemanticCache(rejecting);
+		try {
+			InferenceParameters params = new InferenceParameters(prefix).setNPredict(nPredict);
+			model.complete(params);
+			model.complete(params);
+			Assert.assertEquals(0, rejecting.getHits());
+			Assert.assertEquals(2, rejecting.getMisses());
+			Assert.assertEquals(1, rejecting.getFalsePositives());
+		} finally {
+			model.setSemanticCache(null);
+		}
+	}
+
+	@Test
+	public void testSlotActions() {
+		InferenceParameters params = new InferenceParameters(prefix).setNPredict(nPredict).setSlotId(0);
+		model.complete(params);
+
+		SlotResult erased = model.eraseSlot(0);
+		Assert.assertEquals(0, erased.slotId);
+		Assert.assertTrue(erased.tokens > 0);
+		Assert.assertEquals(0, model.eraseSlot(0).tokens);
+
+		// the model was loaded without a slot save path
+		Assert.assertThrows(LlamaException.class, () -> model.saveSlot(0, "prefix.bin"));
+		Assert.assertThrows(LlamaException.class, () -> model.eraseSlot(-1));
+	}
+
+	@Test
+	public void testSlotSaveRestore() throws IOException {
+		LlamaModel slotModel = extraModel();
+		InferenceParameters params = new InferenceParameters(functions("add"))
+				.setTemperature(0f)
+				.setNPredict(nPredict)
+				.setCachePrompt(true)
+				.setSlotId(0);
+		String expected = slotModel.complete(params);
+
+		SlotResult saved = slotModel.saveSlot(0, "prefix.bin");
+		Assert.assertEquals("prefix.bin", saved.filename);
+		Assert.assertTrue(saved.tokens > 0);
+		Assert.assertTrue(slotModel.eraseSlot(0).tokens > 0);
+		Assert.assertEquals(saved.tokens, slotModel.restoreSlot(0, "prefix.bin").tokens);
+
+		// the restored cache is reused, so the prompt isn't processed again
+		long before = metric(slotModel.getMetrics(), "n_prompt_tokens_processed_total");
+		Assert.assertEquals(expected, slotModel.complete(params));
+		long processed = metric(slotModel.getMetrics(), "n_prompt_tokens_processed_total") - before;
+		Assert.assertTrue(processed < slotModel.countTokens(functions("add")) / 2);
+	}
+
+	@Test
+	public void testSlotExportImport() {
+		InferenceParameters params = new InferenceParameters(prefix)
+				.setTemperature(0)
+				.setNPredict(nPredict)
+				.setSlotId(0);
+		String expected = model.complete(params);
+
+		SlotResult required = model.exportSlot(0, null);
+		Assert.assertTrue(required.tokens > 0);
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) required.bytes);
+		SlotResult exported = model.exportSlot(0, buffer);
+		Assert.assertEquals(required.bytes, exported.bytes);
+		Assert.assertFalse(buffer.hasRemaining());
+
+		model.eraseSlot(0);
+		buffer.flip();
+		SlotResult imported = model.importSlot(0, buffer);
+		Assert.assertEquals(exported.tokens, imported.tokens);
+		Assert.assertEquals(exported.bytes, imported.bytes);
+		Assert.assertEquals(expected, model.complete(params));
+	}
+
+	@Test
+	public void testPrefixReuseMetrics() {
+		InferenceParameters params = new InferenceParameters(prefix).setNPredict(nPredict).setCachePrompt(true);
+		model.complete(params);
+		long before = metric(model.getMetrics(), "n_prefix_tokens_reused_total");
+		model.complete(params);
+		long after = metric(model.getMetrics(), "n_prefix_tokens_reused_total");
+		Assert.assertTrue(after > before);
+	}
+
+	@Test
+	public void testSharedPrefix() {
+		// ends with a newline, so that the prompt is tokenized the same way up to the end of the shared prefix
+		String shared = "# Utilities for text processing\n";
+		int nTokens = model.setSharedPrefix(shared);
+		try {
+			Assert.assertTrue(nTokens > 0);
+			long before = metric(model.getMetrics(), "n_shared_prefix_tokens_saved_total");
+			InferenceParameters params = new InferenceParameters(shared + prefix).setNPredict(nPredict);
+			Assert.assertFalse(model.complete(params).isEmpty());
+			long after = metric(model.getMetrics(), "n_shared_prefix_tokens_saved_total");
+			Assert.assertTrue(after > before);
+		} finally {
+			Assert.assertEquals(0, model.setSharedPrefix(""));
+		}
+	}
+
+	@Test
+	public void testSharedPrefixWithCacheReuse() throws IOException {
+		LlamaModel reuseModel = extraModel();
+		String shared = "# Utilities for text processing\n# All functions operate on ASCII strings\n";
+		reuseModel.setSharedPrefix(shared);
+		try {
+			InferenceParameters params = new InferenceParameters(shared + prefix)
+					.setNPredict(nPredict)
+					.setTemperature(0f)
+					.setCachePrompt(true);
+			String expected = reuseModel.complete(params.setSlotId(0));
+
+			// diverges at the start of the copied cells, so a chunk of them is reused at another position
+			long reusedBefore = metric(reuseModel.getMetrics(), "n_prefix_tokens_reused_total");
+			String diverged = "# All functions operate on ASCII strings\n" + prefix;
+			reuseModel.complete(new InferenceParameters(diverged)
+					.setNPredict(nPredict)
+					.setCachePrompt(true)
+					.setSlotId(0));
+			long reusedAfter = metric(reuseModel.getMetrics(), "n_prefix_tokens_reused_total");
+			// more than the common BOS token was reused
+			Assert.assertTrue(reusedAfter - reusedBefore > 4);
+
+			// the reserved sequence still holds the prefix at its own positions
+			Assert.assertEquals(expected, reuseModel.complete(params.setSlotId(1)));
+		} finally {
+			Assert.assertEquals(0, reuseModel.setSharedPrefix(""));
+		}
+	}
+
+	@Test
+	public void testSlotSpill() throws IOException {
+		LlamaModel spillModel = extraModel();
+		long restoresBefore = metric(spillModel.getMetrics(), "n_slot_spill_restores_total");
+		long spillsBefore = metric(spillModel.getMetrics(), "n_slot_spills_total");
+
+		// the caches of the prompts are swapped through the same slot
+		String first = functions("add");
+		String second = functions("mul");
+		spillModel.complete(new InferenceParameters(first).setNPredict(nPredict).setCachePrompt(true).setSlotId(0));
+		spillModel.complete(new InferenceParameters(second).setNPredict(nPredict).setCachePrompt(true).setSlotId(0));
+		spillModel.complete(new InferenceParameters(first).setNPredict(nPredict).setCachePrompt(true).setSlotId(0));
+
+		String metrics = spillModel.getMetrics();
+		Assert.assertTrue(metric(metrics, "n_slot_spills_total") - spillsBefore >= 1);
+		Assert.assertEquals(1, metric(metrics, "n_slot_spill_restores_total") - restoresBefore);
+		Assert.assertTrue(metric(metrics, "n_slot_spill_tokens_restored_total") > 0);
+	}
+
+	private static String functions(String name) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 12; i++) {
+			builder.append("def ").append(name).append(i).append("(x):\n    return ").append(name).append("(x, ")
+					.append(i).append(")\n\n");
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void testChatSession() {
+		String system = "You are a helpful coding assistant.";
+		ChatSession session = new ChatSession(model, 0, system);
+		InferenceParameters params = new InferenceParameters("").setNPredict(nPredict).setTemperature(0f);
+		Assert.assertNotNull(session.chat("Write a Python function that adds two numbers.", params));
+
+		long before = metric(model.getMetrics(), "n_prompt_tokens_processed_total");
+		Assert.assertNotNull(session.chat("Now make it subtract them.", params));
+		long processed = metric(model.getMetrics(), "n_prompt_tokens_processed_total") - before;
+
+		Assert.assertEquals(4, session.getMessages().size());
+		String conversation = model.applyTemplate(new InferenceParameters("").setMessages(system, session.getMessages()));
+		Assert.assertTrue(processed > 0 && processed < model.countTokens(conversation));
+	}
+
+	@Test
+	public void testChatSessionMatchesFullHistory() {
+		String system = "You are a helpful coding assistant.";
+		ChatSession session = new ChatSession(model, 0, system);
+		InferenceParameters params = new InferenceParameters("").setNPredict(nPredict).setTemperature(0f);
+		session.chat("Write a Python function that adds two numbers.", params);
+		String answer = session.chat("Now make it subtract them.", params);
+
+		// the same conversation, submitted and processed as a whole
+		List<Pair<String, String>> history = session.getMessages().subList(0, 3);
+		String prompt = model.applyTemplate(new InferenceParameters("").setMessages(system, history));
+		InferenceParameters full = new InferenceParameters(prompt)
+				.setNPredict(nPredict)
+				.setTemperature(0f)
+				.setCachePrompt(false);
+		Assert.assertEquals(model.complete(full), answer);
+	}
+
+	@Test
+	public void testChatSessionDoesNotRetryFailures() throws Exception {
+		LlamaModel sessionModel = extraModel();
+		ChatSession session = new ChatSession(sessionModel, 0, "You are a helpful coding assistant.");
+		session.chat("Write a Python function that adds two numbers.", new InferenceParameters("").setNPredict(nPredict));
+
+		// a request that timed out isn't submitted again with the whole conversation
+		long expiredBefore = metric(sessionModel.getMetrics(), "n_tasks_expired_total");
+		InferenceParameters expired = new InferenceParameters("")
+				.setNPredict(nPredict)
+				.setDeadline(System.currentTimeMillis() - 1000);
+		Assert.assertThrows(LlamaTimeoutException.class, () -> session.chat("Now make it subtract them.", expired));
+		Assert.assertEquals(1, metric(sessionModel.getMetrics(), "n_tasks_expired_total") - expiredBefore);
+
+		// neither is a request that was rejected because too many requests are waiting for a slot
+		Iterator<LlamaOutput> first = startGeneration(sessionModel);
+		Iterator<LlamaOutput> second = startGeneration(sessionModel);
+		List<CompletableFuture<LlamaOutput>> waiting = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			waiting.add(sessionModel.completeAsync(new InferenceParameters(prefix).setNPredict(nPredict)));
+		}
+		awaitDeferred(sessionModel, 2);
+		long rejectedBefore = metric(sessionModel.getMetrics(), "n_tasks_rejected_total");
+		InferenceParameters rejected = new InferenceParameters("").setNPredict(nPredict);
+		Assert.assertThrows(LlamaOverloadedException.class, () -> session.chat("Now make it subtract them.", rejected));
+		Assert.assertEquals(1, metric(sessionModel.getMetrics(), "n_tasks_rejected_total") - rejectedBefore);
+
+		finishGeneration(first);
+		finishGeneration(second);
+		waiting.forEach(CompletableFuture::join);
+		Assert.assertEquals(2, session.getMessages().size());
+	}
+
+	@Test
+	public void testPriorityQueueMetrics() {
+		InferenceParameters params = new InferenceParameters(prefix)
+				.setNPredict(nPredict)
+				.setPriority(3)
+				.setDeadline(System.currentTimeMillis() + 60_000);
+		model.complete(params);
+		String metrics = model.getMetrics();
+		// the parameters of the slots contain the priority as well, so look for it in the queues only
+		String entry = "\"queues\":\\[[^\\]]*\\{\"priority\":3,[^}]*\"n_tasks_started_total\":(\\d+)";
+		Matcher queue = Pattern.compile(entry).matcher(metrics);
+		Assert.assertTrue(queue.find());
+		Assert.assertTrue(Long.parseLong(queue.group(1)) >= 1);
+	}
+
+	@Test
+	public void testPriorityOrder() throws Exception {
+		LlamaModel priorityModel = extraModel();
+		// the slots are busy with more urgent generations, which aren't preempted by the waiting requests
+		LlamaIterator first = startGeneration(priorityModel, new InferenceParameters(prefix).setPriority(10));
+		LlamaIterator second = startGeneration(priorityModel, new InferenceParameters(prefix).setPriority(10));
+
+		List<String> finished = Collections.synchronizedList(new ArrayList<>());
+		CompletableFuture<LlamaOutput> low = priorityModel
+				.completeAsync(new InferenceParameters(prefix).setNPredict(nPredict).setPriority(1))
+				.whenComplete((output, error) -> finished.add("low"));
+		awaitDeferred(priorityModel, 1);
+		CompletableFuture<LlamaOutput> high = priorityModel
+				.completeAsync(new InferenceParameters(prefix).setNPredict(nPredict).setPriority(5))
+				.whenComplete((output, error) -> finished.add("high"));
+		awaitDeferred(priorityModel, 2);
+
+		// a single slot becomes available, which the request with the higher priority takes although it came later,
+		// so the other one can only start once that one is done or the second generation finished
+		first.cancel();
+		high.join();
+		finishGeneration(second);
+		low.join();
+		Assert.assertEquals(Arrays.asList("high", "low"), finished);
+	}
+
+	@Test
+	public void testAdmissionControl() throws IOException {
+		LlamaModel admissionModel = extraModel();
+		long before = metric(admissionModel.getMetrics(), "n_tasks_rejected_total");
+		List<CompletableFuture<LlamaOutput>> futures = new ArrayList<>();
+		int rejected = 0;
+		for (int i = 0; i < 8; i++) {
+			try {
+				futures.add(admissionModel.completeAsync(new InferenceParameters(prefix).setNPredict(nPredict)));
+			} catch (LlamaOverloadedException e) {
+				Assert.assertTrue(e.getRetryAfterMillis() > 0);
+				rejected++;
+			}
+		}
+		for (CompletableFuture<LlamaOutput> future : futures) {
+			try {
+				future.join();
+			} catch (CompletionException e) {
+				Assert.assertTrue(e.getCause() instanceof LlamaOverloadedException);
+				rejected++;
+			}
+		}
+		Assert.assertTrue(rejected > 0);
+		Assert.assertEquals(rejected, metric(admissionModel.getMetrics(), "n_tasks_rejected_total") - before);
+	}
+
+	@Test
+	public void testPreemption() throws IOException {
+		LlamaModel preemptionModel = extraModel();
+		long before = metric(preemptionModel.getMetrics(), "n_preemptions_total");
+		InferenceParameters pinned = new InferenceParameters("# pinned\n" + prefix).setSlotId(0);
+		Iterator<LlamaOutput> first = startGeneration(preemptionModel, pinned);
+		Iterator<LlamaOutput> second = startGeneration(preemptionModel);
+
+		// all slots are generating, so the urgent request preempts the one that isn't pinned to its slot
+		InferenceParameters urgent = new InferenceParameters(prefix).setNPredict(nPredict).setPriority(5);
+		Assert.assertFalse(preemptionModel.complete(urgent).isEmpty());
+		Matcher slot = Pattern.compile("\"id\":0,\"id_task\":\\d+,.*?\"prompt\":\"([^\"]*)")
+				.matcher(preemptionModel.getMetrics());
+		Assert.assertTrue(slot.find());
+		Assert.assertTrue(slot.group(1).contains("# pinned"));
+
+		// the preempted generation continues transparently
+		Assert.assertFalse(finishGeneration(first).isEmpty());
+		Assert.assertFalse(finishGeneration(second).isEmpty());
+
+		String metrics = preemptionModel.getMetrics();
+		Assert.assertTrue(metric(metrics, "n_preemptions_total") - before >= 1);
+		Assert.assertEquals(metric(metrics, "n_preemptions_total"), metric(metrics, "n_preemption_resumes_total"));
+		Assert.assertEquals(0, metric(metrics, "n_suspended_slots"));
+	}
+
+	@Test
+	public void testPrefillBudget() throws IOException {
+		LlamaModel budgetModel = extraModel();
+		long before = metric(budgetModel.getMetrics(), "n_prefill_budget_splits_total");
+		Iterator<LlamaOutput> iterator = startGeneration(budgetModel);
+
+		// the prompt is processed in chunks while the other slot keeps generating
+		InferenceParameters request = new InferenceParameters(prefix + suffix).setNPredict(nPredict);
+		Assert.assertFalse(budgetModel.complete(request).isEmpty());
+		finishGeneration(iterator);
+
+		Assert.assertTrue(metric(budgetModel.getMetrics(), "n_prefill_budget_splits_total") - before >= 1);
+	}
+
+	@Test
+	public void testEmbeddingWithPrefillBudget() throws IOException {
+		LlamaModel budgetModel = extraModel();
+		String text = functions("add");
+		float[] expected = budgetModel.embed(text);
+
+		// the prompt is longer than the prefill budget, but has to be embedded as a whole
+		Iterator<LlamaOutput> iterator = startGeneration(budgetModel);
+		float[] actual = budgetModel.embed(text);
+		finishGeneration(iterator);
+
+		Assert.assertArrayEquals(expected, actual, 1e-3f);
+	}
+
+	@Test
+	public void testDeadline() throws IOException {
+		LlamaModel deadlineModel = extraModel();
+		long before = metric(deadlineModel.getMetrics(), "n_tasks_expired_total");
+		Iterator<LlamaOutput> first = startGeneration(deadlineModel);
+		Iterator<LlamaOutput> second = startGeneration(deadlineModel);
+
+		// all slots are busy, so the request expires while waiting for one
+		InferenceParameters waiting = new InferenceParameters(prefix)
+				.setNPredict(nPredict)
+				.setDeadline(System.currentTimeMillis() + 50);
+		try {
+			deadlineModel.complete(waiting);
+			Assert.fail("expected the deadline to pass");
+		} catch (LlamaTimeoutException expected) {
+			// the deadline passed
+		}
+
+		// the caller stops waiting for the answer, which cancels the request
+		try {
+			deadlineModel.complete(new InferenceParameters(prefix).setNPredict(nPredict), 50, TimeUnit.MILLISECONDS);
+			Assert.fail("expected the answer to be incomplete");
+		} catch (LlamaTimeoutException expected) {
+			// the request was cancelled
+		}
+
+		finishGeneration(first);
+		finishGeneration(second);
+		Assert.assertTrue(metric(deadlineModel.getMetrics(), "n_tasks_expired_total") - before >= 1);
+
+		String answer = deadlineModel.complete(new InferenceParameters(prefix).setNPredict(nPredict), 1,
+				TimeUnit.MINUTES);
+		Assert.assertFalse(answer.isEmpty());
+	}
+
+	private static long metric(String metrics, String name) {
+		Matcher matcher = Pattern.compile("\"" + name + "\":(\\d+)").matcher(metrics);
+		Assert.assertTrue(matcher.find());
+		return Long.parseLong(matcher.group(1));
+	}
+
+	// wait until the given amount of requests is waiting for a slot
+	private static void awaitDeferred(LlamaModel model, int amount) throws InterruptedException {
+		Pattern pattern = Pattern.compile("\"deferred\":(\\d+)");
+		for (int i = 0; i < 1000; i++) {
+			Matcher matcher = pattern.matcher(model.getMetrics());
+			int deferred = 0;
+			while (matcher.find()) {
+				deferred += Integer.parseInt(matcher.group(1));
+			}
+			if (deferred >= amount) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		Assert.fail("expected " + amount + " requests to wait for a slot");
+	}
+
+	@Test
+	public void testEmbeddingIntoBuffer() {
+		int size = model.getEmbeddingSize();
+		FloatBuffer buffer = ByteBuffer.allocateDirect(3 * size * Float.BYTES)
+				.order(ByteOrder.nativeOrder())
+				.asFloatBuffer();
+		model.embedInto(prefix, buffer);
+		model.embedInto(Arrays.asList(suffix, prefix), buffer);
+		Assert.assertEquals(3 * size, buffer.position());
+
+		float[] expected = model.embed(prefix);
+		float[] actual = new float[size];
+		buffer.position(2 * size);
+		buffer.get(actual);
+		Assert.assertArrayEquals(expected, actual, 1e-3f);
+	}
 	
 	
 	@Ignore
@@ -188,6 +976,109 @@ public class LlamaModelTest {
 		Assert.assertEquals(" " +prompt, decoded);
 	}
 
+	@Test
+	public void testTokenizationBatch() {
+		List<String> prompts = Arrays.asList("Hello, world!", "", prefix);
+		int[][] encoded = model.encodeBatch(prompts);
+		Assert.assertEquals(3, encoded.length);
+		for (int i = 0; i < encoded.length; i++) {
+			Assert.assertArrayEquals(model.encode(prompts.get(i)), encoded[i]);
+		}
+
+		List<String> decoded = model.decodeBatch(encoded);
+		for (int i = 0; i < decoded.size(); i++) {
+			Assert.assertEquals(model.decode(encoded[i]), decoded.get(i));
+		}
+	}
+
+	@Test
+	public void testCountTokens() throws IOException {
+		Assert.assertEquals(model.encode(prefix).length, model.countTokens(prefix));
+		Assert.assertEquals(0, model.countTokens(""));
+
+		List<String> texts = Arrays.asList("Hello, world!", suffix);
+		int[] counts = model.countTokens(texts);
+		Assert.assertEquals(model.encode(texts.get(0)).length, counts[0]);
+		Assert.assertEquals(model.encode(texts.get(1)).length, counts[1]);
+
+		// a document that is split into several chunks
+		StringBuilder document = new StringBuilder();
+		while (document.length() < 200_000) {
+			document.append("The quick brown fox jumps over the lazy dog.\n");
+		}
+		long count = model.countTokens(new StringReader(document.toString()));
+		Assert.assertEquals(model.countTokens(document.toString()), count);
+	}
+
+	@Test
+	public void testTokenizerCache() {
+		TokenizerCache cache = new TokenizerCache(2);
+		model.setTokenizerCache(cache);
+		try {
+			int[] tokens = model.encode(prefix);
+			Assert.assertArrayEquals(tokens, model.encode(prefix));
+			Assert.assertEquals(1, cache.getHits());
+			Assert.assertEquals(1, cache.getMisses());
+
+			// the least recently used entry is evicted
+			model.encode(suffix);
+			model.encode("Hello, world!");
+			Assert.assertEquals(2, cache.size());
+			model.encode(prefix);
+			Assert.assertEquals(4, cache.getMisses());
+
+			InferenceParameters params = new InferenceParameters("")
+					.setPromptSegments(prefix, "")
+					.setTemperature(0.95f)
+					.setStopStrings("\"\"\"")
+					.setNPredict(nPredict)
+					.setSeed(42);
+			Assert.assertFalse(model.complete(params).isEmpty());
+			Assert.assertFalse(model.complete(params).isEmpty());
+			Assert.assertEquals(3, cache.getHits());
+		} finally {
+			model.setTokenizerCache(null);
+		}
+	}
+
+	@Test
+	public void testPromptSegments() {
+		// segments that start in the middle of a line are tokenized without a leading space
+		String[] segments = {
+				"# Utilities for text processing\n",
+				"def remove_non_ascii(s: str)",
+				" -> str:\n    \"\"\" "
+		};
+		InferenceParameters whole = new InferenceParameters(String.join("", segments))
+				.setTemperature(0f)
+				.setNPredict(nPredict);
+		InferenceParameters segmented = new InferenceParameters("")
+				.setPromptSegments(segments)
+				.setTemperature(0f)
+				.setNPredict(nPredict);
+		Assert.assertEquals(model.complete(whole), model.complete(segmented));
+	}
+
+	@Test
+	public void testTokenizationIntoBuffer() {
+		List<String> prompts = Arrays.asList("Hello, world!", prefix);
+		IntBuffer tokens = ByteBuffer.allocateDirect(1024 * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+		IntBuffer lengths = ByteBuffer.allocateDirect(2 * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+		int written = model.encodeInto(prompts, tokens, lengths);
+		Assert.assertEquals(written, tokens.position());
+		Assert.assertEquals(model.encode(prompts.get(0)).length, lengths.get(0));
+		Assert.assertEquals(written, lengths.get(0) + lengths.get(1));
+
+		// decode the tokens of the first prompt
+		tokens.position(0).limit(lengths.get(0));
+		ByteBuffer text = ByteBuffer.allocateDirect(1024);
+		int length = model.decodeInto(tokens, text);
+		byte[] bytes = new byte[length];
+		((ByteBuffer) text.flip()).get(bytes);
+		Assert.assertEquals(" Hello, world!", new String(bytes, StandardCharsets.UTF_8));
+	}
+
 	@Ignore
 	public void testLogText() {
 		List<LogMessage> messages = new ArrayList<>();
@@ -0,0 +1,77 @@
+package examples;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.kherud.llama.InferenceParameters;
+import de.kherud.llama.LlamaModel;
+import de.kherud.llama.LlamaOutput;
+import de.kherud.llama.ModelParameters;
+
+/**
+ * Streams completions with an increasing number of concurrent consumers, each blocking in its own thread, and prints
+ * the throughput as well as the average time between two outputs of a stream. Since every result is routed to the
+ * mailbox of its task and only wakes up the thread waiting for it, the time a consumer spends receiving results stays
+ * flat with the number of streams, and the per-token latency only grows with the cost of decoding larger batches.
+ */
+public class ConcurrencyBenchmark {
+
+	private static final int[] CONCURRENCY = {1, 2, 4, 8, 16, 32, 64};
+	private static final int N_PREDICT = 64;
+
+	public static void main(String... args) throws Exception {
+		int maxConcurrency = CONCURRENCY[CONCURRENCY.length - 1];
+		ModelParameters modelParams = new ModelParameters()
+				.setModel(args.length > 0 ? args[0] : "models/codellama-7b.Q2_K.gguf")
+				.setParallel(maxConcurrency)
+				.setCtxSize(maxConcurrency * 2 * N_PREDICT)
+				.setGpuLayers(43);
+		try (LlamaModel model = new LlamaModel(modelParams)) {
+			// warm up
+			run(model, 1);
+			System.out.printf("%12s %12s %16s %16s%n", "streams", "tokens", "tokens/s", "ms/token/stream");
+			for (int concurrency : CONCURRENCY) {
+				run(model, concurrency);
+			}
+		}
+	}
+
+	private static void run(LlamaModel model, int concurrency) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<long[]>> streams = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++) {
+			InferenceParameters params = new InferenceParameters("def fibonacci(n: int) -> int:\n")
+					.setNPredict(N_PREDICT)
+					.setIgnoreEos(true)
+					.setSeed(i);
+			streams.add(executor.submit(() -> {
+				start.await();
+				long begin = System.nanoTime();
+				long tokens = 0;
+				for (LlamaOutput ignored : model.generate(params)) {
+					tokens++;
+				}
+				return new long[]{tokens, System.nanoTime() - begin};
+			}));
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		long tokens = 0;
+		double latency = 0;
+		for (Future<long[]> stream : streams) {
+			long[] result = stream.get();
+			tokens += result[0];
+			latency += result[1] / 1e6 / result[0];
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		executor.shutdown();
+
+		System.out.printf("%12d %12d %16.1f %16.2f%n", concurrency, tokens, tokens / seconds, latency / concurrency);
+	}
+}